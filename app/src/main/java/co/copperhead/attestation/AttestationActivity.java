@@ -1,12 +1,15 @@
 package co.copperhead.attestation;
 
 import android.Manifest;
-import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
@@ -24,17 +27,12 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
 
 import java.io.UnsupportedEncodingException;
-import java.util.EnumMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
-import static android.graphics.Color.BLACK;
 import static android.graphics.Color.WHITE;
 
 public class AttestationActivity extends AppCompatActivity {
@@ -47,11 +45,10 @@ public class AttestationActivity extends AppCompatActivity {
     private static final String STATE_OUTPUT = "output";
     private static final String STATE_BACKGROUND_RESOURCE = "background_resource";
 
-    private static final int GENERATE_REQUEST_CODE = 0;
-    private static final int VERIFY_REQUEST_CODE = 1;
     private static final int SCAN_REQUEST_CODE = 2;
 
     private static final int PERMISSIONS_REQUEST_CAMERA = 10;
+    private static final int PERMISSIONS_REQUEST_CAMERA_FLEET_AUDIT = 11;
 
     private TextView textView;
     private ImageView imageView;
@@ -74,12 +71,25 @@ public class AttestationActivity extends AppCompatActivity {
     private byte[] auditorChallenge;
     private int backgroundResource;
     private boolean canSubmitSample;
+    // payload of the QR code currently being shown
+    private byte[] qrCodeData;
+    private AttestationService service;
+    // requests made before the service connection was established
+    private final List<Consumer<AttestationService>> pendingRequests = new ArrayList<>();
+    // scaled up by the ImageView to a blank square the size of the QR code
+    private static final Bitmap placeholder = createPlaceholder();
 
     private static final ImmutableSet<String> supportedModels = ImmutableSet.of(
             "BKL-L04", "G8441", "H3113", "H3123", "H4113", "Nokia 6.1", "Pixel 2", "Pixel 2 XL",
             "SM-G960F", "SM-G960U", "SM-G965F", "SM-G965U1", "SM-G965W");
     private static final boolean isSupportedAuditee = supportedModels.contains(Build.MODEL);
 
+    private static Bitmap createPlaceholder() {
+        final Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(WHITE);
+        return bitmap;
+    }
+
     private static int getFirstApiLevel() {
         return Integer.parseInt(SystemProperties.get("ro.product.first_api_level",
                 Integer.toString(Build.VERSION.SDK_INT)));
@@ -149,6 +159,94 @@ public class AttestationActivity extends AppCompatActivity {
         });
     }
 
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            service = ((AttestationService.LocalBinder) binder).getService();
+            // pick up an operation started before a configuration change
+            if (mStage == Stage.AuditeeGenerate && service.getGeneration() != null) {
+                service.getGeneration().setCallback(generateCallback);
+            } else if (mStage == Stage.AuditorResults && service.getVerification() != null) {
+                service.getVerification().setCallback(verifyCallback);
+            }
+            for (final Consumer<AttestationService> request : pendingRequests) {
+                request.accept(service);
+            }
+            pendingRequests.clear();
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            service = null;
+        }
+    };
+
+    private final AttestationService.Callback<AttestationProtocol.AttestationResult> generateCallback =
+            new AttestationService.Callback<AttestationProtocol.AttestationResult>() {
+        @Override
+        public void onResult(final AttestationProtocol.AttestationResult result) {
+            auditeePairing = result.pairing;
+            auditeeShowAttestation(result.serialized);
+        }
+
+        @Override
+        public void onError(final String error) {
+            setBackgroundResource(R.color.red200);
+            textView.setText(R.string.generate_error);
+            textView.append(error);
+        }
+    };
+
+    private final AttestationService.Callback<AttestationProtocol.VerificationResult> verifyCallback =
+            new AttestationService.Callback<AttestationProtocol.VerificationResult>() {
+        @Override
+        public void onResult(final AttestationProtocol.VerificationResult result) {
+            setBackgroundResource(result.strong ? R.color.green200 : R.color.orange200);
+            textView.setText(result.strong ? R.string.verify_strong : R.string.verify_basic);
+            textView.append(getText(R.string.device_information));
+            textView.append(result.teeEnforced);
+            textView.append(getText(R.string.os_enforced));
+            textView.append(result.osEnforced);
+        }
+
+        @Override
+        public void onError(final String error) {
+            setBackgroundResource(R.color.red200);
+            textView.setText(R.string.verify_error);
+            textView.append(error);
+        }
+    };
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, AttestationService.class), connection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null) {
+            // results are retained by the service and picked up again once reconnected
+            if (service.getGeneration() != null) {
+                service.getGeneration().setCallback(null);
+            }
+            if (service.getVerification() != null) {
+                service.getVerification().setCallback(null);
+            }
+            service = null;
+        }
+        unbindService(connection);
+    }
+
+    private void withService(final Consumer<AttestationService> request) {
+        if (service != null) {
+            request.accept(service);
+        } else {
+            pendingRequests.add(request);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(final Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
@@ -179,12 +277,12 @@ public class AttestationActivity extends AppCompatActivity {
                         @Override
                         public boolean onPreDraw() {
                             imageView.getViewTreeObserver().removeOnPreDrawListener(this);
-                            imageView.setImageBitmap(createQrCode(data));
+                            showQrCode(data);
                             return true;
                         }
                     });
                 } else {
-                    imageView.setImageBitmap(createQrCode(data));
+                    showQrCode(data);
                 }
                 return true;
             }
@@ -204,22 +302,16 @@ public class AttestationActivity extends AppCompatActivity {
     private void showAuditorResults(final byte[] serialized) {
         Log.d(TAG, "received attestation: " + Utils.logFormatBytes(serialized));
         textView.setText(R.string.verifying_attestation);
-        final PendingIntent pending = createPendingResult(VERIFY_REQUEST_CODE, new Intent(), 0);
-        final Intent intent = new Intent(this, VerifyAttestationService.class);
-        intent.putExtra(VerifyAttestationService.EXTRA_CHALLENGE_MESSAGE, auditorChallenge);
-        intent.putExtra(VerifyAttestationService.EXTRA_SERIALIZED, serialized);
-        intent.putExtra(VerifyAttestationService.EXTRA_PENDING_RESULT, pending);
-        startService(intent);
+        final byte[] challengeMessage = auditorChallenge;
+        withService((final AttestationService service) ->
+                service.verify(challengeMessage, serialized).setCallback(verifyCallback));
     }
 
     private void continueAuditee(final byte[] challenge) {
         Log.d(TAG, "received random challenge: " + Utils.logFormatBytes(challenge));
         textView.setText(R.string.generating_attestation);
-        final PendingIntent pending = createPendingResult(GENERATE_REQUEST_CODE, new Intent(), 0);
-        final Intent intent = new Intent(this, GenerateAttestationService.class);
-        intent.putExtra(GenerateAttestationService.EXTRA_CHALLENGE_MESSAGE, challenge);
-        intent.putExtra(GenerateAttestationService.EXTRA_PENDING_RESULT, pending);
-        startService(intent);
+        withService((final AttestationService service) ->
+                service.generate(challenge).setCallback(generateCallback));
     }
 
     private void auditeeShowAttestation(final byte[] serialized) {
@@ -234,34 +326,22 @@ public class AttestationActivity extends AppCompatActivity {
         chooseBestLayout(serialized);
     }
 
-    private Bitmap createQrCode(final byte[] contents) {
-        final BitMatrix result;
-        try {
-            final QRCodeWriter writer = new QRCodeWriter();
-            final Map<EncodeHintType,Object> hints = new EnumMap<>(EncodeHintType.class);
-            hints.put(EncodeHintType.CHARACTER_SET, "ISO-8859-1");
-            try {
-                final int size = Math.min(imageView.getWidth(), imageView.getHeight());
-                result = writer.encode(new String(contents, "ISO-8859-1"), BarcodeFormat.QR_CODE,
-                        size, size, hints);
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("ISO-8859-1 not supported", e);
-            }
-        } catch (WriterException e) {
-            throw new RuntimeException(e);
+    // Shows a cached QR code immediately, otherwise shows a blank placeholder while it's rendered
+    // on a background thread.
+    private void showQrCode(final byte[] data) {
+        qrCodeData = data;
+        final Bitmap cached = QrCodeRenderer.getCached(data);
+        if (cached != null) {
+            QrCodeRenderer.show(imageView, cached);
+            return;
         }
-
-        final int width = result.getWidth();
-        final int height = result.getHeight();
-        final int[] pixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            final int offset = y * width;
-            for (int x = 0; x < width; x++) {
-                pixels[offset + x] = result.get(x, y) ? BLACK : WHITE;
+        imageView.setImageBitmap(placeholder);
+        QrCodeRenderer.render(data, (final Bitmap bitmap) -> {
+            // the activity may have moved on while this was being rendered
+            if (!isDestroyed() && qrCodeData == data) {
+                QrCodeRenderer.show(imageView, bitmap);
             }
-        }
-
-        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.RGB_565);
+        });
     }
 
     private void showQrScanner() {
@@ -273,6 +353,15 @@ public class AttestationActivity extends AppCompatActivity {
         }
     }
 
+    private void showFleetAudit() {
+        if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.CAMERA},
+                    PERMISSIONS_REQUEST_CAMERA_FLEET_AUDIT);
+        } else {
+            startActivity(new Intent(this, FleetAuditActivity.class));
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
                                            @NonNull String permissions[], @NonNull int[] grantResults) {
@@ -286,6 +375,16 @@ public class AttestationActivity extends AppCompatActivity {
                 } else {
                     snackbar.setText(R.string.camera_permission_denied).show();
                 }
+                break;
+            }
+            case PERMISSIONS_REQUEST_CAMERA_FLEET_AUDIT: {
+                if (grantResults.length > 0
+                        && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                    snackbar.dismiss();
+                    startActivity(new Intent(this, FleetAuditActivity.class));
+                } else {
+                    snackbar.setText(R.string.camera_permission_denied).show();
+                }
             }
         }
     }
@@ -300,36 +399,7 @@ public class AttestationActivity extends AppCompatActivity {
     public void onActivityResult(final int requestCode, final int resultCode, final Intent intent) {
         Log.d(TAG, "onActivityResult " + requestCode + " " + resultCode);
 
-        if (requestCode == GENERATE_REQUEST_CODE) {
-            if (resultCode != GenerateAttestationService.RESULT_CODE) {
-                throw new RuntimeException("unexpected result code");
-            }
-            if (intent.hasExtra(GenerateAttestationService.EXTRA_ATTESTATION_ERROR)) {
-                setBackgroundResource(R.color.red200);
-                textView.setText(R.string.generate_error);
-                textView.append(intent.getStringExtra(GenerateAttestationService.EXTRA_ATTESTATION_ERROR));
-                return;
-            }
-            auditeePairing = intent.getBooleanExtra(GenerateAttestationService.EXTRA_PAIRING, false);
-            auditeeShowAttestation(intent.getByteArrayExtra(GenerateAttestationService.EXTRA_ATTESTATION));
-        } else if (requestCode == VERIFY_REQUEST_CODE) {
-            if (resultCode != VerifyAttestationService.RESULT_CODE) {
-                throw new RuntimeException("unexpected result code");
-            }
-            if (intent.hasExtra(VerifyAttestationService.EXTRA_ERROR)) {
-                setBackgroundResource(R.color.red200);
-                textView.setText(R.string.verify_error);
-                textView.append(intent.getStringExtra(VerifyAttestationService.EXTRA_ERROR));
-                return;
-            }
-            final boolean strong = intent.getBooleanExtra(VerifyAttestationService.EXTRA_STRONG, false);
-            setBackgroundResource(strong ? R.color.green200 : R.color.orange200);
-            textView.setText(strong ? R.string.verify_strong : R.string.verify_basic);
-            textView.append(getText(R.string.device_information));
-            textView.append(intent.getStringExtra(VerifyAttestationService.EXTRA_TEE_ENFORCED));
-            textView.append(getText(R.string.os_enforced));
-            textView.append(intent.getStringExtra(VerifyAttestationService.EXTRA_OS_ENFORCED));
-        } else if (requestCode == SCAN_REQUEST_CODE) {
+        if (requestCode == SCAN_REQUEST_CODE) {
             if (intent != null) {
                 // handle scan result
                 final String contents = intent.getStringExtra("SCAN_RESULT");
@@ -364,6 +434,7 @@ public class AttestationActivity extends AppCompatActivity {
                     PreferenceManager.getDefaultSharedPreferences(this).edit()
                             .putLong(RemoteVerifyJob.KEY_USER_ID, Long.parseLong(values[1]))
                             .putString(RemoteVerifyJob.KEY_SUBSCRIBE_KEY, values[2])
+                            .remove(RemoteVerifyJob.KEY_NEXT_CHALLENGE)
                             .apply();
                     try {
                         RemoteVerifyJob.schedule(this, Integer.parseInt(values[3]));
@@ -405,16 +476,16 @@ public class AttestationActivity extends AppCompatActivity {
     @Override
     public boolean onOptionsItemSelected(final MenuItem item) {
         switch (item.getItemId()) {
+            case R.id.action_fleet_audit: {
+                showFleetAudit();
+                return true;
+            }
             case R.id.action_clear_auditee: {
-                final Intent intent = new Intent(this, GenerateAttestationService.class);
-                intent.putExtra(GenerateAttestationService.EXTRA_CLEAR, true);
-                startService(intent);
+                withService(AttestationService::clearAuditee);
                 return true;
             }
             case R.id.action_clear_auditor: {
-                final Intent intent = new Intent(this, VerifyAttestationService.class);
-                intent.putExtra(VerifyAttestationService.EXTRA_CLEAR, true);
-                startService(intent);
+                withService(AttestationService::clearAuditor);
                 return true;
             }
             case R.id.action_enable_remote_verify: {
@@ -427,6 +498,7 @@ public class AttestationActivity extends AppCompatActivity {
                 PreferenceManager.getDefaultSharedPreferences(this).edit()
                         .remove(RemoteVerifyJob.KEY_USER_ID)
                         .remove(RemoteVerifyJob.KEY_SUBSCRIBE_KEY)
+                        .remove(RemoteVerifyJob.KEY_NEXT_CHALLENGE)
                         .apply();
                 snackbar.setText(R.string.disable_remote_verify).show();
                 return true;
@@ -0,0 +1,208 @@
+package co.copperhead.attestation;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+
+// Generates and verifies attestations for bound clients. Clients get the service object directly
+// through a local Binder and receive results through callbacks on the main thread.
+//
+// Verifications run concurrently on a worker pool. Operations on the Auditee keys are kept in
+// submission order on a single thread, as they were with the previous IntentService.
+//
+// The service keeps itself started while work is in flight, so it isn't torn down when a client
+// unbinds to be recreated for a configuration change. The latest generation and verification are
+// retained and delivered to a callback attached after they complete.
+public class AttestationService extends Service {
+    private static final String TAG = "AttestationService";
+
+    interface Callback<T> {
+        void onResult(T result);
+        void onError(String error);
+    }
+
+    private interface Task<T> {
+        T run() throws DataFormatException, GeneralSecurityException, IOException;
+    }
+
+    // Only accessed from the main thread.
+    static class Operation<T> {
+        private boolean done;
+        private T result;
+        private String error;
+        private Callback<T> callback;
+
+        void setCallback(final Callback<T> callback) {
+            this.callback = callback;
+            deliver();
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        void complete(final T result, final String error) {
+            done = true;
+            this.result = result;
+            this.error = error;
+            deliver();
+        }
+
+        private void deliver() {
+            if (!done || callback == null) {
+                return;
+            }
+            if (error != null) {
+                callback.onError(error);
+            } else {
+                callback.onResult(result);
+            }
+        }
+    }
+
+    class LocalBinder extends Binder {
+        AttestationService getService() {
+            return AttestationService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // verifications hold the read lock while clearing the Auditor state takes the write lock
+    private final ReadWriteLock auditorLock = new ReentrantReadWriteLock();
+    private ExecutorService verifyExecutor;
+    private ExecutorService keystoreExecutor;
+    private int pending;
+    private Operation<AttestationProtocol.AttestationResult> generation;
+    private Operation<AttestationProtocol.VerificationResult> verification;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "service created");
+        verifyExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat("attestation-verify-%d").build());
+        keystoreExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("attestation-keystore").build());
+
+        // load the trust anchor, dictionary and device table before the first request needs them
+        verifyExecutor.execute(() -> {
+            try {
+                AttestationProtocol.getVerifier(this);
+            } catch (final GeneralSecurityException | IOException e) {
+                Log.e(TAG, "failed to load verifier", e);
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "service destroyed");
+        verifyExecutor.shutdown();
+        keystoreExecutor.shutdown();
+        // the queue of audits has drained, so write out the deferred device state now
+        DeviceStateWriter.flush();
+    }
+
+    Operation<AttestationProtocol.AttestationResult> generate(final byte[] challengeMessage) {
+        generation = submit(keystoreExecutor, () ->
+                AttestationProtocol.generateSerialized(this, challengeMessage, null, ""));
+        return generation;
+    }
+
+    Operation<AttestationProtocol.VerificationResult> verify(final byte[] challengeMessage,
+            final byte[] serialized) {
+        verification = submit(verifyExecutor, () -> {
+            auditorLock.readLock().lock();
+            try {
+                return AttestationProtocol.verifySerialized(this, serialized, challengeMessage);
+            } finally {
+                auditorLock.readLock().unlock();
+            }
+        });
+        return verification;
+    }
+
+    // The most recently submitted operations, or null if there are none.
+    Operation<AttestationProtocol.AttestationResult> getGeneration() {
+        return generation;
+    }
+
+    Operation<AttestationProtocol.VerificationResult> getVerification() {
+        return verification;
+    }
+
+    void clearAuditee() {
+        submit(keystoreExecutor, () -> {
+            AttestationProtocol.clearAuditee();
+            return null;
+        });
+    }
+
+    void clearAuditor() {
+        submit(verifyExecutor, () -> {
+            auditorLock.writeLock().lock();
+            try {
+                AttestationProtocol.clearAuditor(this);
+            } finally {
+                auditorLock.writeLock().unlock();
+            }
+            return null;
+        });
+    }
+
+    private <T> Operation<T> submit(final ExecutorService executor, final Task<T> task) {
+        final Operation<T> operation = new Operation<>();
+        if (pending++ == 0) {
+            startService(new Intent(this, AttestationService.class));
+        }
+        executor.execute(() -> {
+            T result = null;
+            String error = null;
+            try {
+                result = task.run();
+            } catch (final DataFormatException | GeneralSecurityException | IOException e) {
+                Log.e(TAG, "attestation operation error", e);
+                error = e.getMessage();
+            } catch (final BufferUnderflowException e) {
+                Log.e(TAG, "attestation operation error", e);
+                error = "Invalid attestation format";
+            }
+            final T finalResult = result;
+            final String finalError = error;
+            handler.post(() -> {
+                operation.complete(finalResult, finalError);
+                if (--pending == 0) {
+                    stopSelf();
+                }
+            });
+        });
+        return operation;
+    }
+}
@@ -0,0 +1,11 @@
+package co.copperhead.attestation;
+
+import android.app.Application;
+
+public class AuditorApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Warmup.start(this);
+    }
+}
@@ -0,0 +1,174 @@
+package co.copperhead.attestation;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind buffer for the per-Auditee verification state.
+//
+// Successful verifications of an already paired device usually only change the last verified
+// time, so those updates are coalesced per device in memory and written out in a group commit
+// once MAX_PENDING_DEVICES devices are pending or FLUSH_DELAY_MS has passed. Pairing data and
+// changes to the downgrade protection values (pinned OS version, OS patch level and app version)
+// are never deferred: they're committed synchronously, superseding any pending update for that
+// device, before the verification result is returned, so a later verification always reads the
+// durable values even if the process is killed before the next flush.
+//
+// The class lock only guards the in-memory state, so verifications aren't held up by a flush
+// writing to disk. Writes are serialized by a separate lock, which is always taken first when both
+// are needed. A flush works on a copy of the pending updates, so it skips a device whose last
+// verified time was already advanced by a synchronous commit, and it's abandoned if the updates
+// were cleared since the copy was made. Updates are only dropped from memory once written.
+class DeviceStateWriter {
+    private static final String TAG = "DeviceStateWriter";
+
+    private static final int MAX_PENDING_DEVICES = 32;
+    private static final long FLUSH_DELAY_MS = 5 * 1000;
+
+    private static class PendingUpdate {
+        final String device;
+        final SharedPreferences preferences;
+        long verifiedTimeLast;
+
+        PendingUpdate(final String device, final SharedPreferences preferences,
+                final long verifiedTimeLast) {
+            this.device = device;
+            this.preferences = preferences;
+            this.verifiedTimeLast = verifiedTimeLast;
+        }
+    }
+
+    private static final Object writeLock = new Object();
+    private static final Map<String, PendingUpdate> pending = new HashMap<>();
+    // incremented whenever the pending updates are dropped, guarded by the class lock
+    private static long generation;
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+    private static ScheduledFuture<?> scheduledFlush;
+
+    static synchronized long getVerifiedTimeLast(final String device,
+            final SharedPreferences preferences) {
+        final PendingUpdate update = pending.get(device);
+        if (update != null) {
+            return update.verifiedTimeLast;
+        }
+        return preferences.getLong(PreferencesPinStore.KEY_VERIFIED_TIME_LAST, 0);
+    }
+
+    // Queue an update of the last verified time for a device.
+    static synchronized void deferVerifiedTimeLast(final String device,
+            final SharedPreferences preferences, final long verifiedTimeLast) {
+        final PendingUpdate update = pending.get(device);
+        if (update != null) {
+            update.verifiedTimeLast = verifiedTimeLast;
+        } else {
+            pending.put(device, new PendingUpdate(device, preferences, verifiedTimeLast));
+        }
+
+        if (pending.size() >= MAX_PENDING_DEVICES) {
+            scheduleFlush(0);
+        } else if (scheduledFlush == null) {
+            scheduleFlush(FLUSH_DELAY_MS);
+        }
+    }
+
+    // Synchronously commit an editor for a device. The editor always sets the last verified time
+    // itself, so it supersedes any pending deferred update.
+    static void commit(final String device, final SharedPreferences.Editor editor) {
+        synchronized (writeLock) {
+            synchronized (DeviceStateWriter.class) {
+                pending.remove(device);
+            }
+            if (!editor.commit()) {
+                throw new RuntimeException("failed to commit device state for " + device);
+            }
+        }
+    }
+
+    // Flush all pending updates in the background.
+    static synchronized void flush() {
+        scheduleFlush(0);
+    }
+
+    // Drop all pending updates, used when the pairing data is being cleared. Waits for a flush in
+    // progress, so nothing is written once this returns.
+    static void clear() {
+        synchronized (writeLock) {
+            synchronized (DeviceStateWriter.class) {
+                pending.clear();
+                generation++;
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+            }
+        }
+    }
+
+    private static void scheduleFlush(final long delayMs) {
+        if (scheduledFlush != null) {
+            if (delayMs != 0) {
+                return;
+            }
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = executor.schedule(DeviceStateWriter::writePending, delayMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static void writePending() {
+        final List<PendingUpdate> updates;
+        final long copied;
+        synchronized (DeviceStateWriter.class) {
+            scheduledFlush = null;
+            if (pending.isEmpty()) {
+                return;
+            }
+            updates = new ArrayList<>(pending.size());
+            for (final PendingUpdate update : pending.values()) {
+                updates.add(new PendingUpdate(update.device, update.preferences,
+                        update.verifiedTimeLast));
+            }
+            copied = generation;
+        }
+
+        synchronized (writeLock) {
+            synchronized (DeviceStateWriter.class) {
+                if (generation != copied) {
+                    return;
+                }
+            }
+            Log.d(TAG, "flushing " + updates.size() + " pending device updates");
+            for (final PendingUpdate update : updates) {
+                if (update.preferences.getLong(PreferencesPinStore.KEY_VERIFIED_TIME_LAST, 0) >=
+                        update.verifiedTimeLast) {
+                    continue;
+                }
+                if (!update.preferences.edit()
+                        .putLong(PreferencesPinStore.KEY_VERIFIED_TIME_LAST,
+                                update.verifiedTimeLast)
+                        .commit()) {
+                    Log.e(TAG, "failed to write pending update for " + update.device);
+                }
+            }
+
+            // updates stay readable from memory until written, unless superseded in the meantime
+            synchronized (DeviceStateWriter.class) {
+                for (final PendingUpdate update : updates) {
+                    final PendingUpdate current = pending.get(update.device);
+                    if (current != null && current.verifiedTimeLast == update.verifiedTimeLast) {
+                        pending.remove(update.device);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package co.copperhead.attestation;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import me.dm7.barcodescanner.core.IViewFinder;
+import me.dm7.barcodescanner.zxing.ZXingScannerView;
+
+// Auditor mode for verifying many devices in a row: the challenge stays on screen and the camera
+// keeps scanning attestations, which are verified in the background by a FleetAuditSession.
+public class FleetAuditActivity extends Activity implements ZXingScannerView.ResultHandler,
+        FleetAuditSession.Listener {
+    private ZXingScannerView mScannerView;
+    private ImageView challengeView;
+    private ArrayAdapter<String> adapter;
+    private FleetAuditSession session;
+
+    @Override
+    public void onCreate(final Bundle state) {
+        super.onCreate(state);
+        setContentView(R.layout.activity_fleet_audit);
+        session = FleetAuditSession.getOrStart(this);
+
+        final ViewGroup contentFrame = findViewById(R.id.content_frame);
+        mScannerView = new ZXingScannerView(this) {
+            @Override
+            protected IViewFinder createViewFinderView(Context context) {
+                return new QRScannerActivity.SquareViewFinderView(context);
+            }
+        };
+        contentFrame.addView(mScannerView);
+        mScannerView.setFormats(Collections.singletonList(BarcodeFormat.QR_CODE));
+
+        adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        final ListView results = findViewById(R.id.results);
+        results.setAdapter(adapter);
+
+        challengeView = findViewById(R.id.challenge);
+    }
+
+    private void showChallenge() {
+        final byte[] challengeMessage = session.getChallengeMessage();
+        final Bitmap cached = QrCodeRenderer.getCached(challengeMessage);
+        if (cached != null) {
+            QrCodeRenderer.show(challengeView, cached);
+            return;
+        }
+        QrCodeRenderer.render(challengeMessage, (final Bitmap bitmap) -> {
+            // the challenge may have been rotated while this was being rendered
+            if (!isDestroyed() && session.getChallengeMessage() == challengeMessage) {
+                QrCodeRenderer.show(challengeView, bitmap);
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        session.setListener(this);
+        // the challenge is rotated while paused too
+        showChallenge();
+        onEntriesChanged();
+        mScannerView.setResultHandler(this);
+        mScannerView.startCamera();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mScannerView.stopCamera();
+        session.setListener(null);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            FleetAuditSession.end();
+        }
+    }
+
+    @Override
+    public void handleResult(final Result rawResult) {
+        session.submit(rawResult.getText().getBytes(StandardCharsets.ISO_8859_1));
+        mScannerView.resumeCameraPreview(this);
+    }
+
+    @Override
+    public void onChallengeChanged() {
+        showChallenge();
+    }
+
+    @Override
+    public void onEntriesChanged() {
+        final List<FleetAuditSession.Entry> entries = session.getEntries();
+        final List<String> items = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            items.add(getString(R.string.fleet_audit_entry, i + 1, describe(entries.get(i))));
+        }
+        adapter.clear();
+        adapter.addAll(items);
+    }
+
+    private String describe(final FleetAuditSession.Entry entry) {
+        if (entry.isPending()) {
+            return getString(R.string.verifying_attestation);
+        }
+        if (entry.error != null) {
+            return getString(R.string.fleet_audit_error, entry.error);
+        }
+        // the first line identifies the device
+        final String device = entry.result.teeEnforced.split("\n", 2)[0];
+        return getString(entry.result.strong ?
+                R.string.fleet_audit_strong : R.string.fleet_audit_basic) + "\n" + device;
+    }
+}
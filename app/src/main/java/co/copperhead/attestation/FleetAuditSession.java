@@ -0,0 +1,158 @@
+package co.copperhead.attestation;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+
+// An Auditor session verifying many Auditees while the scanner keeps running. Scanned
+// attestations are verified on a worker pool and the results are collected in scan order. The
+// session is kept outside of the activity so it survives configuration changes.
+//
+// The challenge shown for the session is replaced every CHALLENGE_ROTATION_MS rather than kept for
+// the whole session, which can last far longer than an attestation is meant to be fresh for. The
+// previous challenge stays acceptable until the next rotation so an Auditee that scanned it just
+// before it was replaced isn't turned away, which bounds the lifetime of a challenge to
+// EXPIRE_OFFSET_MS.
+//
+// The scanner reports the same QR code over and over while it's in view, so attestations that were
+// already scanned in this session are ignored.
+//
+// Apart from verification on the workers, everything here happens on the main thread.
+class FleetAuditSession {
+    private static final String TAG = "FleetAuditSession";
+    private static final long CHALLENGE_ROTATION_MS = EXPIRE_OFFSET_MS / 2;
+
+    static class Entry {
+        // null while the attestation is being verified
+        AttestationProtocol.VerificationResult result;
+        String error;
+
+        boolean isPending() {
+            return result == null && error == null;
+        }
+    }
+
+    interface Listener {
+        void onEntriesChanged();
+        void onChallengeChanged();
+    }
+
+    private static FleetAuditSession current;
+
+    private final Context context;
+    private byte[] challengeMessage;
+    // still accepted for attestations scanned until the next rotation, or null
+    private byte[] previousChallengeMessage;
+    private final ExecutorService workers =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<String> scanned = new HashSet<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final Runnable rotation = this::rotateChallenge;
+    private Listener listener;
+
+    private FleetAuditSession(final Context context) {
+        this.context = context.getApplicationContext();
+        challengeMessage = AttestationProtocol.getChallengeMessage(this.context);
+        handler.postDelayed(rotation, CHALLENGE_ROTATION_MS);
+    }
+
+    static FleetAuditSession getOrStart(final Context context) {
+        if (current == null) {
+            current = new FleetAuditSession(context);
+        }
+        return current;
+    }
+
+    static void end() {
+        if (current != null) {
+            current.workers.shutdown();
+            current.handler.removeCallbacks(current.rotation);
+            current.listener = null;
+            current = null;
+            // the audits are done, so write out the deferred device state now
+            DeviceStateWriter.flush();
+        }
+    }
+
+    byte[] getChallengeMessage() {
+        return challengeMessage;
+    }
+
+    private void rotateChallenge() {
+        previousChallengeMessage = challengeMessage;
+        challengeMessage = AttestationProtocol.getChallengeMessage(context);
+        handler.postDelayed(rotation, CHALLENGE_ROTATION_MS);
+        if (listener != null) {
+            listener.onChallengeChanged();
+        }
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    // Queues a scanned attestation for verification, returning false if it was already scanned.
+    boolean submit(final byte[] serialized) {
+        if (!scanned.add(Hashing.sha256().hashBytes(serialized).toString())) {
+            return false;
+        }
+        Log.d(TAG, "received attestation: " + Utils.logFormatBytes(serialized));
+        final Entry entry = new Entry();
+        entries.add(entry);
+        notifyListener();
+        final List<byte[]> challengeMessages = previousChallengeMessage == null ?
+                Collections.singletonList(challengeMessage) :
+                Arrays.asList(challengeMessage, previousChallengeMessage);
+        workers.execute(() -> {
+            AttestationProtocol.VerificationResult result = null;
+            String error = null;
+            try {
+                result = AttestationProtocol.verifySerialized(context, serialized,
+                        challengeMessages);
+            } catch (final DataFormatException | GeneralSecurityException | IOException e) {
+                Log.e(TAG, "attestation verification error", e);
+                error = e.getMessage();
+            } catch (final BufferUnderflowException e) {
+                Log.e(TAG, "attestation verification error", e);
+                error = "Invalid attestation format";
+            }
+            final AttestationProtocol.VerificationResult finalResult = result;
+            final String finalError = error;
+            handler.post(() -> {
+                entry.result = finalResult;
+                entry.error = finalError;
+                notifyListener();
+            });
+        });
+        return true;
+    }
+
+    private void notifyListener() {
+        if (listener != null) {
+            listener.onEntriesChanged();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package co.copperhead.attestation;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// A loaded keystore shared across attestation operations, along with an index of its aliases.
+//
+// Loading the Android keystore and enumerating its aliases both go through binder calls, and an
+// Auditee paired with many Auditors has a persistent key for each of them. The keystore is loaded
+// once per process and the aliases are only enumerated on first use. After that the index is kept
+// up to date as keys are added and deleted through the session, so alias lookups and clearing
+// the persistent keys don't query the keystore.
+//
+// Keys must only be added and removed through the session for the index to stay accurate.
+class KeystoreSession {
+    private static final String PROVIDER = "AndroidKeyStore";
+
+    private static KeystoreSession session;
+
+    private final KeyStore keyStore;
+    // null until first use
+    private Set<String> aliases;
+
+    // Takes an already loaded keystore, allowing a software keystore to stand in for the Android
+    // keystore on a JVM.
+    KeystoreSession(final KeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    static synchronized KeystoreSession get() throws GeneralSecurityException, IOException {
+        if (session == null) {
+            final KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+            keyStore.load(null);
+            session = new KeystoreSession(keyStore);
+        }
+        return session;
+    }
+
+    // For reading keys and certificates, which isn't synchronized with the index.
+    KeyStore getKeyStore() {
+        return keyStore;
+    }
+
+    private Set<String> getAliases() throws GeneralSecurityException {
+        if (aliases == null) {
+            final Set<String> loaded = new HashSet<>();
+            final Enumeration<String> enumeration = keyStore.aliases();
+            while (enumeration.hasMoreElements()) {
+                loaded.add(enumeration.nextElement());
+            }
+            aliases = loaded;
+        }
+        return aliases;
+    }
+
+    synchronized boolean containsAlias(final String alias) throws GeneralSecurityException {
+        return getAliases().contains(alias);
+    }
+
+    // Returns the aliases starting with the given prefix, in no particular order.
+    synchronized List<String> getAliases(final String prefix) throws GeneralSecurityException {
+        final List<String> matching = new ArrayList<>();
+        for (final String alias : getAliases()) {
+            if (alias.startsWith(prefix)) {
+                matching.add(alias);
+            }
+        }
+        return Collections.unmodifiableList(matching);
+    }
+
+    // Records a key generated under the alias, which has to be done after generating a key with
+    // the keystore's KeyPairGenerator.
+    synchronized void addAlias(final String alias) throws GeneralSecurityException {
+        getAliases().add(alias);
+    }
+
+    synchronized void deleteEntry(final String alias) throws GeneralSecurityException {
+        // deleting an alias that doesn't exist is a no-op, so the keystore doesn't need to be
+        // asked unless the index has it
+        if (getAliases().contains(alias)) {
+            keyStore.deleteEntry(alias);
+            aliases.remove(alias);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package co.copperhead.attestation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.common.io.BaseEncoding;
+
+// Pinning data stored in a SharedPreferences file for each paired Auditee.
+class PreferencesPinStore implements PinStore {
+    static final String PREFERENCES_DEVICE_PREFIX = "device-";
+    private static final String KEY_PINNED_CERTIFICATE = "pinned_certificate_";
+    private static final String KEY_PINNED_CERTIFICATE_LENGTH = "pinned_certificate_length";
+    private static final String KEY_PINNED_VERIFIED_BOOT_KEY = "pinned_verified_boot_key";
+    private static final String KEY_PINNED_OS_VERSION = "pinned_os_version";
+    private static final String KEY_PINNED_OS_PATCH_LEVEL = "pinned_os_patch_level";
+    private static final String KEY_PINNED_APP_VERSION = "pinned_app_version";
+    private static final String KEY_VERIFIED_TIME_FIRST = "verified_time_first";
+    static final String KEY_VERIFIED_TIME_LAST = "verified_time_last";
+
+    private static final String KEY_PINNED_DEVICE_DEPRECATED = "pinned_device";
+    private static final String KEY_PINNED_OS_STOCK_DEPRECATED = "pinned_os_stock";
+
+    private final Context context;
+
+    PreferencesPinStore(final Context context) {
+        this.context = context;
+    }
+
+    private SharedPreferences getPreferences(final String fingerprint) {
+        return context.getSharedPreferences(PREFERENCES_DEVICE_PREFIX + fingerprint,
+                Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public PinnedDevice load(final String fingerprint) {
+        final SharedPreferences preferences = getPreferences(fingerprint);
+        if (!preferences.contains(KEY_PINNED_CERTIFICATE_LENGTH)) {
+            return null;
+        }
+
+        final byte[][] certificates = new byte[preferences.getInt(KEY_PINNED_CERTIFICATE_LENGTH, 0)][];
+        for (int i = 0; i < certificates.length; i++) {
+            certificates[i] = BaseEncoding.base64().decode(
+                    preferences.getString(KEY_PINNED_CERTIFICATE + i, ""));
+        }
+
+        // missing downgrade protection values are treated as corrupt pinning data
+        return new PinnedDevice(certificates,
+                preferences.getString(KEY_PINNED_VERIFIED_BOOT_KEY, null),
+                preferences.getInt(KEY_PINNED_OS_VERSION, Integer.MAX_VALUE),
+                preferences.getInt(KEY_PINNED_OS_PATCH_LEVEL, Integer.MAX_VALUE),
+                preferences.getInt(KEY_PINNED_APP_VERSION, Integer.MAX_VALUE),
+                preferences.getLong(KEY_VERIFIED_TIME_FIRST, 0),
+                DeviceStateWriter.getVerifiedTimeLast(fingerprint, preferences));
+    }
+
+    @Override
+    public void pair(final String fingerprint, final PinnedDevice device) {
+        final SharedPreferences.Editor editor = getPreferences(fingerprint).edit();
+
+        editor.putInt(KEY_PINNED_CERTIFICATE_LENGTH, device.certificates.length);
+        for (int i = 0; i < device.certificates.length; i++) {
+            editor.putString(KEY_PINNED_CERTIFICATE + i,
+                    BaseEncoding.base64().encode(device.certificates[i]));
+        }
+
+        editor.putString(KEY_PINNED_VERIFIED_BOOT_KEY, device.verifiedBootKey);
+        editor.putInt(KEY_PINNED_OS_VERSION, device.osVersion);
+        editor.putInt(KEY_PINNED_OS_PATCH_LEVEL, device.osPatchLevel);
+        editor.putInt(KEY_PINNED_APP_VERSION, device.appVersion);
+
+        editor.putLong(KEY_VERIFIED_TIME_FIRST, device.verifiedTimeFirst);
+        editor.putLong(KEY_VERIFIED_TIME_LAST, device.verifiedTimeLast);
+
+        // pairing data is pinned immediately rather than going through the write-behind buffer
+        DeviceStateWriter.commit(fingerprint, editor);
+    }
+
+    @Override
+    public void update(final String fingerprint, final PinnedDevice previous,
+            final String verifiedBootKey, final int osVersion, final int osPatchLevel,
+            final int appVersion, final long verifiedTime) {
+        final SharedPreferences preferences = getPreferences(fingerprint);
+
+        // downgrade protection values and migrations are committed synchronously, while an
+        // unchanged device only needs the deferred update of the last verified time
+        if (osVersion != previous.osVersion ||
+                osPatchLevel != previous.osPatchLevel ||
+                appVersion != previous.appVersion ||
+                previous.verifiedBootKey == null || // TODO: remove in a future release
+                preferences.contains(KEY_PINNED_DEVICE_DEPRECATED) || // TODO: remove in a future release
+                preferences.contains(KEY_PINNED_OS_STOCK_DEPRECATED)) { // TODO: remove in a future release
+            DeviceStateWriter.commit(fingerprint, preferences.edit()
+                    .putInt(KEY_PINNED_OS_VERSION, osVersion)
+                    .putInt(KEY_PINNED_OS_PATCH_LEVEL, osPatchLevel)
+                    .putInt(KEY_PINNED_APP_VERSION, appVersion)
+                    .putLong(KEY_VERIFIED_TIME_LAST, verifiedTime)
+                    .putString(KEY_PINNED_VERIFIED_BOOT_KEY, verifiedBootKey) // TODO: remove in a future release
+                    .remove(KEY_PINNED_DEVICE_DEPRECATED) // TODO: remove in a future release
+                    .remove(KEY_PINNED_OS_STOCK_DEPRECATED)); // TODO: remove in a future release
+        } else {
+            DeviceStateWriter.deferVerifiedTimeLast(fingerprint, preferences, verifiedTime);
+        }
+    }
+}
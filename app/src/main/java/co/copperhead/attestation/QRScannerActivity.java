@@ -61,7 +61,7 @@ public class QRScannerActivity extends Activity implements ZXingScannerView.Resu
         finish();
     }
 
-    private static class SquareViewFinderView extends ViewFinderView {
+    static class SquareViewFinderView extends ViewFinderView {
         private static final int LABEL_TEXT_SIZE_SP = 14;
         private final Paint paint = new Paint();
         private String labelText;
@@ -0,0 +1,59 @@
+package co.copperhead.attestation;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+// Encodes binary payloads as QR code pixels at one pixel per module, including the quiet zone.
+// Scaling up to the screen is left to the view, so the result doesn't depend on its size. Kept
+// free of Android dependencies so the encoding can be run and measured on a plain JVM.
+class QrCodeEncoder {
+    static final int BLACK = 0xFF000000;
+    static final int WHITE = 0xFFFFFFFF;
+
+    static class Pixels {
+        final int[] pixels;
+        final int width;
+        final int height;
+
+        Pixels(final int[] pixels, final int width, final int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private QrCodeEncoder() {
+    }
+
+    static Pixels encode(final byte[] contents) {
+        final BitMatrix result;
+        try {
+            final QRCodeWriter writer = new QRCodeWriter();
+            final Map<EncodeHintType,Object> hints = new EnumMap<>(EncodeHintType.class);
+            hints.put(EncodeHintType.CHARACTER_SET, "ISO-8859-1");
+            // a size of 0 leaves the matrix at its minimum size of one pixel per module
+            result = writer.encode(new String(contents, StandardCharsets.ISO_8859_1),
+                    BarcodeFormat.QR_CODE, 0, 0, hints);
+        } catch (WriterException e) {
+            throw new RuntimeException(e);
+        }
+
+        final int width = result.getWidth();
+        final int height = result.getHeight();
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[offset + x] = result.get(x, y) ? BLACK : WHITE;
+            }
+        }
+        return new Pixels(pixels, width, height);
+    }
+}
@@ -0,0 +1,73 @@
+package co.copperhead.attestation;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Renders QR codes on a background thread and keeps the recently rendered bitmaps in memory.
+// The cache is static so it outlives the activity, letting a configuration change show the same
+// QR code again without encoding it.
+//
+// Bitmaps are rendered at one pixel per module and scaled up by the ImageView without filtering,
+// so the same bitmap serves any view size and orientation. The largest QR code is 185 pixels
+// across with its quiet zone, under 70 KiB as RGB_565.
+class QrCodeRenderer {
+    private static final int CACHE_SIZE_BYTES = 1024 * 1024;
+
+    interface Callback {
+        // Called on the main thread.
+        void onRendered(Bitmap bitmap);
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    // keyed by a digest of the payload rather than holding onto it
+    private static final LruCache<String, Bitmap> cache =
+            new LruCache<String, Bitmap>(CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(final String key, final Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    private QrCodeRenderer() {
+    }
+
+    private static String getKey(final byte[] contents) {
+        return Hashing.sha256().hashBytes(contents).toString();
+    }
+
+    static Bitmap getCached(final byte[] contents) {
+        return cache.get(getKey(contents));
+    }
+
+    static void render(final byte[] contents, final Callback callback) {
+        final String key = getKey(contents);
+        executor.execute(() -> {
+            Bitmap bitmap = cache.get(key);
+            if (bitmap == null) {
+                final QrCodeEncoder.Pixels pixels = QrCodeEncoder.encode(contents);
+                bitmap = Bitmap.createBitmap(pixels.pixels, pixels.width, pixels.height,
+                        Bitmap.Config.RGB_565);
+                cache.put(key, bitmap);
+            }
+            final Bitmap result = bitmap;
+            handler.post(() -> callback.onRendered(result));
+        });
+    }
+
+    // Shows a rendered QR code, scaled to fit the view with the modules kept sharp.
+    static void show(final ImageView view, final Bitmap bitmap) {
+        final BitmapDrawable drawable = new BitmapDrawable(view.getResources(), bitmap);
+        drawable.setFilterBitmap(false);
+        view.setImageDrawable(drawable);
+    }
+}
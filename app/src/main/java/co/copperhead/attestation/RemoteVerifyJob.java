@@ -14,40 +14,43 @@ import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import com.google.common.io.BaseEncoding;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.GeneralSecurityException;
 
 import co.copperhead.attestation.AttestationProtocol.AttestationResult;
 
 public class RemoteVerifyJob extends JobService {
     private static final String TAG = "RemoteVerifyJob";
-    private static final int PERIODIC_JOB_ID = 0;
-    private static final int FIRST_RUN_JOB_ID = 1;
+    // The chain of checks alternates between two job ids, since scheduling a job with the id of
+    // the running one would stop it before it reports being finished.
+    private static final int JOB_ID = 0;
+    private static final int ALTERNATE_JOB_ID = 2;
+    // separate first run job scheduled by previous versions alongside a periodic job
+    private static final int LEGACY_FIRST_RUN_JOB_ID = 1;
     static final String DOMAIN = "attestation.copperhead.co";
-    private static final String CHALLENGE_URL = "https://" + DOMAIN + "/challenge";
-    private static final String VERIFY_URL = "https://" + DOMAIN + "/verify";
+    private static final String BASE_URL = "https://" + DOMAIN;
     private static final int CONNECT_TIMEOUT = 60000;
     private static final int READ_TIMEOUT = 60000;
     private static final int MIN_INTERVAL = 60 * 60;
     private static final int MAX_INTERVAL = 7 * 24 * 60 * 60;
-    private static final int OVERRIDE_OFFSET_MS = 10 * 60 * 1000;
     private static final String STATE_PREFIX = "remote_";
     static final String KEY_USER_ID = "remote_user_id";
     static final String KEY_SUBSCRIBE_KEY = "remote_subscribe_key";
+    static final String KEY_NEXT_CHALLENGE = "remote_next_challenge";
+    private static final String KEY_INTERVAL = "remote_interval";
+    private static final String KEY_FAILURES = "remote_failures";
+    private static final String KEY_SCHEDULE_SEED = "remote_schedule_seed";
     private static final int NOTIFICATION_ID = 1;
     private static final String NOTIFICATION_CHANNEL_ID = "remote_verification";
 
     private RemoteVerifyTask task;
 
     static boolean isScheduled(final Context context) {
-        return context.getSystemService(JobScheduler.class).getPendingJob(PERIODIC_JOB_ID) != null;
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        return scheduler.getPendingJob(JOB_ID) != null ||
+                scheduler.getPendingJob(ALTERNATE_JOB_ID) != null;
     }
 
     static class InvalidInterval extends Exception {
@@ -56,47 +59,156 @@ public class RemoteVerifyJob extends JobService {
         }
     }
 
-    static void schedule(final Context context, final int interval) throws InvalidInterval {
+    private static void checkInterval(final int interval) throws InvalidInterval {
         if (interval < MIN_INTERVAL || interval > MAX_INTERVAL) {
             throw new InvalidInterval();
         }
-        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
-        final JobInfo jobInfo = scheduler.getPendingJob(PERIODIC_JOB_ID);
-        final long intervalMillis = interval * 1000;
-        final long flexMillis = intervalMillis / 10;
-        if (jobInfo != null &&
-                jobInfo.getIntervalMillis() == intervalMillis &&
-                jobInfo.getFlexMillis() == flexMillis) {
-            Log.d(TAG, "job already registered");
-            return;
+    }
+
+    private static RemoteVerifySchedule getSchedule(final SharedPreferences preferences) {
+        if (!preferences.contains(KEY_SCHEDULE_SEED)) {
+            preferences.edit()
+                    .putLong(KEY_SCHEDULE_SEED, ChallengeGenerator.getRandom().nextLong())
+                    .apply();
         }
+        return new RemoteVerifySchedule(preferences.getLong(KEY_SCHEDULE_SEED, 0));
+    }
+
+    // Checks run as a chain of one-off jobs rather than a periodic job, since the window for each
+    // one is placed by RemoteVerifySchedule.
+    private static void schedule(final Context context, final int jobId,
+            final RemoteVerifySchedule.Window window) {
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
         final ComponentName serviceName = new ComponentName(context, RemoteVerifyJob.class);
-        if (jobInfo == null) {
-            if (scheduler.schedule(new JobInfo.Builder(FIRST_RUN_JOB_ID, serviceName)
-                        .setOverrideDeadline(intervalMillis - OVERRIDE_OFFSET_MS)
-                        .setPersisted(true)
-                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                        .build()) == JobScheduler.RESULT_FAILURE) {
-                throw new RuntimeException("job schedule failed");
-            }
-        }
-        if (scheduler.schedule(new JobInfo.Builder(PERIODIC_JOB_ID, serviceName)
-                .setPeriodic(intervalMillis, flexMillis)
+        if (scheduler.schedule(new JobInfo.Builder(jobId, serviceName)
+                .setMinimumLatency(window.delayMillis)
+                .setOverrideDeadline(window.deadlineMillis)
                 .setPersisted(true)
                 .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
                 .build()) == JobScheduler.RESULT_FAILURE) {
             throw new RuntimeException("job schedule failed");
         }
+        Log.d(TAG, "next remote verification in " + window.delayMillis / 1000 + "s");
+    }
+
+    static void schedule(final Context context, final int interval) throws InvalidInterval {
+        checkInterval(interval);
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (isScheduled(context) && preferences.getInt(KEY_INTERVAL, 0) == interval) {
+            Log.d(TAG, "job already registered");
+            return;
+        }
+        preferences.edit()
+                .putInt(KEY_INTERVAL, interval)
+                .putInt(KEY_FAILURES, 0)
+                .apply();
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        scheduler.cancel(ALTERNATE_JOB_ID);
+        scheduler.cancel(LEGACY_FIRST_RUN_JOB_ID);
+        schedule(context, JOB_ID, getSchedule(preferences).firstRun(interval * 1000L));
+    }
+
+    // Schedules the check following the one running as the given job, under the other job id.
+    private static void scheduleNext(final Context context, final int jobId,
+            final boolean failure, final long retryAfterMillis) {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final int interval = preferences.getInt(KEY_INTERVAL, 0);
+        if (interval == 0 || !preferences.contains(KEY_USER_ID)) {
+            // disabled while the check was running
+            return;
+        }
+        final RemoteVerifySchedule schedule = getSchedule(preferences);
+        final long intervalMillis = interval * 1000L;
+        final int nextJobId = jobId == JOB_ID ? ALTERNATE_JOB_ID : JOB_ID;
+        if (failure) {
+            final int failures = preferences.getInt(KEY_FAILURES, 0) + 1;
+            preferences.edit().putInt(KEY_FAILURES, failures).apply();
+            schedule(context, nextJobId,
+                    schedule.retry(failures, retryAfterMillis, intervalMillis));
+        } else {
+            preferences.edit().putInt(KEY_FAILURES, 0).apply();
+            schedule(context, nextJobId, schedule.next(System.currentTimeMillis(), intervalMillis));
+        }
     }
 
     static void cancel(final Context context) {
         final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
-        scheduler.cancel(PERIODIC_JOB_ID);
-        scheduler.cancel(FIRST_RUN_JOB_ID);
+        scheduler.cancel(JOB_ID);
+        scheduler.cancel(ALTERNATE_JOB_ID);
+        scheduler.cancel(LEGACY_FIRST_RUN_JOB_ID);
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(KEY_INTERVAL)
+                .remove(KEY_FAILURES)
+                .apply();
+    }
+
+    private static void verify(final Context context)
+            throws GeneralSecurityException, IOException, InvalidInterval {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final long userId = preferences.getLong(KEY_USER_ID, -1);
+        if (userId == -1) {
+            throw new IOException("missing userId");
+        }
+        final String subscribeKey = preferences.getString(KEY_SUBSCRIBE_KEY, null);
+        if (subscribeKey == null) {
+            throw new IOException("missing subscribeKey");
+        }
+
+        final RemoteVerifyClient client = new RemoteVerifyClient(BASE_URL, CONNECT_TIMEOUT,
+                READ_TIMEOUT);
+
+        // a challenge issued by the previous verification is only used once
+        final String nextChallenge = preferences.getString(KEY_NEXT_CHALLENGE, null);
+        preferences.edit().remove(KEY_NEXT_CHALLENGE).apply();
+        if (nextChallenge != null) {
+            try {
+                verify(context, preferences, client, userId, subscribeKey,
+                        BaseEncoding.base64().decode(nextChallenge));
+                return;
+            } catch (final RemoteVerifyClient.ResponseException | IllegalArgumentException e) {
+                // it may have expired or been issued by a server that has since restarted
+                Log.d(TAG, "pre-issued challenge rejected, requesting a new one", e);
+            }
+        }
+
+        final byte[] challengeMessage = client.fetchChallenge();
+        Log.d(TAG, "received random challenge: " + Utils.logFormatBytes(challengeMessage));
+        verify(context, preferences, client, userId, subscribeKey, challengeMessage);
+    }
+
+    private static void verify(final Context context, final SharedPreferences preferences,
+            final RemoteVerifyClient client, final long userId, final String subscribeKey,
+            final byte[] challengeMessage)
+            throws GeneralSecurityException, IOException, InvalidInterval {
+        final AttestationResult result = AttestationProtocol.generateSerialized(
+                context, challengeMessage, Long.toString(userId), STATE_PREFIX);
+
+        final RemoteVerifyClient.Result response;
+        try {
+            response = client.verify(userId, result.pairing ? subscribeKey : null,
+                    result.serialized, true);
+        } catch (final RemoteVerifyClient.ResponseException e) {
+            if (result.pairing) {
+                AttestationProtocol.clearAuditee(STATE_PREFIX, Long.toString(userId));
+            }
+            throw e;
+        }
+
+        checkInterval(response.verifyInterval);
+        final SharedPreferences.Editor editor = preferences.edit()
+                .putString(KEY_SUBSCRIBE_KEY, response.subscribeKey)
+                .putInt(KEY_INTERVAL, response.verifyInterval);
+        if (response.nextChallengeMessage != null) {
+            editor.putString(KEY_NEXT_CHALLENGE,
+                    BaseEncoding.base64().encode(response.nextChallengeMessage));
+        }
+        editor.apply();
     }
 
     private class RemoteVerifyTask extends AsyncTask<Void, Void, Boolean> {
         final JobParameters params;
+        // set once the next job in the chain is scheduled, after which this one isn't retried
+        volatile boolean nextScheduled;
 
         RemoteVerifyTask(final JobParameters params) {
             this.params = params;
@@ -104,77 +216,31 @@ public class RemoteVerifyJob extends JobService {
 
         @Override
         protected void onPostExecute(final Boolean failure) {
-            jobFinished(params, failure);
+            // failures are retried by the next job in the chain rather than the JobScheduler
+            // backoff policy
+            jobFinished(params, false);
         }
 
         @Override
         protected Boolean doInBackground(final Void... params) {
             final Context context = RemoteVerifyJob.this;
             boolean failure = false;
-            HttpURLConnection connection = null;
+            long retryAfterMillis = 0;
             try {
-                connection = (HttpURLConnection) new URL(CHALLENGE_URL).openConnection();
-                connection.setConnectTimeout(CONNECT_TIMEOUT);
-                connection.setReadTimeout(READ_TIMEOUT);
-                connection.setRequestMethod("POST");
-
-                final DataInputStream input = new DataInputStream(connection.getInputStream());
-                final byte[] challengeMessage = new byte[AttestationProtocol.CHALLENGE_MESSAGE_LENGTH];
-                input.readFully(challengeMessage);
-                input.close();
-
-                Log.d(TAG, "received random challenge: " + Utils.logFormatBytes(challengeMessage));
-
-                final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-                final long userId = preferences.getLong(KEY_USER_ID, -1);
-                if (userId == -1) {
-                    throw new IOException("missing userId");
-                }
-                final String subscribeKey = preferences.getString(KEY_SUBSCRIBE_KEY, null);
-                if (subscribeKey == null) {
-                    throw new IOException("missing subscribeKey");
-                }
-
-                final AttestationResult result = AttestationProtocol.generateSerialized(
-                        context, challengeMessage, Long.toString(userId), STATE_PREFIX);
-
-                connection = (HttpURLConnection) new URL(VERIFY_URL).openConnection();
-                connection.setConnectTimeout(CONNECT_TIMEOUT);
-                connection.setReadTimeout(READ_TIMEOUT);
-                connection.setDoOutput(true);
-                final String extra = result.pairing ? " " + subscribeKey : "";
-                connection.setRequestProperty("Authorization", "Auditor " + userId + extra);
-
-                final OutputStream output = connection.getOutputStream();
-                output.write(result.serialized);
-                output.close();
-
-                final int responseCode = connection.getResponseCode();
-                if (responseCode == 200) {
-                    try (final InputStream postResponse = connection.getInputStream()) {
-                        final BufferedReader postReader = new BufferedReader(new InputStreamReader(postResponse));
-                        final String[] tokens = postReader.readLine().split(" ");
-                        if (tokens.length < 2) {
-                            throw new GeneralSecurityException("missing fields");
-                        }
-                        preferences.edit().putString(KEY_SUBSCRIBE_KEY, tokens[0]).apply();
-                        schedule(context, Integer.parseInt(tokens[1]));
-                    }
-                } else {
-                    if (result.pairing) {
-                        AttestationProtocol.clearAuditee(STATE_PREFIX, Long.toString(userId));
-                    }
-                    throw new IOException("response code: " + responseCode);
-                }
-            } catch (final GeneralSecurityException | IOException | InvalidInterval |
-                    NumberFormatException e) {
+                verify(context);
+            } catch (final GeneralSecurityException | IOException | InvalidInterval e) {
                 Log.e(TAG, "remote verify failure", e);
                 failure = true;
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+                if (e instanceof RemoteVerifyClient.ResponseException) {
+                    retryAfterMillis =
+                            ((RemoteVerifyClient.ResponseException) e).retryAfterSeconds * 1000L;
                 }
             }
+            // a stopped job is retried by the JobScheduler instead
+            if (!isCancelled()) {
+                scheduleNext(context, params.getJobId(), failure, retryAfterMillis);
+                nextScheduled = true;
+            }
 
             final NotificationManager manager = context.getSystemService(NotificationManager.class);
             final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
@@ -197,8 +263,8 @@ public class RemoteVerifyJob extends JobService {
 
     @Override
     public boolean onStartJob(final JobParameters params) {
-        if (params.getJobId() == FIRST_RUN_JOB_ID && params.isOverrideDeadlineExpired()) {
-            Log.d(TAG, "override deadline expired");
+        if (params.getJobId() == LEGACY_FIRST_RUN_JOB_ID) {
+            Log.d(TAG, "dropping legacy first run job");
             return false;
         }
         task = new RemoteVerifyTask(params);
@@ -209,6 +275,6 @@ public class RemoteVerifyJob extends JobService {
     @Override
     public boolean onStopJob(final JobParameters params) {
         task.cancel(true);
-        return true;
+        return !task.nextScheduled;
     }
 }
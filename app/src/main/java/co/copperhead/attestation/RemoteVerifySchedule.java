@@ -0,0 +1,86 @@
+package co.copperhead.attestation;
+
+// Scheduling for remote verification that spreads a fleet of devices evenly over the verification
+// interval instead of letting them check in together.
+//
+// The first check after enabling runs right away so pairing isn't delayed. After that, each device
+// has a fixed phase within the interval derived from a per-device seed, and checks are scheduled
+// for the next occurrence of that phase on the wall clock. Devices coming back from an
+// outage or an update at the same moment return to their own slots rather than staying in step.
+// Failures are retried with capped exponential backoff, randomized by the seed and the attempt,
+// and never sooner than a Retry-After requested by the server.
+//
+// This is only arithmetic on the times it's given, so fleets can be simulated on a JVM.
+class RemoteVerifySchedule {
+    static final long MIN_BACKOFF_MS = 60 * 1000;
+    static final long MAX_BACKOFF_MS = 6 * 60 * 60 * 1000;
+    // a job is allowed to start up to this fraction of its delay or interval late
+    private static final int FLEX_DIVISOR = 10;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // Relative to the time the schedule was computed.
+    static class Window {
+        final long delayMillis;
+        final long deadlineMillis;
+
+        Window(final long delayMillis, final long deadlineMillis) {
+            this.delayMillis = delayMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private final long seed;
+
+    RemoteVerifySchedule(final long seed) {
+        this.seed = seed;
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // Uniformly distributed in [0, bound) for each salt, and always the same for a given seed.
+    private long uniform(final long salt, final long bound) {
+        return Math.floorMod(mix(seed + (salt + 1) * GOLDEN_GAMMA), bound);
+    }
+
+    long getPhaseMillis(final long intervalMillis) {
+        return uniform(0, intervalMillis);
+    }
+
+    // Returns the first time at or after the given one matching the device's phase.
+    long getSlotMillis(final long timeMillis, final long intervalMillis) {
+        final long phase = getPhaseMillis(intervalMillis);
+        final long periods = Math.floorDiv(timeMillis - phase + intervalMillis - 1, intervalMillis);
+        return phase + periods * intervalMillis;
+    }
+
+    // The first check after enabling remote verification, which pairs with the server. It isn't
+    // jittered since enabling is a user action rather than something the fleet does together.
+    Window firstRun(final long intervalMillis) {
+        return new Window(0, intervalMillis / FLEX_DIVISOR);
+    }
+
+    // The check following a successful one. The next slot at least half an interval away is used,
+    // so a device whose check ran late doesn't immediately check again.
+    Window next(final long nowMillis, final long intervalMillis) {
+        final long delay = getSlotMillis(nowMillis + intervalMillis / 2, intervalMillis) - nowMillis;
+        return new Window(delay, delay + intervalMillis / FLEX_DIVISOR);
+    }
+
+    // The retry after the given number of consecutive failures, starting from 1. A retryAfterMillis
+    // of 0 means the server didn't request one.
+    Window retry(final int failures, final long retryAfterMillis, final long intervalMillis) {
+        final long cap = Math.min(MAX_BACKOFF_MS, intervalMillis);
+        final int doublings = Math.min(Math.max(failures - 1, 0), 30);
+        final long backoff = Math.min(MIN_BACKOFF_MS << doublings, cap);
+        // half of the backoff is fixed and the other half is jitter, which is kept on top of a
+        // Retry-After so the devices told to wait don't all come back at the same moment
+        final long delay = Math.max(backoff / 2, retryAfterMillis) +
+                uniform(failures, backoff / 2 + 1);
+        return new Window(delay, delay + Math.max(delay / FLEX_DIVISOR, MIN_BACKOFF_MS));
+    }
+}
@@ -25,7 +25,6 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.GeneralSecurityException;
-import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.spec.ECGenParameterSpec;
 import java.util.Enumeration;
@@ -37,6 +36,8 @@ public class SubmitSampleJob extends JobService {
     private static final String TAG = "SubmitSampleJob";
     private static final int JOB_ID = 2;
     private static final String SUBMIT_URL = "https://" + RemoteVerifyJob.DOMAIN + "/submit";
+    private static final String SUBMIT_BUNDLE_URL =
+            "https://" + RemoteVerifyJob.DOMAIN + SampleBundle.SUBMIT_PATH;
     private static final int CONNECT_TIMEOUT = 60000;
     private static final int READ_TIMEOUT = 60000;
     private static final int NOTIFICATION_ID = 2;
@@ -73,27 +74,47 @@ public class SubmitSampleJob extends JobService {
             jobFinished(params, success);
         }
 
-        @Override
-        protected Boolean doInBackground(final Void... params) {
-            HttpURLConnection connection = null;
-            try {
-                connection = (HttpURLConnection) new URL(SUBMIT_URL).openConnection();
-                connection.setConnectTimeout(CONNECT_TIMEOUT);
-                connection.setReadTimeout(READ_TIMEOUT);
-                connection.setDoOutput(true);
+        private HttpURLConnection openConnection(final String url) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setDoOutput(true);
+            return connection;
+        }
 
-                final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-                keyStore.load(null);
+        private int submitBundle(final Certificate[] certs)
+                throws GeneralSecurityException, IOException {
+            final HttpURLConnection connection = openConnection(SUBMIT_BUNDLE_URL);
+            try {
+                connection.setRequestProperty("Content-Type", SampleBundle.CONTENT_TYPE);
+                // the bundle is streamed out as it's compressed rather than buffered to find the
+                // length up front
+                connection.setChunkedStreamingMode(0);
 
-                final KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS_SAMPLE,
-                        KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
-                        .setAlgorithmParameterSpec(new ECGenParameterSpec(AttestationProtocol.EC_CURVE))
-                        .setDigests(AttestationProtocol.KEY_DIGEST)
-                        .setAttestationChallenge("sample".getBytes());
-                AttestationProtocol.generateKeyPair(KEY_ALGORITHM_EC, builder.build());
-                final Certificate[] certs = keyStore.getCertificateChain(KEYSTORE_ALIAS_SAMPLE);
-                keyStore.deleteEntry(KEYSTORE_ALIAS_SAMPLE);
+                final Process process = new ProcessBuilder("getprop").start();
+                try (final InputStream propertyStream = process.getInputStream();
+                        final SampleBundle.Writer writer =
+                                new SampleBundle.Writer(connection.getOutputStream())) {
+                    for (final Certificate cert : certs) {
+                        writer.writeCertificate(cert.getEncoded());
+                    }
+                    writer.writeProperties(propertyStream);
+                    final StructUtsname utsname = Os.uname();
+                    writer.writeUname(utsname.toString());
+                    writer.writeSystemProperties(System.getProperties());
+                    writer.finish();
+                }
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        }
 
+        // Plain text submission for collection services without bundle support.
+        private int submitLegacy(final Certificate[] certs)
+                throws GeneralSecurityException, IOException {
+            final HttpURLConnection connection = openConnection(SUBMIT_URL);
+            try {
                 final Process process = new ProcessBuilder("getprop").start();
                 try (final InputStream propertyStream = process.getInputStream();
                         final OutputStream output = connection.getOutputStream()) {
@@ -119,18 +140,39 @@ public class SubmitSampleJob extends JobService {
                         output.write("\n".getBytes());
                     }
                 }
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        protected Boolean doInBackground(final Void... params) {
+            try {
+                final KeystoreSession session = KeystoreSession.get();
 
-                final int responseCode = connection.getResponseCode();
+                final KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS_SAMPLE,
+                        KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                        .setAlgorithmParameterSpec(new ECGenParameterSpec(AttestationConstants.EC_CURVE))
+                        .setDigests(AttestationProtocol.KEY_DIGEST)
+                        .setAttestationChallenge("sample".getBytes());
+                AttestationProtocol.generateKeyPair(KEY_ALGORITHM_EC, builder.build());
+                session.addAlias(KEYSTORE_ALIAS_SAMPLE);
+                final Certificate[] certs =
+                        session.getKeyStore().getCertificateChain(KEYSTORE_ALIAS_SAMPLE);
+                session.deleteEntry(KEYSTORE_ALIAS_SAMPLE);
+
+                int responseCode = submitBundle(certs);
+                if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    // the collection service doesn't accept bundles yet
+                    responseCode = submitLegacy(certs);
+                }
                 if (responseCode != 200) {
                     throw new IOException("response code: " + responseCode);
                 }
             } catch (final GeneralSecurityException | IOException e) {
                 Log.e(TAG, "submit failure", e);
                 return true;
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
             }
 
             final Context context = SubmitSampleJob.this;
@@ -0,0 +1,469 @@
+package co.copperhead.attestation;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Append-only history of successful verifications for each paired Auditee.
+//
+// Each device has a log of fixed-width records in the order they were verified:
+//
+// long time
+// int osVersion
+// int osPatchLevel
+// int appVersion
+// int osEnforcedFlags
+//
+// Time range queries and counts use a sparse in-memory index with the time of every
+// INDEX_INTERVAL-th record, so only the records in the requested range are read. Records are kept
+// in non-decreasing time order by clamping the time of an appended record to that of the previous
+// one, so a wall clock stepping backwards records a verification at the time of the last one
+// rather than out of order, where compaction would discard it as already folded.
+//
+// Once the log grows past MAX_RECORDS, it is compacted in the background by folding records into
+// per-day summaries. Records older than RETENTION_MS are always folded, along with the oldest
+// records beyond the most recent MAX_RECORDS / 2, so the log stays bounded even if a device is
+// verified more often than that within the retention period. A day can be folded in parts, in
+// which case its summary is extended by the next compaction.
+//
+// The summaries are in a second file, starting with the time before which every record has been
+// folded, followed by fixed-width summaries:
+//
+// long foldedBefore
+//
+// long dayStart
+// int count
+// int osVersion (last verification of the day)
+// int osPatchLevel (last verification of the day)
+// int appVersion (last verification of the day)
+// int osEnforcedFlagsAny (flags set in any verification of the day)
+// int osEnforcedFlagsAll (flags set in every verification of the day)
+//
+// Both files are replaced by writing a temporary file and renaming it over the old one. The
+// summaries are replaced first, and records before foldedBefore are dropped from the log rather
+// than folded again, so compaction interrupted between the two leaves nothing counted twice.
+class VerificationHistory {
+    private static final String TAG = "VerificationHistory";
+
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String DAILY_SUFFIX = ".daily";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int RECORD_SIZE = 8 + 4 * 4;
+    private static final int SUMMARY_SIZE = 8 + 4 * 6;
+    private static final int SUMMARY_HEADER_SIZE = 8;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int MAX_RECORDS = 4096;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    private static final long RETENTION_MS = 30 * DAY_MS;
+
+    static class Entry {
+        final long time;
+        final int osVersion;
+        final int osPatchLevel;
+        final int appVersion;
+        final int osEnforcedFlags;
+
+        Entry(final long time, final int osVersion, final int osPatchLevel, final int appVersion,
+                final int osEnforcedFlags) {
+            this.time = time;
+            this.osVersion = osVersion;
+            this.osPatchLevel = osPatchLevel;
+            this.appVersion = appVersion;
+            this.osEnforcedFlags = osEnforcedFlags;
+        }
+    }
+
+    static class DailySummary {
+        final long dayStart;
+        final int count;
+        final int osVersion;
+        final int osPatchLevel;
+        final int appVersion;
+        final int osEnforcedFlagsAny;
+        final int osEnforcedFlagsAll;
+
+        DailySummary(final long dayStart, final int count, final int osVersion,
+                final int osPatchLevel, final int appVersion, final int osEnforcedFlagsAny,
+                final int osEnforcedFlagsAll) {
+            this.dayStart = dayStart;
+            this.count = count;
+            this.osVersion = osVersion;
+            this.osPatchLevel = osPatchLevel;
+            this.appVersion = appVersion;
+            this.osEnforcedFlagsAny = osEnforcedFlagsAny;
+            this.osEnforcedFlagsAll = osEnforcedFlagsAll;
+        }
+    }
+
+    // sparse index of record times, keyed by device fingerprint
+    private static final Map<String, long[]> indexes = new HashMap<>();
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor();
+
+    private static File getDirectory(final Context context) {
+        return new File(context.getFilesDir(), HISTORY_DIRECTORY);
+    }
+
+    private static File getLog(final Context context, final String fingerprint) {
+        return new File(getDirectory(context), fingerprint + LOG_SUFFIX);
+    }
+
+    private static File getDaily(final Context context, final String fingerprint) {
+        return new File(getDirectory(context), fingerprint + DAILY_SUFFIX);
+    }
+
+    static synchronized void append(final Context context, final String fingerprint,
+            final Entry entry) throws IOException {
+        final File directory = getDirectory(context);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create " + directory);
+        }
+
+        final File log = getLog(context, fingerprint);
+        final long records = log.length() / RECORD_SIZE;
+        // the log may have been emptied by compaction, leaving only the summaries' header
+        long time = Math.max(entry.time, readFoldedBefore(getDaily(context, fingerprint)));
+        try (final RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            // truncate a partial record left behind by an interrupted write
+            file.setLength(records * RECORD_SIZE);
+            if (records > 0) {
+                file.seek((records - 1) * RECORD_SIZE);
+                time = Math.max(time, file.readLong());
+            }
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            putEntry(record, new Entry(time, entry.osVersion, entry.osPatchLevel,
+                    entry.appVersion, entry.osEnforcedFlags));
+            file.seek(records * RECORD_SIZE);
+            file.write(record.array());
+        }
+
+        final long[] index = indexes.get(fingerprint);
+        if (index != null && records % INDEX_INTERVAL == 0) {
+            final long[] extended = new long[index.length + 1];
+            System.arraycopy(index, 0, extended, 0, index.length);
+            extended[index.length] = time;
+            indexes.put(fingerprint, extended);
+        }
+
+        if (records + 1 > MAX_RECORDS && (records + 1) % INDEX_INTERVAL == 0) {
+            compactor.execute(() -> {
+                try {
+                    compact(context, fingerprint, System.currentTimeMillis() - RETENTION_MS);
+                } catch (final IOException e) {
+                    Log.e(TAG, "history compaction failed", e);
+                }
+            });
+        }
+    }
+
+    // Returns the individual verifications in the range [from, to].
+    static synchronized List<Entry> query(final Context context, final String fingerprint,
+            final long from, final long to) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final File log = getLog(context, fingerprint);
+        if (!log.exists()) {
+            return entries;
+        }
+
+        try (final RandomAccessFile file = new RandomAccessFile(log, "r")) {
+            final FileChannel channel = file.getChannel();
+            final long records = channel.size() / RECORD_SIZE;
+            final long[] index = getIndex(fingerprint, channel, records);
+
+            final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * INDEX_INTERVAL);
+            long position = findRecord(channel, index, records, from) * RECORD_SIZE;
+            while (position < records * RECORD_SIZE) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), records * RECORD_SIZE - position));
+                read(channel, buffer, position);
+                position += buffer.limit();
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    final Entry entry = getEntry(buffer);
+                    if (entry.time > to) {
+                        return entries;
+                    }
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Returns the number of verifications from the given time onwards without reading the
+    // records. Days compacted into summaries are counted in full if they overlap the range, as
+    // with querySummaries.
+    static synchronized int count(final Context context, final String fingerprint,
+            final long from) throws IOException {
+        final File daily = getDaily(context, fingerprint);
+        final long foldedBefore = readFoldedBefore(daily);
+        long count = 0;
+
+        final File log = getLog(context, fingerprint);
+        if (log.exists()) {
+            try (final RandomAccessFile file = new RandomAccessFile(log, "r")) {
+                final FileChannel channel = file.getChannel();
+                final long records = channel.size() / RECORD_SIZE;
+                final long[] index = getIndex(fingerprint, channel, records);
+                // records before foldedBefore were already folded by an interrupted compaction
+                count = records - findRecord(channel, index, records, Math.max(from, foldedBefore));
+            }
+        }
+
+        if (daily.exists()) {
+            for (final DailySummary summary : readSummaries(daily)) {
+                if (summary.dayStart + DAY_MS > from) {
+                    count += summary.count;
+                }
+            }
+        }
+        return (int) count;
+    }
+
+    // Returns the number of the first record at or after the given time, or the number of records
+    // if there's none. Only the block of records following the last indexed one before the time
+    // is read.
+    private static long findRecord(final FileChannel channel, final long[] index,
+            final long records, final long time) throws IOException {
+        int low = 0;
+        int high = index.length - 1;
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (index[mid] < time) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+
+        final long first = (long) block * INDEX_INTERVAL;
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * INDEX_INTERVAL);
+        buffer.limit((int) Math.min(INDEX_INTERVAL, records - first) * RECORD_SIZE);
+        read(channel, buffer, first * RECORD_SIZE);
+        for (int i = 0; i < buffer.limit() / RECORD_SIZE; i++) {
+            if (buffer.getLong(i * RECORD_SIZE) >= time) {
+                return first + i;
+            }
+        }
+        // the next indexed record is the first at or after the time
+        return first + buffer.limit() / RECORD_SIZE;
+    }
+
+    private static void read(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of history");
+            }
+        }
+    }
+
+    // Returns the per-day summaries of compacted verifications in the range [from, to].
+    static synchronized List<DailySummary> querySummaries(final Context context,
+            final String fingerprint, final long from, final long to) throws IOException {
+        final List<DailySummary> summaries = new ArrayList<>();
+        final File daily = getDaily(context, fingerprint);
+        if (!daily.exists()) {
+            return summaries;
+        }
+
+        for (final DailySummary summary : readSummaries(daily)) {
+            if (summary.dayStart + DAY_MS > from && summary.dayStart <= to) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    private static ByteBuffer readFully(final File file) throws IOException {
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) input.length());
+            final FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    throw new IOException("unexpected end of " + file);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static long readFoldedBefore(final File daily) throws IOException {
+        if (!daily.exists()) {
+            return Long.MIN_VALUE;
+        }
+        try (final RandomAccessFile input = new RandomAccessFile(daily, "r")) {
+            return input.readLong();
+        }
+    }
+
+    private static List<DailySummary> readSummaries(final File daily) throws IOException {
+        final List<DailySummary> summaries = new ArrayList<>();
+        final ByteBuffer buffer = readFully(daily);
+        if (buffer.remaining() < SUMMARY_HEADER_SIZE) {
+            throw new IOException("invalid history summaries");
+        }
+        buffer.getLong();
+        while (buffer.remaining() >= SUMMARY_SIZE) {
+            summaries.add(new DailySummary(buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                    buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+        }
+        return summaries;
+    }
+
+    private static void putSummary(final ByteBuffer buffer, final DailySummary summary) {
+        buffer.putLong(summary.dayStart);
+        buffer.putInt(summary.count);
+        buffer.putInt(summary.osVersion);
+        buffer.putInt(summary.osPatchLevel);
+        buffer.putInt(summary.appVersion);
+        buffer.putInt(summary.osEnforcedFlagsAny);
+        buffer.putInt(summary.osEnforcedFlagsAll);
+    }
+
+    // Replaces the file with the contents of the buffer, such that a crash leaves either the old
+    // or the new contents in place.
+    private static void replace(final File file, final ByteBuffer contents) throws IOException {
+        final File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try (final FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(contents.array(), 0, contents.position());
+            output.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("failed to replace " + file);
+        }
+    }
+
+    // Fold records older than the retention cutoff and those beyond the most recent
+    // MAX_RECORDS / 2 into per-day summaries and rewrite the log with the rest. Runs on the
+    // compactor thread, and is only called directly by tests.
+    static synchronized void compact(final Context context, final String fingerprint,
+            final long retentionCutoff) throws IOException {
+        final File log = getLog(context, fingerprint);
+        if (!log.exists()) {
+            return;
+        }
+        final File daily = getDaily(context, fingerprint);
+        final long foldedBefore = readFoldedBefore(daily);
+        final List<Entry> entries = query(context, fingerprint, Long.MIN_VALUE, Long.MAX_VALUE);
+        final long cutoff = entries.size() > MAX_RECORDS / 2 ?
+                Math.max(retentionCutoff, entries.get(entries.size() - MAX_RECORDS / 2).time) :
+                retentionCutoff;
+
+        // records before foldedBefore were already folded by an interrupted compaction
+        int start = 0;
+        while (start < entries.size() && entries.get(start).time < foldedBefore) {
+            start++;
+        }
+        int end = start;
+        while (end < entries.size() && entries.get(end).time < cutoff) {
+            end++;
+        }
+        if (start == end && start == 0) {
+            return;
+        }
+        Log.d(TAG, "compacting " + (end - start) + " history records for " + fingerprint);
+
+        final List<DailySummary> summaries =
+                daily.exists() ? readSummaries(daily) : new ArrayList<>();
+        int i = start;
+        while (i < end) {
+            final long time = entries.get(i).time;
+            final long dayStart = time - Math.floorMod(time, DAY_MS);
+            int count = 0;
+            int any = 0;
+            int all = ~0;
+            // extend the summary of a day folded in part by the previous compaction
+            if (!summaries.isEmpty() && summaries.get(summaries.size() - 1).dayStart == dayStart) {
+                final DailySummary previous = summaries.remove(summaries.size() - 1);
+                count = previous.count;
+                any = previous.osEnforcedFlagsAny;
+                all = previous.osEnforcedFlagsAll;
+            }
+            Entry last = null;
+            for (; i < end && entries.get(i).time < dayStart + DAY_MS; i++) {
+                last = entries.get(i);
+                any |= last.osEnforcedFlags;
+                all &= last.osEnforcedFlags;
+                count++;
+            }
+            summaries.add(new DailySummary(dayStart, count, last.osVersion, last.osPatchLevel,
+                    last.appVersion, any, all));
+        }
+
+        final ByteBuffer summaryBuffer =
+                ByteBuffer.allocate(SUMMARY_HEADER_SIZE + summaries.size() * SUMMARY_SIZE);
+        summaryBuffer.putLong(Math.max(foldedBefore, cutoff));
+        for (final DailySummary summary : summaries) {
+            putSummary(summaryBuffer, summary);
+        }
+        replace(daily, summaryBuffer);
+
+        final ByteBuffer records = ByteBuffer.allocate((entries.size() - end) * RECORD_SIZE);
+        for (final Entry entry : entries.subList(end, entries.size())) {
+            putEntry(records, entry);
+        }
+        replace(log, records);
+        indexes.remove(fingerprint);
+    }
+
+    static synchronized void clear(final Context context) {
+        indexes.clear();
+        final File[] files = getDirectory(context).listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.delete()) {
+                    Log.e(TAG, "failed to delete " + file);
+                }
+            }
+        }
+    }
+
+    private static long[] getIndex(final String fingerprint, final FileChannel channel,
+            final long records) throws IOException {
+        long[] index = indexes.get(fingerprint);
+        if (index == null) {
+            index = new long[(int) ((records + INDEX_INTERVAL - 1) / INDEX_INTERVAL)];
+            final ByteBuffer time = ByteBuffer.allocate(8);
+            for (int i = 0; i < index.length; i++) {
+                time.clear();
+                channel.read(time, (long) i * INDEX_INTERVAL * RECORD_SIZE);
+                index[i] = time.getLong(0);
+            }
+            indexes.put(fingerprint, index);
+        }
+        return index;
+    }
+
+    private static void putEntry(final ByteBuffer buffer, final Entry entry) {
+        buffer.putLong(entry.time);
+        buffer.putInt(entry.osVersion);
+        buffer.putInt(entry.osPatchLevel);
+        buffer.putInt(entry.appVersion);
+        buffer.putInt(entry.osEnforcedFlags);
+    }
+
+    private static Entry getEntry(final ByteBuffer buffer) {
+        return new Entry(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getInt());
+    }
+}
@@ -0,0 +1,113 @@
+package co.copperhead.attestation;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import co.copperhead.attestation.attestation.Attestation;
+
+// Runs the lazily initialized parts of generating and verifying attestations once at startup,
+// so they aren't paid for by the first audit: security provider lookups, CertificateFactory and
+// KeyFactory initialization, BouncyCastle ASN.1 class loading, Guava encoders and the raw
+// resources behind the verifier.
+//
+// The parsers are exercised against a bundled sample attestation from a Pixel 2 XL, signed by
+// the bundled batch certificate. The total time is recorded as the WARMUP stage of
+// VerificationMetrics, so snapshots show it next to the latency of the verifications it speeds up,
+// and the time taken by each step is logged.
+class Warmup {
+    private static final String TAG = "Warmup";
+
+    private Warmup() {
+    }
+
+    // Starts the warm-up on a background priority thread without waiting for it.
+    static void start(final Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            run(applicationContext);
+        }, "warmup").start();
+    }
+
+    private static byte[] readRawResource(final Resources resources, final int id)
+            throws IOException {
+        try (final InputStream stream = resources.openRawResource(id)) {
+            return ByteStreams.toByteArray(stream);
+        }
+    }
+
+    private static long step(final Map<String, Long> results, final String name,
+            final long startNanos) {
+        final long now = System.nanoTime();
+        results.put(name, now - startNanos);
+        return now;
+    }
+
+    private static void run(final Context context) {
+        final Map<String, Long> results = new LinkedHashMap<>();
+        final long start = System.nanoTime();
+        try {
+            final Resources resources = context.getResources();
+            final byte[] sample = readRawResource(resources, R.raw.sample_attestation);
+            final byte[] batch = readRawResource(resources, R.raw.sample_batch);
+            AttestationProtocol.getDictionary(context);
+            long stepStart = step(results, "resources", start);
+
+            warmParsers(sample, batch, results);
+
+            stepStart = System.nanoTime();
+            AttestationProtocol.getVerifier(context);
+            step(results, "verifier", stepStart);
+        } catch (final GeneralSecurityException | IOException e) {
+            Log.e(TAG, "warm-up failed", e);
+        }
+        step(results, "total", start);
+        VerificationMetrics.record(VerificationMetrics.Stage.WARMUP, start);
+
+        final StringBuilder builder = new StringBuilder("warm-up timings:");
+        for (final Map.Entry<String, Long> entry : results.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=')
+                    .append(entry.getValue() / 1000).append("us");
+        }
+        Log.d(TAG, builder.toString());
+    }
+
+    // Parses and checks the sample attestation, recording the time taken by each step. This
+    // doesn't depend on Android so it can also be run on its own.
+    static void warmParsers(final byte[] sample, final byte[] batch,
+            final Map<String, Long> results) throws GeneralSecurityException {
+        long stepStart = System.nanoTime();
+        final X509Certificate batchCertificate =
+                AttestationVerifier.generateCertificate(new ByteArrayInputStream(batch));
+        stepStart = step(results, "certificate_factory", stepStart);
+
+        final LeafCertificate leaf = new LeafCertificate(sample);
+        leaf.getPublicKey();
+        stepStart = step(results, "leaf_certificate", stepStart);
+
+        new Attestation(leaf.getExtensionValue(Attestation.KEY_DESCRIPTION_OID));
+        stepStart = step(results, "attestation_parser", stepStart);
+
+        leaf.verify(batchCertificate.getPublicKey());
+        stepStart = step(results, "signature", stepStart);
+
+        BaseEncoding.base16().decode(BaseEncoding.base16().encode(sample));
+        BaseEncoding.base64().decode(BaseEncoding.base64().encode(sample));
+        Hashing.sha256().hashBytes(sample);
+        step(results, "encoding", stepStart);
+    }
+}
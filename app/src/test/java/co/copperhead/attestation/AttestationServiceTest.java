@@ -0,0 +1,155 @@
+package co.copperhead.attestation;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class AttestationServiceTest {
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static class RecordingCallback<T> implements AttestationService.Callback<T> {
+        final List<T> results = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+
+        @Override
+        public void onResult(final T result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(final String error) {
+            errors.add(error);
+        }
+    }
+
+    private ServiceController<AttestationService> controller;
+    private AttestationService service;
+
+    @Before
+    public void setUp() {
+        controller = Robolectric.buildService(AttestationService.class).create();
+        service = controller.get();
+    }
+
+    @After
+    public void tearDown() {
+        controller.destroy();
+    }
+
+    // Runs the main thread tasks posted by the workers until the operation completes.
+    private static void awaitDone(final AttestationService.Operation<?> operation)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!operation.isDone()) {
+            assertTrue("operation timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasks();
+        }
+    }
+
+    @Test
+    public void resultIsDeliveredOnCompletion() {
+        final AttestationService.Operation<String> operation = new AttestationService.Operation<>();
+        final RecordingCallback<String> callback = new RecordingCallback<>();
+        operation.setCallback(callback);
+        assertTrue(callback.results.isEmpty());
+
+        operation.complete("result", null);
+        assertTrue(operation.isDone());
+        assertEquals(1, callback.results.size());
+        assertEquals("result", callback.results.get(0));
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void resultIsRetainedForLaterCallback() {
+        final AttestationService.Operation<String> operation = new AttestationService.Operation<>();
+        operation.complete("result", null);
+
+        final RecordingCallback<String> callback = new RecordingCallback<>();
+        operation.setCallback(callback);
+        assertEquals(1, callback.results.size());
+        assertEquals("result", callback.results.get(0));
+    }
+
+    @Test
+    public void errorIsDeliveredInsteadOfResult() {
+        final AttestationService.Operation<String> operation = new AttestationService.Operation<>();
+        final RecordingCallback<String> callback = new RecordingCallback<>();
+        operation.setCallback(callback);
+
+        operation.complete(null, "error");
+        assertTrue(callback.results.isEmpty());
+        assertEquals(1, callback.errors.size());
+        assertEquals("error", callback.errors.get(0));
+    }
+
+    // A detached callback, as for an activity being recreated, doesn't receive the result.
+    @Test
+    public void detachedCallbackIsNotCalled() {
+        final AttestationService.Operation<String> operation = new AttestationService.Operation<>();
+        final RecordingCallback<String> detached = new RecordingCallback<>();
+        operation.setCallback(detached);
+        operation.setCallback(null);
+
+        operation.complete("result", null);
+        assertTrue(detached.results.isEmpty());
+
+        final RecordingCallback<String> attached = new RecordingCallback<>();
+        operation.setCallback(attached);
+        assertEquals(1, attached.results.size());
+    }
+
+    @Test
+    public void invalidAttestationIsReportedAsError() throws Exception {
+        final AttestationService.Operation<AttestationProtocol.VerificationResult> operation =
+                service.verify(new byte[AttestationConstants.CHALLENGE_MESSAGE_LENGTH],
+                        new byte[0]);
+        assertSame(operation, service.getVerification());
+        final RecordingCallback<AttestationProtocol.VerificationResult> callback =
+                new RecordingCallback<>();
+        operation.setCallback(callback);
+
+        awaitDone(operation);
+        assertTrue(callback.results.isEmpty());
+        assertEquals(1, callback.errors.size());
+        assertNotNull(callback.errors.get(0));
+    }
+
+    // The service starts itself for pending work and stops once it has all completed.
+    @Test
+    public void serviceIsStartedWhileWorkIsPending() throws Exception {
+        final AttestationService.Operation<AttestationProtocol.VerificationResult> operation =
+                service.verify(new byte[AttestationConstants.CHALLENGE_MESSAGE_LENGTH],
+                        new byte[0]);
+        final Intent started = shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        assertNotNull(started);
+        assertEquals(AttestationService.class.getName(), started.getComponent().getClassName());
+        assertFalse(shadowOf(service).isStoppedBySelf());
+
+        awaitDone(operation);
+        assertTrue(shadowOf(service).isStoppedBySelf());
+    }
+}
@@ -0,0 +1,115 @@
+package co.copperhead.attestation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Uses an in-memory PKCS12 keystore standing in for the Android keystore.
+public class KeystoreSessionTest {
+    private static final String PREFIX = "persistent_attestation_key_";
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private KeyStore keyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, PASSWORD);
+    }
+
+    private void addKey(final String alias) throws GeneralSecurityException {
+        keyStore.setEntry(alias,
+                new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[16], "AES")),
+                new KeyStore.PasswordProtection(PASSWORD));
+    }
+
+    private static List<String> sorted(final List<String> aliases) {
+        final List<String> copy = new ArrayList<>(aliases);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void existingEntriesAreIndexed() throws Exception {
+        addKey("fresh_attestation_key");
+        addKey(PREFIX + "1");
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        assertTrue(session.containsAlias("fresh_attestation_key"));
+        assertTrue(session.containsAlias(PREFIX + "1"));
+        assertFalse(session.containsAlias(PREFIX + "2"));
+    }
+
+    @Test
+    public void aliasesAreFilteredByPrefix() throws Exception {
+        addKey("fresh_attestation_key");
+        addKey(PREFIX + "1");
+        addKey(PREFIX + "2");
+        addKey("0" + PREFIX + "3");
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        assertEquals(Arrays.asList(PREFIX + "1", PREFIX + "2"),
+                sorted(session.getAliases(PREFIX)));
+        assertTrue(session.getAliases("missing").isEmpty());
+    }
+
+    // The index is built once, so keys generated afterwards have to be recorded.
+    @Test
+    public void addedAliasesAreIndexed() throws Exception {
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        assertFalse(session.containsAlias(PREFIX + "1"));
+
+        addKey(PREFIX + "1");
+        assertFalse(session.containsAlias(PREFIX + "1"));
+        session.addAlias(PREFIX + "1");
+        assertTrue(session.containsAlias(PREFIX + "1"));
+        assertEquals(Collections.singletonList(PREFIX + "1"), session.getAliases(PREFIX));
+    }
+
+    @Test
+    public void deletedEntriesAreRemovedFromKeystoreAndIndex() throws Exception {
+        addKey(PREFIX + "1");
+        addKey(PREFIX + "2");
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        session.deleteEntry(PREFIX + "1");
+        assertFalse(session.containsAlias(PREFIX + "1"));
+        assertFalse(keyStore.containsAlias(PREFIX + "1"));
+        assertTrue(keyStore.containsAlias(PREFIX + "2"));
+        assertEquals(Collections.singletonList(PREFIX + "2"), session.getAliases(PREFIX));
+    }
+
+    @Test
+    public void deletingMissingEntryIsNoOp() throws Exception {
+        addKey(PREFIX + "1");
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        session.deleteEntry(PREFIX + "2");
+        assertTrue(session.containsAlias(PREFIX + "1"));
+        assertEquals(1, keyStore.size());
+    }
+
+    // Clearing the persistent keys the way AttestationProtocol.clearAuditee does.
+    @Test
+    public void clearingByPrefixLeavesOtherKeys() throws Exception {
+        addKey("fresh_attestation_key");
+        for (int i = 0; i < 10; i++) {
+            addKey(PREFIX + i);
+        }
+        final KeystoreSession session = new KeystoreSession(keyStore);
+        for (final String alias : session.getAliases(PREFIX)) {
+            session.deleteEntry(alias);
+        }
+        assertTrue(session.getAliases(PREFIX).isEmpty());
+        assertEquals(Collections.singletonList("fresh_attestation_key"),
+                Collections.list(keyStore.aliases()));
+    }
+}
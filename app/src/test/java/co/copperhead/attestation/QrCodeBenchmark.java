@@ -0,0 +1,73 @@
+package co.copperhead.attestation;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of encoding a QR code at one pixel per module compared with encoding it at the size of the
+// view, for payloads around the size of a challenge and of an attestation.
+public class QrCodeBenchmark {
+    private static final int[] PAYLOAD_LENGTHS = {86, 600, 1200};
+    private static final int VIEW_SIZE = 1080;
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(2);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private QrCodeBenchmark() {}
+
+    private interface Encoder {
+        int encode(byte[] contents) throws Exception;
+    }
+
+    // The previous approach: the matrix is scaled up by zxing and converted pixel by pixel.
+    private static int encodeAtViewSize(final byte[] contents) throws Exception {
+        final Map<EncodeHintType,Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.CHARACTER_SET, "ISO-8859-1");
+        final BitMatrix result = new QRCodeWriter().encode(
+                new String(contents, StandardCharsets.ISO_8859_1), BarcodeFormat.QR_CODE,
+                VIEW_SIZE, VIEW_SIZE, hints);
+        final int width = result.getWidth();
+        final int height = result.getHeight();
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[offset + x] = result.get(x, y) ? QrCodeEncoder.BLACK : QrCodeEncoder.WHITE;
+            }
+        }
+        return pixels.length;
+    }
+
+    private static double run(final Encoder encoder, final byte[] contents, final long duration)
+            throws Exception {
+        final long deadline = System.currentTimeMillis() + duration;
+        final long start = System.nanoTime();
+        long count = 0;
+        while (System.currentTimeMillis() < deadline) {
+            encoder.encode(contents);
+            count++;
+        }
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Encoder modules = contents -> QrCodeEncoder.encode(contents).pixels.length;
+        for (final int length : PAYLOAD_LENGTHS) {
+            final byte[] contents = new byte[length];
+            new Random(length).nextBytes(contents);
+            run(modules, contents, WARMUP_MS);
+            run(QrCodeBenchmark::encodeAtViewSize, contents, WARMUP_MS);
+            System.out.printf("%4d bytes: modules %7.1f us, %6d pixels; view size %7.1f us, " +
+                            "%7d pixels%n", length,
+                    run(modules, contents, DURATION_MS), modules.encode(contents),
+                    run(QrCodeBenchmark::encodeAtViewSize, contents, DURATION_MS),
+                    encodeAtViewSize(contents));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package co.copperhead.attestation;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QrCodeEncoderTest {
+    private static final int QUIET_ZONE = 4;
+    private static final int SCALE = 4;
+
+    // Scales up the pixels the way the view does, since the reader can't sample single pixel
+    // modules reliably.
+    private static byte[] decode(final QrCodeEncoder.Pixels pixels) throws Exception {
+        final int width = pixels.width * SCALE;
+        final int height = pixels.height * SCALE;
+        final int[] scaled = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                scaled[y * width + x] = pixels.pixels[y / SCALE * pixels.width + x / SCALE];
+            }
+        }
+        final Map<DecodeHintType,Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.CHARACTER_SET, "ISO-8859-1");
+        hints.put(DecodeHintType.PURE_BARCODE, Boolean.TRUE);
+        final Result result = new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(
+                new RGBLuminanceSource(width, height, scaled))), hints);
+        return result.getText().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] createPayload(final int length) {
+        final byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (final int length : new int[]{1, 32, 300, 1000}) {
+            final byte[] payload = createPayload(length);
+            assertArrayEquals(payload, decode(QrCodeEncoder.encode(payload)));
+        }
+    }
+
+    // One pixel per module: a version N code is 17 + 4N modules across plus the quiet zone.
+    @Test
+    public void encodedAtModuleResolution() {
+        final QrCodeEncoder.Pixels pixels = QrCodeEncoder.encode(new byte[]{0});
+        assertEquals(21 + 2 * QUIET_ZONE, pixels.width);
+        assertEquals(pixels.width, pixels.height);
+        assertEquals(pixels.width * pixels.height, pixels.pixels.length);
+
+        final QrCodeEncoder.Pixels largest = QrCodeEncoder.encode(createPayload(2000));
+        assertTrue(largest.width <= 177 + 2 * QUIET_ZONE);
+    }
+
+    @Test
+    public void quietZoneIsWhite() {
+        final QrCodeEncoder.Pixels pixels = QrCodeEncoder.encode(createPayload(100));
+        for (int i = 0; i < pixels.width; i++) {
+            for (int j = 0; j < QUIET_ZONE; j++) {
+                assertEquals(QrCodeEncoder.WHITE, pixels.pixels[j * pixels.width + i]);
+                assertEquals(QrCodeEncoder.WHITE, pixels.pixels[i * pixels.width + j]);
+            }
+        }
+        assertEquals(QrCodeEncoder.BLACK, pixels.pixels[QUIET_ZONE * pixels.width + QUIET_ZONE]);
+    }
+}
@@ -0,0 +1,109 @@
+package co.copperhead.attestation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteVerifyScheduleTest {
+    private static final long INTERVAL_MS = 4 * 60 * 60 * 1000L;
+    private static final long NOW_MS = 1_500_000_000_000L;
+    private static final int FLEET_SIZE = 100000;
+
+    private static long[] createSeeds() {
+        final Random random = new Random(1);
+        final long[] seeds = new long[FLEET_SIZE];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+        }
+        return seeds;
+    }
+
+    // Ratio of the busiest bucket to the mean over the given span.
+    private static double getPeakToMean(final long[] times, final long start, final long span,
+            final long bucket) {
+        final int[] counts = new int[(int) ((span + bucket - 1) / bucket)];
+        for (final long time : times) {
+            final long offset = time - start;
+            assertTrue(offset >= 0 && offset < span);
+            counts[(int) (offset / bucket)]++;
+        }
+        int peak = 0;
+        for (final int count : counts) {
+            peak = Math.max(peak, count);
+        }
+        return peak / ((double) times.length / counts.length);
+    }
+
+    @Test
+    public void firstRunIsImmediate() {
+        final RemoteVerifySchedule.Window window =
+                new RemoteVerifySchedule(1).firstRun(INTERVAL_MS);
+        assertEquals(0, window.delayMillis);
+        assertTrue(window.deadlineMillis > 0 && window.deadlineMillis < INTERVAL_MS);
+    }
+
+    @Test
+    public void nextIsDeterministicAndKeepsThePhase() {
+        for (final long seed : createSeeds()) {
+            final RemoteVerifySchedule schedule = new RemoteVerifySchedule(seed);
+            final RemoteVerifySchedule.Window window = schedule.next(NOW_MS, INTERVAL_MS);
+            assertEquals(window.delayMillis, schedule.next(NOW_MS, INTERVAL_MS).delayMillis);
+            assertTrue(window.delayMillis >= INTERVAL_MS / 2);
+            assertTrue(window.delayMillis < INTERVAL_MS * 3 / 2);
+            assertTrue(window.deadlineMillis > window.delayMillis);
+
+            final long time = NOW_MS + window.delayMillis;
+            assertEquals(schedule.getPhaseMillis(INTERVAL_MS), Math.floorMod(time, INTERVAL_MS));
+            // a check running late returns to the same slot rather than drifting
+            final long late = time + (window.deadlineMillis - window.delayMillis);
+            assertEquals(time + INTERVAL_MS, late + schedule.next(late, INTERVAL_MS).delayMillis);
+        }
+    }
+
+    // A fleet checking in at the same moment, such as after an outage, is spread over the interval
+    // by the following check. A periodic job would keep them within its flex window.
+    @Test
+    public void fleetIsSpreadAfterOutage() {
+        final long[] times = new long[FLEET_SIZE];
+        final long[] seeds = createSeeds();
+        for (int i = 0; i < seeds.length; i++) {
+            times[i] = NOW_MS + new RemoteVerifySchedule(seeds[i]).next(NOW_MS, INTERVAL_MS)
+                    .delayMillis;
+        }
+        final double peakToMean = getPeakToMean(times, NOW_MS + INTERVAL_MS / 2, INTERVAL_MS,
+                60 * 1000);
+        assertTrue("peak to mean " + peakToMean, peakToMean < 1.5);
+    }
+
+    @Test
+    public void retryBacksOffUpToTheCap() {
+        final RemoteVerifySchedule schedule = new RemoteVerifySchedule(1);
+        final long cap = Math.min(RemoteVerifySchedule.MAX_BACKOFF_MS, INTERVAL_MS);
+        for (int failures = 1; failures <= 40; failures++) {
+            final long delay = schedule.retry(failures, 0, INTERVAL_MS).delayMillis;
+            final long backoff = Math.min(
+                    RemoteVerifySchedule.MIN_BACKOFF_MS << Math.min(failures - 1, 30), cap);
+            assertTrue(delay >= backoff / 2 && delay <= backoff);
+        }
+    }
+
+    // The fleet told to come back after a Retry-After is spread over half the backoff on top of it.
+    @Test
+    public void retriesAfterRetryAfterAreSpread() {
+        final long retryAfter = 60 * 1000;
+        final long[] times = new long[FLEET_SIZE];
+        final long[] seeds = createSeeds();
+        for (int i = 0; i < seeds.length; i++) {
+            final RemoteVerifySchedule.Window window =
+                    new RemoteVerifySchedule(seeds[i]).retry(1, retryAfter, INTERVAL_MS);
+            assertTrue(window.delayMillis >= retryAfter);
+            times[i] = NOW_MS + window.delayMillis;
+        }
+        final double peakToMean = getPeakToMean(times, NOW_MS + retryAfter,
+                RemoteVerifySchedule.MIN_BACKOFF_MS / 2 + 1, 1000);
+        assertTrue("peak to mean " + peakToMean, peakToMean < 1.5);
+    }
+}
@@ -0,0 +1,239 @@
+package co.copperhead.attestation;
+
+import android.content.Context;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class VerificationHistoryTest {
+    private static final String FINGERPRINT = "0123456789ABCDEF";
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    private static final long RETENTION_MS = 30 * DAY_MS;
+    // MAX_RECORDS, which can be appended without triggering a background compaction
+    private static final int MAX_RECORDS = 4096;
+
+    private Context context;
+    private long now;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        VerificationHistory.clear(context);
+    }
+
+    private void append(final long time, final int osEnforcedFlags) throws IOException {
+        VerificationHistory.append(context, FINGERPRINT,
+                new VerificationHistory.Entry(time, 80100, 201805, 22, osEnforcedFlags));
+    }
+
+    private List<VerificationHistory.Entry> queryAll() throws IOException {
+        return VerificationHistory.query(context, FINGERPRINT, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private List<VerificationHistory.DailySummary> querySummaries() throws IOException {
+        return VerificationHistory.querySummaries(context, FINGERPRINT, Long.MIN_VALUE,
+                Long.MAX_VALUE);
+    }
+
+    private int count(final long from) throws IOException {
+        return VerificationHistory.count(context, FINGERPRINT, from);
+    }
+
+    private int countSummarized() throws IOException {
+        int count = 0;
+        for (final VerificationHistory.DailySummary summary : querySummaries()) {
+            count += summary.count;
+        }
+        return count;
+    }
+
+    private static void copy(final File from, final File to) throws IOException {
+        try (final InputStream input = new FileInputStream(from);
+                final OutputStream output = new FileOutputStream(to)) {
+            ByteStreams.copy(input, output);
+        }
+    }
+
+    private File getLog() {
+        return new File(new File(context.getFilesDir(), "history"), FINGERPRINT + ".log");
+    }
+
+    // 60 old records, 6 per day over 10 days starting 60 days ago, and 10 recent ones.
+    private void appendOldAndRecent() throws IOException {
+        final long oldStart = now - 60 * DAY_MS;
+        for (int i = 0; i < 60; i++) {
+            append(oldStart + i * 4 * HOUR_MS, i % 2 == 0 ? 0b11 : 0b01);
+        }
+        for (int i = 0; i < 10; i++) {
+            append(now - (10 - i) * HOUR_MS, 0);
+        }
+    }
+
+    @Test
+    public void queryReturnsRange() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            append(now + i, 0);
+        }
+        final List<VerificationHistory.Entry> entries =
+                VerificationHistory.query(context, FINGERPRINT, now + 70, now + 129);
+        assertEquals(60, entries.size());
+        assertEquals(now + 70, entries.get(0).time);
+        assertEquals(now + 129, entries.get(entries.size() - 1).time);
+        assertEquals(200, queryAll().size());
+    }
+
+    // Counting only reads the records around the start of the range.
+    @Test
+    public void countMatchesQuery() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            append(now + i, 0);
+        }
+        for (long from = now - 1; from <= now + 201; from++) {
+            assertEquals(VerificationHistory.query(context, FINGERPRINT, from, Long.MAX_VALUE)
+                    .size(), count(from));
+        }
+        assertEquals(200, count(Long.MIN_VALUE));
+    }
+
+    // A compacted day is counted in full if any of it is in the range.
+    @Test
+    public void countIncludesOverlappingSummaries() throws Exception {
+        appendOldAndRecent();
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertEquals(70, count(Long.MIN_VALUE));
+        assertEquals(10, count(now - RETENTION_MS));
+
+        final List<VerificationHistory.DailySummary> summaries = querySummaries();
+        final int straddling = 2;
+        int expected = 10;
+        for (final VerificationHistory.DailySummary summary :
+                summaries.subList(straddling, summaries.size())) {
+            expected += summary.count;
+        }
+        assertEquals(expected, count(summaries.get(straddling).dayStart + HOUR_MS));
+        assertEquals(expected, count(summaries.get(straddling).dayStart));
+    }
+
+    // A verification recorded after the clock stepped backwards is kept in order at the time of
+    // the previous one, rather than being discarded by compaction as already folded.
+    @Test
+    public void appendedTimesAreNonDecreasing() throws Exception {
+        append(now, 0);
+        append(now - HOUR_MS, 0);
+        final List<VerificationHistory.Entry> entries = queryAll();
+        assertEquals(2, entries.size());
+        assertEquals(now, entries.get(1).time);
+
+        VerificationHistory.clear(context);
+        for (int i = 0; i < 5; i++) {
+            append(now - 40 * DAY_MS + i, 0);
+        }
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertTrue(queryAll().isEmpty());
+        append(now - 50 * DAY_MS, 0);
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertEquals(1, queryAll().size());
+        assertEquals(6, count(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void oldRecordsAreFoldedIntoDailySummaries() throws Exception {
+        appendOldAndRecent();
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+
+        assertEquals(10, queryAll().size());
+        assertEquals(60, countSummarized());
+        final List<VerificationHistory.DailySummary> summaries = querySummaries();
+        assertTrue(summaries.size() >= 10 && summaries.size() <= 11);
+        for (int i = 0; i < summaries.size(); i++) {
+            final VerificationHistory.DailySummary summary = summaries.get(i);
+            assertEquals(0, Math.floorMod(summary.dayStart, DAY_MS));
+            if (i > 0) {
+                assertTrue(summary.dayStart > summaries.get(i - 1).dayStart);
+            }
+            assertEquals(0b01, summary.osEnforcedFlagsAll & 0b01);
+            if (summary.count > 1) {
+                assertEquals(0b11, summary.osEnforcedFlagsAny);
+                assertEquals(0b01, summary.osEnforcedFlagsAll);
+            }
+        }
+    }
+
+    // Verifications more frequent than MAX_RECORDS within the retention period are still folded.
+    @Test
+    public void logIsBoundedWithinRetention() throws Exception {
+        // early yesterday, so all of the records are in the same day
+        final long start = now - Math.floorMod(now, DAY_MS) - DAY_MS + HOUR_MS;
+        for (int i = 0; i < MAX_RECORDS; i++) {
+            append(start + i, 0);
+        }
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertTrue(queryAll().size() <= MAX_RECORDS / 2);
+        assertEquals(MAX_RECORDS, queryAll().size() + countSummarized());
+
+        // the rest of the day is folded into the same summaries
+        final int summaries = querySummaries().size();
+        for (int i = 0; i < 2000; i++) {
+            append(start + MAX_RECORDS + i, 0);
+        }
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertTrue(queryAll().size() <= MAX_RECORDS / 2);
+        assertEquals(MAX_RECORDS + 2000, queryAll().size() + countSummarized());
+        assertEquals(summaries, querySummaries().size());
+    }
+
+    // A compaction interrupted after replacing the summaries, but before replacing the log, leaves
+    // records that were already folded in the log.
+    @Test
+    public void interruptedCompactionIsNotCountedTwice() throws Exception {
+        appendOldAndRecent();
+        final File log = getLog();
+        final File saved = new File(context.getFilesDir(), "saved.log");
+        copy(log, saved);
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        copy(saved, log);
+        assertEquals(70, queryAll().size());
+        assertEquals(70, count(Long.MIN_VALUE));
+
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertEquals(10, queryAll().size());
+        assertEquals(60, countSummarized());
+        assertTrue(saved.delete());
+    }
+
+    @Test
+    public void compactionWithoutOldRecordsIsNoOp() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            append(now - 10 + i, 0);
+        }
+        VerificationHistory.compact(context, FINGERPRINT, now - RETENTION_MS);
+        assertEquals(10, queryAll().size());
+        assertTrue(querySummaries().isEmpty());
+    }
+}
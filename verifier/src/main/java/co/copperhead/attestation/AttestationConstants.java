@@ -0,0 +1,113 @@
+package co.copperhead.attestation;
+
+// Constants of the attestation protocol shared by the Auditor, the Auditee and verification
+// servers. They're kept here rather than in AttestationProtocol so the verifier core doesn't
+// depend on the Android framework.
+class AttestationConstants {
+    static final int CLOCK_SKEW_MS = 60 * 1000;
+    static final int EXPIRE_OFFSET_MS = 5 * 60 * 1000 + CLOCK_SKEW_MS;
+
+    static final int CHALLENGE_LENGTH = 32;
+    static final String EC_CURVE = "secp256r1";
+    static final String SIGNATURE_ALGORITHM = "SHA256WithECDSA";
+
+    // Challenge message:
+    //
+    // byte maxVersion = PROTOCOL_VERSION
+    // byte[] challenge index (length: CHALLENGE_LENGTH)
+    // byte[] challenge (length: CHALLENGE_LENGTH)
+    //
+    // The challenge index is randomly generated by Auditor and used for all future challenge
+    // messages from that Auditor. It's used on the Auditee as an index to choose the correct
+    // persistent key to satisfy the Auditor, rather than only supporting pairing with one. In
+    // theory, the Auditor could authenticate to the Auditee, but this app already provides a
+    // better way to do that by doing the same process in reverse for a supported device.
+    //
+    // The challenge is randomly generated by the Auditor and serves the security function of
+    // enforcing that the results are fresh. It's returned inside the attestation certificate
+    // which has a signature from the device's provisioned key (not usable by the OS) and the
+    // outer signature from the hardware-backed key generated for the initial pairing.
+    //
+    // Attestation message:
+    //
+    // The Auditor will eventually start trying to be backwards compatible with older Auditee app
+    // versions but not the other way around.
+    //
+    // Compression is done with raw DEFLATE (no zlib wrapper) with a preset dictionary
+    // (DEFLATE_DICTIONARY) generated from sample certificates.
+    //
+    // signed message {
+    // byte version = min(maxVersion, PROTOCOL_VERSION)
+    // short compressedChainLength
+    // byte[] compressedChain { [short encodedCertificateLength, byte[] encodedCertificate] }
+    // byte[] fingerprint (length: FINGERPRINT_LENGTH)
+    // int osEnforcedFlags (byte rather than int for PROTOCOL_VERSION < 2)
+    // }
+    // byte[] signature (rest of message)
+    //
+    // For each audit, the Auditee generates a fresh hardware-backed key with key attestation
+    // using the provided challenge. It reports back the certificate chain to be verified by the
+    // Auditor. The public key certificate of the generated key is signed by a key provisioned on
+    // the device (not usable by the OS) chaining up to a known Pixel 2 (XL) intermediate and the
+    // Google root. The certificate contains the key attestation metadata including the important
+    // fields with the lock state, verified boot state, the verified boot public key fingerprint
+    // and the OS version / patch level:
+    //
+    // https://developer.android.com/training/articles/security-key-attestation.html#certificate_schema
+    //
+    // The Auditee keeps the first hardware-backed key generated for a challenge index and uses it
+    // to sign all future attestations. The fingerprint of the persistent key is included in the
+    // attestation message for the Auditor to find the corresponding pinning data. Other keys are
+    // never actually used, only generated for fresh key attestation data.
+    //
+    // The OS can use the persistent generated hardware-backed key for signing but cannot obtain
+    // the private key. The key isn't be usable if verified boot fails or the OS is downgraded and
+    // the keys are protected against replay attacks via the Replay Protected Memory Block. Future
+    // devices launching with Android P or later will be able to provide a StrongBox Keymaster to
+    // support storing the keys in a dedicated hardware security module paired with the TEE which
+    // will substantially reduce the attack surface for obtaining the keys. The attestation API
+    // could also be improved with better guarantees about the certificate chain remaining the
+    // same, including rollback indexes in key attestation metadata and adding a per-app-install
+    // generated intermediate to the chain to be pinned with the others.
+    //
+    // The attestation message also includes osEnforcedFlags with data obtained at the OS level,
+    // which is vulnerable to tampering by an attacker with control over the OS. However, the OS
+    // did get verified by verified boot so without a verified boot bypass they would need to keep
+    // exploiting it after booting. The bootloader / TEE verified OS version / OS patch level are
+    // a useful mitigation as they reveal that the OS isn't upgraded even if an attacker has root.
+    //
+    // The Auditor saves the initial certificate chain, using the initial certificate to verify
+    // the outer signature and the rest of the chain for pinning the expected chain. It enforces
+    // downgrade protection for the OS version/patch (bootloader/TEE enforced) and app version (OS
+    // enforced) by keeping them updated.
+    static final byte PROTOCOL_VERSION = 2;
+    static final byte PROTOCOL_VERSION_MINIMUM = 1;
+    // can become longer in the future, but this is the minimum length
+    static final byte CHALLENGE_MESSAGE_LENGTH = 1 + CHALLENGE_LENGTH * 2;
+    static final int MAX_ENCODED_CHAIN_LENGTH = 3000;
+    static final int MAX_MESSAGE_SIZE = 2953;
+
+    static final int OS_ENFORCED_FLAGS_NONE = 0;
+    static final int OS_ENFORCED_FLAGS_USER_PROFILE_SECURE = 1;
+    static final int OS_ENFORCED_FLAGS_ACCESSIBILITY = 1 << 1;
+    static final int OS_ENFORCED_FLAGS_DEVICE_ADMIN = 1 << 2;
+    static final int OS_ENFORCED_FLAGS_ADB_ENABLED = 1 << 3;
+    static final int OS_ENFORCED_FLAGS_ADD_USERS_WHEN_LOCKED = 1 << 4;
+    static final int OS_ENFORCED_FLAGS_ENROLLED_FINGERPRINTS = 1 << 5;
+    static final int OS_ENFORCED_FLAGS_DENY_NEW_USB = 1 << 6;
+    static final int OS_ENFORCED_FLAGS_DEVICE_ADMIN_NON_SYSTEM = 1 << 7;
+    static final int OS_ENFORCED_FLAGS_OEM_UNLOCK_ALLOWED = 1 << 8;
+    static final int OS_ENFORCED_FLAGS_ALL =
+            OS_ENFORCED_FLAGS_USER_PROFILE_SECURE |
+            OS_ENFORCED_FLAGS_ACCESSIBILITY |
+            OS_ENFORCED_FLAGS_DEVICE_ADMIN |
+            OS_ENFORCED_FLAGS_ADB_ENABLED |
+            OS_ENFORCED_FLAGS_ADD_USERS_WHEN_LOCKED |
+            OS_ENFORCED_FLAGS_ENROLLED_FINGERPRINTS |
+            OS_ENFORCED_FLAGS_DENY_NEW_USB |
+            OS_ENFORCED_FLAGS_DEVICE_ADMIN_NON_SYSTEM |
+            OS_ENFORCED_FLAGS_OEM_UNLOCK_ALLOWED;
+
+    private AttestationConstants() {
+    }
+}
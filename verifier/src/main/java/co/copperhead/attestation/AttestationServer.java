@@ -0,0 +1,827 @@
+package co.copperhead.attestation;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+
+// Verification server implementing the /challenge and /verify endpoints used by RemoteVerifyJob,
+// for running remote verification offline and load testing it without external services.
+//
+// Connections are multiplexed on a single selector thread with HTTP/1.1 keep-alive and
+// pipelining, while verifications are handed off to a pool of worker threads. Responses on a
+// connection are sent in the order of the requests. Accounts and pinning data are only kept in
+// memory and an account is created by the first pairing for a userId. It only speaks plain HTTP,
+// so it's meant to be used on localhost or behind a TLS terminating proxy.
+//
+// Issued challenges are either tracked in memory or, when a StatelessChallenge is provided,
+// authenticated by a key shared between all the nodes behind a load balancer.
+//
+// A successful verification requesting it with the Next-Challenge header also gets the challenge
+// for the account's next verification, base64 encoded on a second line of the response. These
+// are held per account for a couple of verification intervals rather than the usual challenge
+// lifetime, and only the account they were issued to can use them. They aren't issued with
+// stateless challenges, since other nodes wouldn't know about them.
+//
+// It also receives samples as a stand-in for the sample collection service, with either a
+// Content-Length or a chunked body: legacy plain text submissions at /submit and sample bundles
+// at SampleBundle.SUBMIT_PATH, marked with SampleBundle.CONTENT_TYPE. Bundles are checked to be
+// complete before being accepted. When a directory is provided, each distinct submission is
+// stored there under the SHA-256 of its content.
+class AttestationServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(AttestationServer.class.getName());
+
+    private static final int DEFAULT_VERIFY_INTERVAL = 4 * 60 * 60;
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    private static final int MAX_HEADER_LENGTH = 8192;
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024;
+    private static final int MAX_SAMPLE_LENGTH = 1024 * 1024;
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+    private static final int MAX_PENDING_CHALLENGES = 1 << 20;
+    private static final int CHALLENGE_BUFFER_SIZE = 4096;
+    // pre-issued challenges stay valid for this many verification intervals
+    private static final int NEXT_CHALLENGE_INTERVALS = 2;
+    // sent with 503 responses
+    private static final int RETRY_AFTER = 60;
+
+    private static class Request {
+        final String method;
+        final String path;
+        final String authorization;
+        // null if not provided
+        final String contentType;
+        final byte[] body;
+        final boolean keepAlive;
+        final boolean nextChallenge;
+
+        Request(final String method, final String path, final String authorization,
+                final String contentType, final byte[] body, final boolean keepAlive,
+                final boolean nextChallenge) {
+            this.method = method;
+            this.path = path;
+            this.authorization = authorization;
+            this.contentType = contentType;
+            this.body = body;
+            this.keepAlive = keepAlive;
+            this.nextChallenge = nextChallenge;
+        }
+    }
+
+    // Rejection of a verification by the account checks, reported with its own status.
+    private static class AccountException extends GeneralSecurityException {
+        final int status;
+
+        AccountException(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static class NextChallenge {
+        final byte[] challenge;
+        final long expiryMillis;
+
+        NextChallenge(final byte[] challenge, final long expiryMillis) {
+            this.challenge = challenge;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    private static class Response {
+        final ByteBuffer data;
+        final boolean close;
+
+        Response(final ByteBuffer data, final boolean close) {
+            this.data = data;
+            this.close = close;
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        final Queue<Response> output = new ArrayDeque<>();
+        // a request is being handled by a worker, so pipelined requests have to wait
+        boolean processing;
+        // the last response has been queued and the connection closes after sending it
+        boolean closing;
+        // response from a worker handed over to the selector thread
+        volatile Response completed;
+
+        Connection(final SocketChannel channel, final SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final AttestationVerifier verifier;
+    private final int verifyInterval;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ChallengeGenerator challengeGenerator;
+    private final byte[] challengeIndex;
+    private final StatelessChallenge statelessChallenge;
+    // null if samples aren't stored
+    private final File samplesDirectory;
+    private final ChallengeRegistry challenges = new ChallengeRegistry(MAX_PENDING_CHALLENGES);
+    private final ConcurrentMap<Long, String> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> deviceOwners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, NextChallenge> nextChallenges = new ConcurrentHashMap<>();
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong requestsHandled = new AtomicLong();
+    private final AtomicLong samplesReceived = new AtomicLong();
+    private final Queue<Connection> completions = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    AttestationServer(final InetSocketAddress address, final AttestationVerifier verifier,
+            final int verifyInterval, final int workerThreads,
+            final StatelessChallenge statelessChallenge, final File samplesDirectory)
+            throws IOException {
+        this.verifier = verifier;
+        this.verifyInterval = verifyInterval;
+        this.statelessChallenge = statelessChallenge;
+        this.samplesDirectory = samplesDirectory;
+        if (statelessChallenge != null) {
+            challengeIndex = statelessChallenge.getChallengeIndex();
+        } else {
+            challengeIndex = ChallengeGenerator.generateChallenge();
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads);
+        challengeGenerator = new ChallengeGenerator(
+                statelessChallenge == null ? CHALLENGE_BUFFER_SIZE : 0, workers);
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    long getRequestsHandled() {
+        return requestsHandled.get();
+    }
+
+    long getSamplesReceived() {
+        return samplesReceived.get();
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("already started");
+        }
+        challengeGenerator.fill();
+        thread = new Thread(this::run, "AttestationServer");
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        workers.shutdownNow();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeChannels();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Connection completed;
+                while ((completed = completions.poll()) != null) {
+                    completed.processing = false;
+                    queueResponse(completed, completed.completed);
+                    service(completed);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        final Connection connection = (Connection) key.attachment();
+                        if (key.isReadable() && !read(connection)) {
+                            continue;
+                        }
+                        service(connection);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, "selector failed, stopping", e);
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() {
+        for (final SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        closeQuietly(selector);
+        closeQuietly(serverChannel);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (final IOException ignored) {}
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            connectionsAccepted.incrementAndGet();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    // Returns false if the connection was closed.
+    private boolean read(final Connection connection) {
+        try {
+            if (!connection.input.hasRemaining()) {
+                final ByteBuffer larger = ByteBuffer.allocate(connection.input.capacity() * 2);
+                connection.input.flip();
+                larger.put(connection.input);
+                connection.input = larger;
+            }
+            if (connection.channel.read(connection.input) == -1) {
+                closeConnection(connection);
+                return false;
+            }
+        } catch (final IOException e) {
+            closeConnection(connection);
+            return false;
+        }
+        return true;
+    }
+
+    // Handle any complete requests, send queued responses and update the interest set.
+    private void service(final Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            while (!connection.processing && !connection.closing) {
+                final Request request;
+                try {
+                    request = parseRequest(connection.input);
+                } catch (final ProtocolException e) {
+                    queueResponse(connection, createResponse(400, "", false));
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+                handleRequest(connection, request);
+            }
+
+            while (!connection.output.isEmpty()) {
+                final Response response = connection.output.peek();
+                connection.channel.write(response.data);
+                if (response.data.hasRemaining()) {
+                    break;
+                }
+                connection.output.poll();
+                if (response.close) {
+                    closeConnection(connection);
+                    return;
+                }
+            }
+        } catch (final IOException e) {
+            closeConnection(connection);
+            return;
+        }
+
+        if (!connection.output.isEmpty()) {
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+        } else if (connection.processing || connection.closing) {
+            connection.key.interestOps(0);
+        } else {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private static void closeConnection(final Connection connection) {
+        connection.key.cancel();
+        closeQuietly(connection.channel);
+    }
+
+    private static void queueResponse(final Connection connection, final Response response) {
+        connection.output.add(response);
+        if (response.close) {
+            connection.closing = true;
+        }
+    }
+
+    // Parse a request from the start of the input buffer and remove it, returning null if the
+    // request isn't complete yet.
+    private static Request parseRequest(final ByteBuffer input) throws ProtocolException {
+        final byte[] data = input.array();
+        final int length = input.position();
+
+        int headerEnd = -1;
+        for (int i = 3; i < length; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd == -1) {
+            if (length >= MAX_HEADER_LENGTH) {
+                throw new ProtocolException("header too large");
+            }
+            return null;
+        }
+
+        final String[] lines = new String(data, 0, headerEnd - 4, StandardCharsets.ISO_8859_1)
+                .split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new ProtocolException("invalid request line");
+        }
+        final int maxContentLength = requestLine[1].equals("/submit") ||
+                requestLine[1].equals(SampleBundle.SUBMIT_PATH) ?
+                MAX_SAMPLE_LENGTH : MAX_CONTENT_LENGTH;
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+        boolean chunked = false;
+        boolean nextChallenge = false;
+        String authorization = null;
+        String contentType = null;
+        int contentLength = 0;
+        for (int i = 1; i < lines.length; i++) {
+            final int separator = lines[i].indexOf(':');
+            if (separator == -1) {
+                throw new ProtocolException("invalid header");
+            }
+            final String name = lines[i].substring(0, separator).trim().toLowerCase(Locale.US);
+            final String value = lines[i].substring(separator + 1).trim();
+            switch (name) {
+                case "authorization":
+                    authorization = value;
+                    break;
+                case "connection":
+                    if (value.equalsIgnoreCase("close")) {
+                        keepAlive = false;
+                    } else if (value.equalsIgnoreCase("keep-alive")) {
+                        keepAlive = true;
+                    }
+                    break;
+                case "content-type":
+                    contentType = value;
+                    break;
+                case "content-length":
+                    try {
+                        contentLength = Integer.parseInt(value);
+                    } catch (final NumberFormatException e) {
+                        throw new ProtocolException("invalid content length");
+                    }
+                    if (contentLength < 0 || contentLength > maxContentLength) {
+                        throw new ProtocolException("invalid content length");
+                    }
+                    break;
+                case "next-challenge":
+                    nextChallenge = value.equalsIgnoreCase("true");
+                    break;
+                case "transfer-encoding":
+                    if (!value.equalsIgnoreCase("chunked")) {
+                        throw new ProtocolException("transfer encoding not supported");
+                    }
+                    chunked = true;
+                    break;
+            }
+        }
+
+        final int end;
+        final byte[] body;
+        if (chunked) {
+            // the whole body is scanned for the end before decoding it, since parsing starts over
+            // each time more input arrives
+            end = scanChunked(data, headerEnd, length, maxContentLength, null);
+            if (end == -1) {
+                return null;
+            }
+            final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            scanChunked(data, headerEnd, end, maxContentLength, decoded);
+            body = decoded.toByteArray();
+        } else {
+            end = headerEnd + contentLength;
+            if (length < end) {
+                return null;
+            }
+            body = Arrays.copyOfRange(data, headerEnd, end);
+        }
+        input.flip();
+        input.position(end);
+        input.compact();
+        return new Request(requestLine[0], requestLine[1], authorization, contentType, body,
+                keepAlive, nextChallenge);
+    }
+
+    // Returns the offset following a chunked body starting at the given offset, or -1 if it isn't
+    // complete yet. The chunks are appended to decoded unless it's null. Trailers aren't supported.
+    private static int scanChunked(final byte[] data, int offset, final int length,
+            final int maxLength, final ByteArrayOutputStream decoded) throws ProtocolException {
+        int total = 0;
+        while (true) {
+            int lineEnd = -1;
+            for (int i = offset + 1; i < length; i++) {
+                if (data[i] == '\n' && data[i - 1] == '\r') {
+                    lineEnd = i - 1;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                if (length - offset > MAX_CHUNK_LINE_LENGTH) {
+                    throw new ProtocolException("chunk size line too long");
+                }
+                return -1;
+            }
+            String line = new String(data, offset, lineEnd - offset, StandardCharsets.ISO_8859_1);
+            final int extension = line.indexOf(';');
+            if (extension != -1) {
+                line = line.substring(0, extension);
+            }
+            final int size;
+            try {
+                size = Integer.parseInt(line.trim(), 16);
+            } catch (final NumberFormatException e) {
+                throw new ProtocolException("invalid chunk size");
+            }
+            if (size < 0 || size > maxLength - total) {
+                throw new ProtocolException("invalid chunk size");
+            }
+            offset = lineEnd + 2;
+
+            if (size == 0) {
+                if (length - offset < 2) {
+                    return -1;
+                }
+                if (data[offset] != '\r' || data[offset + 1] != '\n') {
+                    throw new ProtocolException("trailers not supported");
+                }
+                return offset + 2;
+            }
+            if (length - offset < size + 2) {
+                return -1;
+            }
+            if (data[offset + size] != '\r' || data[offset + size + 1] != '\n') {
+                throw new ProtocolException("invalid chunk");
+            }
+            if (decoded != null) {
+                decoded.write(data, offset, size);
+            }
+            total += size;
+            offset += size + 2;
+        }
+    }
+
+    // Hands the request off to a worker, holding back pipelined requests until it's done.
+    private void dispatch(final Connection connection, final Supplier<Response> handler) {
+        connection.processing = true;
+        try {
+            workers.execute(() -> {
+                Response response;
+                try {
+                    response = handler.get();
+                } catch (final RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "request handler failed", e);
+                    response = createResponse(500, "", true);
+                }
+                connection.completed = response;
+                completions.add(connection);
+                selector.wakeup();
+            });
+        } catch (final RejectedExecutionException e) {
+            connection.processing = false;
+            queueResponse(connection, createResponse(503, "", true));
+        }
+    }
+
+    private void handleRequest(final Connection connection, final Request request) {
+        requestsHandled.incrementAndGet();
+        if (!request.method.equals("POST")) {
+            queueResponse(connection, createResponse(405, "", !request.keepAlive));
+            return;
+        }
+        switch (request.path) {
+            case "/challenge":
+                final byte[] challengeMessage = issueChallenge();
+                if (challengeMessage == null) {
+                    queueResponse(connection, createResponse(503, "", !request.keepAlive));
+                } else {
+                    queueResponse(connection,
+                            createResponse(200, challengeMessage, !request.keepAlive));
+                }
+                break;
+            case "/verify":
+                dispatch(connection, () -> verify(request));
+                break;
+            case "/submit":
+                dispatch(connection, () -> submit(request, false));
+                break;
+            case SampleBundle.SUBMIT_PATH:
+                dispatch(connection, () -> submit(request, true));
+                break;
+            default:
+                queueResponse(connection, createResponse(404, "", !request.keepAlive));
+        }
+    }
+
+    private byte[] issueChallenge() {
+        final byte[] challenge;
+        if (statelessChallenge != null) {
+            challenge = statelessChallenge.generate();
+        } else {
+            challenge = challengeGenerator.next();
+            if (!challenges.register(challenge)) {
+                return null;
+            }
+        }
+        return Bytes.concat(new byte[]{PROTOCOL_VERSION}, challengeIndex, challenge);
+    }
+
+    private boolean consumeChallenge(final byte[] challenge) {
+        if (statelessChallenge != null) {
+            return statelessChallenge.validate(challenge);
+        }
+        return challenges.consume(challenge);
+    }
+
+    private boolean consumeChallenge(final long userId, final byte[] challenge) {
+        final NextChallenge next = nextChallenges.get(userId);
+        if (next != null && Arrays.equals(next.challenge, challenge) &&
+                nextChallenges.remove(userId, next)) {
+            return System.currentTimeMillis() < next.expiryMillis;
+        }
+        return consumeChallenge(challenge);
+    }
+
+    // Returns null when challenges are stateless.
+    private byte[] issueNextChallenge(final long userId) {
+        if (statelessChallenge != null) {
+            return null;
+        }
+        final byte[] challenge = challengeGenerator.next();
+        final long expiryMillis = System.currentTimeMillis() +
+                (long) verifyInterval * 1000 * NEXT_CHALLENGE_INTERVALS;
+        // replaces any unused challenge previously issued to the account
+        nextChallenges.put(userId, new NextChallenge(challenge, expiryMillis));
+        return Bytes.concat(new byte[]{PROTOCOL_VERSION}, challengeIndex, challenge);
+    }
+
+    // Called by the verifier under the device lock before it pins or updates the pinning data of
+    // the device, so an account can only pair a device nobody else owns and only update the
+    // pinning data of its own devices. A device belongs to the account that paired it.
+    private void authorizeDevice(final long userId, final String subscribeKey,
+            final String fingerprint, final boolean paired) throws AccountException {
+        if (paired) {
+            final Long owner = deviceOwners.get(fingerprint);
+            if (owner == null || owner != userId) {
+                throw new AccountException(403, "device not paired with account");
+            }
+        } else {
+            if (subscribeKey == null) {
+                throw new AccountException(400, "pairing requires subscribeKey");
+            }
+            final Long owner = deviceOwners.putIfAbsent(fingerprint, userId);
+            if (owner != null && owner != userId) {
+                throw new AccountException(403, "device paired with another account");
+            }
+        }
+    }
+
+    // Called on a worker thread.
+    private Response verify(final Request request) {
+        final boolean close = !request.keepAlive;
+        if (request.authorization == null) {
+            return createResponse(401, "", close);
+        }
+        final String[] tokens = request.authorization.split(" ");
+        if (tokens.length < 2 || tokens.length > 3 || !tokens[0].equals("Auditor")) {
+            return createResponse(400, "invalid authorization", close);
+        }
+        final long userId;
+        try {
+            userId = Long.parseLong(tokens[1]);
+        } catch (final NumberFormatException e) {
+            return createResponse(400, "invalid userId", close);
+        }
+
+        // the subscribeKey is only sent when pairing
+        final String subscribeKey = tokens.length == 3 ? tokens[2] : null;
+        if (subscribeKey != null) {
+            final String existing = accounts.putIfAbsent(userId, subscribeKey);
+            if (existing != null && !existing.equals(subscribeKey)) {
+                return createResponse(403, "invalid subscribeKey", close);
+            }
+        } else if (!accounts.containsKey(userId)) {
+            return createResponse(403, "unknown userId", close);
+        }
+
+        final AttestationVerifier.Result result;
+        try {
+            result = verifier.verifySerialized(request.body,
+                    (final byte[] challenge) -> consumeChallenge(userId, challenge),
+                    (final String fingerprint, final boolean paired) ->
+                            authorizeDevice(userId, subscribeKey, fingerprint, paired));
+        } catch (final AccountException e) {
+            return createResponse(e.status, e.getMessage(), close);
+        } catch (final DataFormatException | GeneralSecurityException | IOException e) {
+            return createResponse(400, "verification failed", close);
+        } catch (final BufferUnderflowException | IllegalArgumentException |
+                IndexOutOfBoundsException | NegativeArraySizeException e) {
+            // malformed serialized attestations aren't fully validated before parsing
+            return createResponse(400, "verification failed", close);
+        }
+
+        final String status = accounts.get(userId) + " " + verifyInterval + "\n";
+        final byte[] nextChallengeMessage = request.nextChallenge ?
+                issueNextChallenge(userId) : null;
+        if (nextChallengeMessage == null) {
+            return createResponse(200, status, close);
+        }
+        return createResponse(200,
+                status + BaseEncoding.base64().encode(nextChallengeMessage) + "\n", close);
+    }
+
+    // Called on a worker thread.
+    private Response submit(final Request request, final boolean bundle) {
+        final boolean close = !request.keepAlive;
+        if (request.body.length == 0) {
+            return createResponse(400, "empty sample", close);
+        }
+        if (bundle) {
+            if (!SampleBundle.CONTENT_TYPE.equals(request.contentType)) {
+                return createResponse(415, "", close);
+            }
+            try {
+                SampleBundle.parse(new ByteArrayInputStream(request.body));
+            } catch (final IOException e) {
+                return createResponse(400, "invalid sample bundle", close);
+            }
+        }
+        samplesReceived.incrementAndGet();
+
+        if (samplesDirectory != null) {
+            final String name = Hashing.sha256().hashBytes(request.body) +
+                    (bundle ? ".bundle" : ".txt");
+            try {
+                writeSample(name, request.body);
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "failed to store sample", e);
+                return createResponse(500, "", true);
+            }
+        }
+        return createResponse(200, "", close);
+    }
+
+    // Written to a temporary file and renamed, so readers of the directory never see a partial
+    // sample.
+    private void writeSample(final String name, final byte[] data) throws IOException {
+        final File file = new File(samplesDirectory, name);
+        if (file.exists()) {
+            return;
+        }
+        final File temporary = new File(samplesDirectory,
+                name + "." + Thread.currentThread().getId() + ".tmp");
+        try (final FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(data);
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("failed to store sample " + name);
+        }
+    }
+
+    private static String getReasonPhrase(final int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 415: return "Unsupported Media Type";
+            case 503: return "Service Unavailable";
+            default: return "Internal Server Error";
+        }
+    }
+
+    private static Response createResponse(final int status, final String body,
+            final boolean close) {
+        return createResponse(status, body.getBytes(StandardCharsets.UTF_8), close);
+    }
+
+    private static Response createResponse(final int status, final byte[] body,
+            final boolean close) {
+        final byte[] header = ("HTTP/1.1 " + status + " " + getReasonPhrase(status) + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                (status == 503 ? "Retry-After: " + RETRY_AFTER + "\r\n" : "") +
+                (close ? "Connection: close\r\n" : "") +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        return new Response(ByteBuffer.wrap(Bytes.concat(header, body)), close);
+    }
+
+    private static byte[] readFile(final String path) throws IOException {
+        try (final InputStream input = new FileInputStream(path)) {
+            return ByteStreams.toByteArray(input);
+        }
+    }
+
+    // usage: AttestationServer <port> <google_root.der> <deflate_dictionary.bin> [interval]
+    //
+    // Setting AUDITOR_CHALLENGE_KEY to a hex encoded key enables stateless challenges, and setting
+    // AUDITOR_SAMPLES_DIR to a directory stores the submitted samples there.
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("usage: AttestationServer <port> <root certificate> " +
+                    "<deflate dictionary> [verify interval]");
+            System.exit(1);
+        }
+        final X509Certificate root;
+        try (final InputStream input = new FileInputStream(args[1])) {
+            root = AttestationVerifier.generateCertificate(input);
+        }
+        final AttestationVerifier verifier = new AttestationVerifier(root, readFile(args[2]),
+                DeviceDatabase.fingerprintsStock,
+                DeviceDatabase.fingerprintsCopperheadOS, new InMemoryPinStore(), false);
+        final String challengeKey = System.getenv("AUDITOR_CHALLENGE_KEY");
+        final String samplesDirectory = System.getenv("AUDITOR_SAMPLES_DIR");
+        final int interval = args.length == 4 ? Integer.parseInt(args[3]) : DEFAULT_VERIFY_INTERVAL;
+        final AttestationServer server = new AttestationServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0])),
+                verifier, interval, Runtime.getRuntime().availableProcessors(),
+                challengeKey != null ?
+                        new StatelessChallenge(BaseEncoding.base16().decode(challengeKey)) : null,
+                samplesDirectory != null ? new File(samplesDirectory) : null);
+        server.start();
+        System.out.println("listening on port " + server.getPort());
+    }
+}
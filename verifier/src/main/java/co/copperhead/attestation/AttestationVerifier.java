@@ -0,0 +1,845 @@
+package co.copperhead.attestation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import co.copperhead.attestation.attestation.Attestation;
+import co.copperhead.attestation.attestation.AttestationApplicationId;
+import co.copperhead.attestation.attestation.AttestationPackageInfo;
+import co.copperhead.attestation.attestation.AuthorizationList;
+import co.copperhead.attestation.attestation.RootOfTrust;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.MAX_ENCODED_CHAIN_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.MAX_MESSAGE_SIZE;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_DEVICE_ADMIN;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_DEVICE_ADMIN_NON_SYSTEM;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION_MINIMUM;
+import static co.copperhead.attestation.AttestationConstants.SIGNATURE_ALGORITHM;
+
+// Serialization and verification of attestations without any dependency on the Android framework,
+// so it can be shared between the Auditor app and a verification server running on a regular JVM.
+//
+// The trust anchor, DEFLATE dictionary, device database and storage for pinning data are all
+// provided by the caller. Instances are immutable apart from the pin store and are safe to use
+// from multiple threads. Verifications of the same device are serialized so the downgrade
+// protection checks and the following update of the pinned values happen atomically.
+//
+// The protocol constants and device tables are in AttestationConstants and DeviceDatabase, and
+// devices are named by the name of their string resource so the app can look up a translation.
+class AttestationVerifier {
+    // Developer previews set osVersion to 0 as a placeholder value.
+    static final int DEVELOPER_PREVIEW_OS_VERSION = 0;
+
+    private static final HashFunction FINGERPRINT_HASH_FUNCTION = Hashing.sha256();
+    static final int FINGERPRINT_LENGTH = FINGERPRINT_HASH_FUNCTION.bits() / 8;
+
+    static final String ATTESTATION_APP_PACKAGE_NAME = "co.copperhead.attestation";
+    private static final int ATTESTATION_APP_MINIMUM_VERSION = 14;
+    private static final String ATTESTATION_APP_SIGNATURE_DIGEST_DEBUG =
+            "17727D8B61D55A864936B1A7B4A2554A15151F32EBCF44CDAA6E6C3258231890";
+    static final String ATTESTATION_APP_SIGNATURE_DIGEST_RELEASE =
+            "BE9FDEEE9EB474CEEB57B7795B75B0DFC0970EAA513574BC37A598E153916A8A";
+    private static final int OS_VERSION_MINIMUM = 80000;
+    private static final int OS_PATCH_LEVEL_MINIMUM = 201801;
+
+    private static final int DEVICE_LOCK_STRIPES = 64;
+    private static final int PINNED_KEY_CACHE_SIZE = 1024;
+
+    // Decides whether the challenge embedded in the attestation certificate is acceptable. It's
+    // called once per verification, so it can also consume single-use challenges.
+    interface ChallengeValidator {
+        boolean validate(byte[] challenge);
+    }
+
+    // Decides whether the verification may pin or update the pinning data of a device, such as on
+    // a server where devices belong to accounts. It's called under the device lock once the
+    // attestation has been verified and before anything is written to the pin store, so a
+    // verification it rejects by throwing has no side effects on the pinning data.
+    interface PinAuthorizer {
+        void authorize(String fingerprint, boolean paired) throws GeneralSecurityException;
+    }
+
+    static class BatchItem {
+        final byte[] attestationResult;
+        final ChallengeValidator challengeValidator;
+
+        BatchItem(final byte[] attestationResult, final ChallengeValidator challengeValidator) {
+            this.attestationResult = attestationResult;
+            this.challengeValidator = challengeValidator;
+        }
+    }
+
+    // either the result or the exception from a failed verification
+    static class BatchResult {
+        final Result result;
+        final Exception exception;
+
+        BatchResult(final Result result, final Exception exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+    }
+
+    static class DeviceInfo {
+        final String name;
+        final int attestationVersion;
+        final int keymasterVersion;
+        final boolean rollbackResistant;
+        final boolean perUserEncryption;
+
+        DeviceInfo(final String name, final int attestationVersion, final int keymasterVersion,
+                final boolean rollbackResistant, final boolean perUserEncryption) {
+            this.name = name;
+            this.attestationVersion = attestationVersion;
+            this.keymasterVersion = keymasterVersion;
+            this.rollbackResistant = rollbackResistant;
+            this.perUserEncryption = perUserEncryption;
+        }
+    }
+
+    static class Verified {
+        final String device;
+        final String verifiedBootKey;
+        final int osVersion;
+        final int osPatchLevel;
+        final int appVersion;
+        final boolean isStock;
+        final boolean perUserEncryption;
+
+        Verified(final String device, final String verifiedBootKey, final int osVersion,
+                final int osPatchLevel, final int appVersion, final boolean isStock,
+                final boolean perUserEncryption) {
+            this.device = device;
+            this.verifiedBootKey = verifiedBootKey;
+            this.osVersion = osVersion;
+            this.osPatchLevel = osPatchLevel;
+            this.appVersion = appVersion;
+            this.isStock = isStock;
+            this.perUserEncryption = perUserEncryption;
+        }
+    }
+
+    static class Result {
+        final String fingerprint;
+        // verified against the pinning data from a previous pairing
+        final boolean strong;
+        final Verified verified;
+        final int osEnforcedFlags;
+        // from the pinning data before this verification
+        final long verifiedTimeFirst;
+        final long verifiedTimeLast;
+
+        Result(final String fingerprint, final boolean strong, final Verified verified,
+                final int osEnforcedFlags, final long verifiedTimeFirst,
+                final long verifiedTimeLast) {
+            this.fingerprint = fingerprint;
+            this.strong = strong;
+            this.verified = verified;
+            this.osEnforcedFlags = osEnforcedFlags;
+            this.verifiedTimeFirst = verifiedTimeFirst;
+            this.verifiedTimeLast = verifiedTimeLast;
+        }
+    }
+
+    // A deserialized attestation that hasn't been verified yet.
+    static class Decoded {
+        final byte[] fingerprint;
+        // ends with the pinned root certificate
+        final Certificate[] certificates;
+        final ByteBuffer signedMessage;
+        final byte[] signature;
+        final int osEnforcedFlags;
+
+        Decoded(final byte[] fingerprint, final Certificate[] certificates,
+                final ByteBuffer signedMessage, final byte[] signature,
+                final int osEnforcedFlags) {
+            this.fingerprint = fingerprint;
+            this.certificates = certificates;
+            this.signedMessage = signedMessage;
+            this.signature = signature;
+            this.osEnforcedFlags = osEnforcedFlags;
+        }
+    }
+
+    private static class PinnedKey {
+        final PublicKey persistentKey;
+        // digest of the pinned certificate chain after the persistent key
+        final byte[] chainDigest;
+
+        PinnedKey(final PublicKey persistentKey, final byte[] chainDigest) {
+            this.persistentKey = persistentKey;
+            this.chainDigest = chainDigest;
+        }
+    }
+
+    private final X509Certificate root;
+    private final byte[] dictionary;
+    private final ImmutableMap<String, DeviceInfo> fingerprintsStock;
+    private final ImmutableMap<String, DeviceInfo> fingerprintsCopperheadOS;
+    private final PinStore pinStore;
+    private final boolean allowDebug;
+    private final Striped<Lock> deviceLocks = Striped.lock(DEVICE_LOCK_STRIPES);
+    // Decoded pinning data of recently verified devices, so paired verifications don't need to
+    // parse the pinned certificates. Entries are only added and replaced under the device lock.
+    private final Cache<String, PinnedKey> pinnedKeys = CacheBuilder.newBuilder()
+            .maximumSize(PINNED_KEY_CACHE_SIZE)
+            .recordStats()
+            .build();
+
+    AttestationVerifier(final X509Certificate root, final byte[] dictionary,
+            final Map<String, DeviceInfo> fingerprintsStock,
+            final Map<String, DeviceInfo> fingerprintsCopperheadOS, final PinStore pinStore,
+            final boolean allowDebug) {
+        this.root = root;
+        this.dictionary = dictionary.clone();
+        this.fingerprintsStock = ImmutableMap.copyOf(fingerprintsStock);
+        this.fingerprintsCopperheadOS = ImmutableMap.copyOf(fingerprintsCopperheadOS);
+        this.pinStore = pinStore;
+        this.allowDebug = allowDebug;
+    }
+
+    static X509Certificate generateCertificate(final InputStream in)
+            throws CertificateException {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+    }
+
+    static byte[] getFingerprint(final Certificate certificate)
+            throws CertificateEncodingException {
+        return FINGERPRINT_HASH_FUNCTION.hashBytes(certificate.getEncoded()).asBytes();
+    }
+
+    // Digest of the encoded certificate chain after the persistent key, including the count and
+    // lengths so distinct chains can't produce the same input.
+    private static byte[] getChainDigest(final byte[][] encoded) {
+        final Hasher hasher = FINGERPRINT_HASH_FUNCTION.newHasher();
+        hasher.putInt(encoded.length - 1);
+        for (int i = 1; i < encoded.length; i++) {
+            hasher.putInt(encoded[i].length);
+            hasher.putBytes(encoded[i]);
+        }
+        return hasher.hash().asBytes();
+    }
+
+    private static byte[] getChainDigest(final Certificate[] certificates)
+            throws CertificateEncodingException {
+        final byte[][] encoded = new byte[certificates.length][];
+        for (int i = 1; i < certificates.length; i++) {
+            encoded[i] = certificates[i].getEncoded();
+        }
+        return getChainDigest(encoded);
+    }
+
+    CacheStats getPinnedKeyCacheStats() {
+        return pinnedKeys.stats();
+    }
+
+    // Drops the cached pinning data, which must be done when it's cleared from the PinStore.
+    void invalidatePinnedKeys() {
+        pinnedKeys.invalidateAll();
+    }
+
+    Verified verifyStateless(final Certificate[] certificates, final byte[] challenge,
+            final Certificate root) throws GeneralSecurityException {
+        return verifyStateless(certificates,
+                attestationChallenge -> Arrays.equals(attestationChallenge, challenge), root);
+    }
+
+    // Checks everything that doesn't depend on the pinning data. This is the expensive part of
+    // verification and it's safe to run concurrently for the same device.
+    //
+    // If the chain is identical to the cached pinned chain, only the signature on the leaf
+    // certificate is verified since the rest was verified at pairing time. The chain is compared
+    // against the pinning data again under the device lock, so a stale cache entry can't be used
+    // to accept a different chain.
+    Verified verifyStateless(final Decoded decoded, final ChallengeValidator challengeValidator)
+            throws GeneralSecurityException {
+        final PinnedKey pinnedKey =
+                pinnedKeys.getIfPresent(BaseEncoding.base16().encode(decoded.fingerprint));
+        final boolean pinnedChain = pinnedKey != null &&
+                Arrays.equals(getChainDigest(decoded.certificates), pinnedKey.chainDigest);
+        return verifyStateless(decoded.certificates, challengeValidator, root, pinnedChain);
+    }
+
+    private Verified verifyStateless(final Certificate[] certificates,
+            final ChallengeValidator challengeValidator, final Certificate root)
+            throws GeneralSecurityException {
+        return verifyStateless(certificates, challengeValidator, root, false);
+    }
+
+    private Verified verifyStateless(final Certificate[] certificates,
+            final ChallengeValidator challengeValidator, final Certificate root,
+            final boolean pinnedChain) throws GeneralSecurityException {
+
+        long stageStart = System.nanoTime();
+        if (pinnedChain) {
+            verifyLeafCertificateSignature(certificates);
+        } else {
+            verifyCertificateSignatures(certificates);
+        }
+        VerificationMetrics.record(VerificationMetrics.Stage.VERIFY_CHAIN, stageStart);
+
+        // check that the root certificate is the Google key attestation root
+        if (!Arrays.equals(root.getEncoded(), certificates[certificates.length - 1].getEncoded())) {
+            throw new GeneralSecurityException("root certificate is not the Google key attestation root");
+        }
+
+        stageStart = System.nanoTime();
+        final Attestation attestation = certificates[0] instanceof LeafCertificate ?
+                new Attestation(((LeafCertificate) certificates[0]).getExtensionValue(
+                        Attestation.KEY_DESCRIPTION_OID)) :
+                new Attestation((X509Certificate) certificates[0]);
+        VerificationMetrics.record(VerificationMetrics.Stage.PARSE_ATTESTATION, stageStart);
+
+        // enforce hardware-based attestation
+        if (attestation.getAttestationSecurityLevel() != Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT) {
+            throw new GeneralSecurityException("attestation security level is software");
+        }
+        if (attestation.getKeymasterSecurityLevel() != Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT) {
+            throw new GeneralSecurityException("keymaster security level is software");
+        }
+
+        // prevent replay attacks
+        if (!challengeValidator.validate(attestation.getAttestationChallenge())) {
+            throw new GeneralSecurityException("challenge mismatch");
+        }
+
+        // enforce communicating with the attestation app via OS level security
+        final AuthorizationList softwareEnforced = attestation.getSoftwareEnforced();
+        final AttestationApplicationId attestationApplicationId = softwareEnforced.getAttestationApplicationId();
+        final List<AttestationPackageInfo> infos = attestationApplicationId.getAttestationPackageInfos();
+        if (infos.size() != 1) {
+            throw new GeneralSecurityException("wrong number of attestation packages");
+        }
+        final AttestationPackageInfo info = infos.get(0);
+        if (!ATTESTATION_APP_PACKAGE_NAME.equals(info.getPackageName())) {
+            throw new GeneralSecurityException("wrong attestation app package name");
+        }
+        final int appVersion = info.getVersion();
+        if (appVersion < ATTESTATION_APP_MINIMUM_VERSION) {
+            throw new GeneralSecurityException("attestation app is too old");
+        }
+        final List<byte[]> signatureDigests = attestationApplicationId.getSignatureDigests();
+        if (signatureDigests.size() != 1) {
+            throw new GeneralSecurityException("wrong number of attestation app signature digests");
+        }
+        final String signatureDigest = BaseEncoding.base16().encode(signatureDigests.get(0));
+        if (!ATTESTATION_APP_SIGNATURE_DIGEST_RELEASE.equals(signatureDigest)) {
+            if (!allowDebug || !ATTESTATION_APP_SIGNATURE_DIGEST_DEBUG.equals(signatureDigest)) {
+                throw new GeneralSecurityException("wrong attestation app signature digest");
+            }
+        }
+
+        final AuthorizationList teeEnforced = attestation.getTeeEnforced();
+
+        // verified boot security checks
+        final RootOfTrust rootOfTrust = teeEnforced.getRootOfTrust();
+        if (rootOfTrust == null) {
+            throw new GeneralSecurityException("missing root of trust");
+        }
+        if (!rootOfTrust.isDeviceLocked()) {
+            throw new GeneralSecurityException("device is not locked");
+        }
+        final int osVersion = teeEnforced.getOsVersion();
+        if (osVersion == DEVELOPER_PREVIEW_OS_VERSION) {
+            if (!allowDebug) {
+                throw new GeneralSecurityException("OS version is not a production release");
+            }
+        } else if (osVersion < OS_VERSION_MINIMUM) {
+            throw new GeneralSecurityException("OS version too old");
+        }
+        final int osPatchLevel = teeEnforced.getOsPatchLevel();
+        if (osPatchLevel < OS_PATCH_LEVEL_MINIMUM) {
+            throw new GeneralSecurityException("OS patch level too old");
+        }
+
+        final int verifiedBootState = rootOfTrust.getVerifiedBootState();
+        final String verifiedBootKey = BaseEncoding.base16().encode(rootOfTrust.getVerifiedBootKey());
+        final DeviceInfo device;
+        final boolean stock;
+        if (verifiedBootState == RootOfTrust.KM_VERIFIED_BOOT_SELF_SIGNED) {
+            device = fingerprintsCopperheadOS.get(verifiedBootKey);
+            stock = false;
+        } else if (verifiedBootState == RootOfTrust.KM_VERIFIED_BOOT_VERIFIED) {
+            device = fingerprintsStock.get(verifiedBootKey);
+            stock = true;
+        } else {
+            throw new GeneralSecurityException("verified boot state is not verified or self signed");
+        }
+
+        if (device == null) {
+            throw new GeneralSecurityException("invalid key fingerprint");
+        }
+
+        // key sanity checks
+        if (teeEnforced.getOrigin() != AuthorizationList.KM_ORIGIN_GENERATED) {
+            throw new GeneralSecurityException("not a generated key");
+        }
+        if (teeEnforced.isAllApplications()) {
+            throw new GeneralSecurityException("expected key only usable by attestation app");
+        }
+        if (device.rollbackResistant && !teeEnforced.isRollbackResistant()) {
+            throw new GeneralSecurityException("expected rollback resistant key");
+        }
+
+        // version sanity checks
+        if (attestation.getAttestationVersion() < device.attestationVersion) {
+            throw new GeneralSecurityException("attestation version below " + device.attestationVersion);
+        }
+        if (attestation.getKeymasterVersion() < device.keymasterVersion) {
+            throw new GeneralSecurityException("keymaster version below " + device.keymasterVersion);
+        }
+
+        return new Verified(device.name, verifiedBootKey, osVersion, osPatchLevel, appVersion,
+                stock, device.perUserEncryption);
+    }
+
+    private static void verifyCertificateSignatures(Certificate[] certChain)
+            throws GeneralSecurityException {
+        for (int i = 1; i < certChain.length; ++i) {
+            final PublicKey pubKey = certChain[i].getPublicKey();
+            try {
+                checkValidity(certChain[i - 1]);
+                certChain[i - 1].verify(pubKey);
+            } catch (InvalidKeyException | CertificateException | NoSuchAlgorithmException
+                    | NoSuchProviderException | SignatureException e) {
+                throw new GeneralSecurityException("Failed to verify certificate "
+                        + certChain[i - 1] + " with public key " + certChain[i].getPublicKey(), e);
+            }
+            if (i == certChain.length - 1) {
+                // Last cert is self-signed.
+                try {
+                    checkValidity(certChain[i]);
+                    certChain[i].verify(pubKey);
+                } catch (CertificateException e) {
+                    throw new GeneralSecurityException(
+                            "Root cert " + certChain[i] + " is not correctly self-signed", e);
+                }
+            }
+        }
+    }
+
+    private static void checkValidity(final Certificate certificate) throws CertificateException {
+        if (certificate instanceof LeafCertificate) {
+            ((LeafCertificate) certificate).checkValidity();
+        } else {
+            ((X509Certificate) certificate).checkValidity();
+        }
+    }
+
+    // Checks the validity period of every certificate but only the signature on the leaf.
+    private static void verifyLeafCertificateSignature(final Certificate[] certChain)
+            throws GeneralSecurityException {
+        for (final Certificate certificate : certChain) {
+            try {
+                checkValidity(certificate);
+            } catch (CertificateException e) {
+                throw new GeneralSecurityException("Certificate " + certificate + " is not valid", e);
+            }
+        }
+        try {
+            certChain[0].verify(certChain[1].getPublicKey());
+        } catch (InvalidKeyException | CertificateException | NoSuchAlgorithmException
+                | NoSuchProviderException | SignatureException e) {
+            throw new GeneralSecurityException("Failed to verify certificate "
+                    + certChain[0] + " with public key " + certChain[1].getPublicKey(), e);
+        }
+    }
+
+    private static void verifySignature(final PublicKey key, final ByteBuffer message,
+            final byte[] signature) throws GeneralSecurityException {
+        final Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+        sig.initVerify(key);
+        sig.update(message);
+        if (!sig.verify(signature)) {
+            throw new GeneralSecurityException("signature verification failed");
+        }
+    }
+
+    // Checks the attestation against the pinning data and pins or updates it, serialized per
+    // device. The signature is checked here since it has to be made by the pinned persistent key
+    // for a paired device.
+    Result verifyPinned(final Decoded decoded, final Verified verified)
+            throws GeneralSecurityException, IOException {
+        return verifyPinned(decoded, verified, null);
+    }
+
+    Result verifyPinned(final Decoded decoded, final Verified verified,
+            final PinAuthorizer pinAuthorizer) throws GeneralSecurityException, IOException {
+        final byte[] fingerprint = decoded.fingerprint;
+        final Certificate[] attestationCertificates = decoded.certificates;
+        final ByteBuffer signedMessage = decoded.signedMessage.duplicate();
+        final byte[] signature = decoded.signature;
+        final int osEnforcedFlags = decoded.osEnforcedFlags;
+        final String fingerprintHex = BaseEncoding.base16().encode(fingerprint);
+        final byte[] currentFingerprint = getFingerprint(attestationCertificates[0]);
+        final boolean hasPersistentKey = !Arrays.equals(currentFingerprint, fingerprint);
+
+        final Lock lock = deviceLocks.get(fingerprintHex);
+        long stageStart = System.nanoTime();
+        lock.lock();
+        VerificationMetrics.record(VerificationMetrics.Stage.DEVICE_LOCK, stageStart);
+        try {
+            stageStart = System.nanoTime();
+            final PinStore.PinnedDevice pinned = pinStore.load(fingerprintHex);
+            VerificationMetrics.record(VerificationMetrics.Stage.PIN_LOAD, stageStart);
+            if (hasPersistentKey && pinned == null) {
+                throw new GeneralSecurityException(
+                        "Pairing data for this Auditee is missing. Cannot perform paired attestation.\n" +
+                        "\nEither the initial pairing was incomplete or the device is compromised.\n" +
+                        "\nIf the initial pairing was simply not completed, clear the pairing data on either the Auditee or the Auditor via the menu and try again.\n");
+            }
+
+            final long now = new Date().getTime();
+
+            if (hasPersistentKey) {
+                PinnedKey pinnedKey = pinnedKeys.getIfPresent(fingerprintHex);
+                if (pinnedKey == null) {
+                    final Certificate persistentCertificate =
+                            new LeafCertificate(pinned.certificates[0]);
+                    if (!Arrays.equals(fingerprint, getFingerprint(persistentCertificate))) {
+                        throw new GeneralSecurityException("corrupt Auditor pinning data");
+                    }
+                    pinnedKey = new PinnedKey(persistentCertificate.getPublicKey(),
+                            getChainDigest(pinned.certificates));
+                    pinnedKeys.put(fingerprintHex, pinnedKey);
+                }
+
+                if (!Arrays.equals(getChainDigest(attestationCertificates), pinnedKey.chainDigest)) {
+                    throw new GeneralSecurityException("certificate chain mismatch");
+                }
+
+                stageStart = System.nanoTime();
+                verifySignature(pinnedKey.persistentKey, signedMessage, signature);
+                VerificationMetrics.record(VerificationMetrics.Stage.VERIFY_SIGNATURE, stageStart);
+
+                // TODO: make the pinned verified boot key mandatory in a future version
+                if (pinned.verifiedBootKey != null && !verified.verifiedBootKey.equals(pinned.verifiedBootKey)) {
+                    throw new GeneralSecurityException("pinned verified boot key mismatch");
+                }
+                if (verified.osVersion != DEVELOPER_PREVIEW_OS_VERSION &&
+                        verified.osVersion < pinned.osVersion) {
+                    throw new GeneralSecurityException("OS version downgrade detected");
+                }
+                if (verified.osPatchLevel < pinned.osPatchLevel) {
+                    throw new GeneralSecurityException("OS patch level downgrade detected");
+                }
+                if (verified.appVersion < pinned.appVersion) {
+                    throw new GeneralSecurityException("App version downgraded");
+                }
+
+                if (pinAuthorizer != null) {
+                    pinAuthorizer.authorize(fingerprintHex, true);
+                }
+                stageStart = System.nanoTime();
+                pinStore.update(fingerprintHex, pinned, verified.verifiedBootKey,
+                        verified.osVersion, verified.osPatchLevel, verified.appVersion, now);
+                VerificationMetrics.record(VerificationMetrics.Stage.PIN_STORE, stageStart);
+
+                return new Result(fingerprintHex, true, verified, osEnforcedFlags,
+                        pinned.verifiedTimeFirst, pinned.verifiedTimeLast);
+            } else {
+                stageStart = System.nanoTime();
+                verifySignature(attestationCertificates[0].getPublicKey(), signedMessage, signature);
+                VerificationMetrics.record(VerificationMetrics.Stage.VERIFY_SIGNATURE, stageStart);
+
+                if (pinAuthorizer != null) {
+                    pinAuthorizer.authorize(fingerprintHex, false);
+                }
+                final byte[][] encoded = new byte[attestationCertificates.length][];
+                for (int i = 0; i < attestationCertificates.length; i++) {
+                    encoded[i] = attestationCertificates[i].getEncoded();
+                }
+                stageStart = System.nanoTime();
+                pinStore.pair(fingerprintHex, new PinStore.PinnedDevice(encoded,
+                        verified.verifiedBootKey, verified.osVersion, verified.osPatchLevel,
+                        verified.appVersion, now, now));
+                VerificationMetrics.record(VerificationMetrics.Stage.PIN_STORE, stageStart);
+                pinnedKeys.put(fingerprintHex, new PinnedKey(
+                        attestationCertificates[0].getPublicKey(), getChainDigest(encoded)));
+
+                return new Result(fingerprintHex, false, verified, osEnforcedFlags, now, now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Serialize an attestation for the Auditor, signed with the persistent key. The chain is the
+    // one returned by the keystore, including the root certificate that isn't sent.
+    static byte[] serialize(final byte maxVersion, final Certificate[] attestationCertificates,
+            final byte[] fingerprint, final int osEnforcedFlags, final byte[] dictionary,
+            final PrivateKey persistentKey) throws GeneralSecurityException, IOException {
+        final ByteBuffer serializer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+
+        final byte version = (byte) Math.min(PROTOCOL_VERSION, maxVersion);
+        serializer.put(version);
+
+        final ByteBuffer chainSerializer = ByteBuffer.allocate(MAX_ENCODED_CHAIN_LENGTH);
+        final int certificateCount = attestationCertificates.length - 1;
+        for (int i = 0; i < certificateCount; i++) {
+            final byte[] encoded = attestationCertificates[i].getEncoded();
+            if (encoded.length > Short.MAX_VALUE) {
+                throw new RuntimeException("encoded certificate too long");
+            }
+            chainSerializer.putShort((short) encoded.length);
+            chainSerializer.put(encoded);
+        }
+        chainSerializer.flip();
+        final byte[] chain = new byte[chainSerializer.remaining()];
+        chainSerializer.get(chain);
+
+        if (chain.length > MAX_ENCODED_CHAIN_LENGTH) {
+            throw new RuntimeException("encoded certificate chain too long");
+        }
+
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(dictionary);
+        final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(byteStream, deflater);
+        deflaterStream.write(chain);
+        deflaterStream.finish();
+        deflater.end();
+        final byte[] compressed = byteStream.toByteArray();
+
+        if (compressed.length > Short.MAX_VALUE) {
+            throw new RuntimeException("compressed chain too long");
+        }
+        serializer.putShort((short) compressed.length);
+        serializer.put(compressed);
+
+        if (fingerprint.length != FINGERPRINT_LENGTH) {
+            throw new RuntimeException("fingerprint length mismatch");
+        }
+        serializer.put(fingerprint);
+
+        if (version < 2) {
+            serializer.put((byte) osEnforcedFlags);
+        } else {
+            serializer.putInt(osEnforcedFlags);
+        }
+
+        final ByteBuffer message = serializer.duplicate();
+        message.flip();
+
+        final Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+        sig.initSign(persistentKey);
+        sig.update(message);
+        final byte[] signature = sig.sign();
+
+        serializer.put(signature);
+
+        serializer.flip();
+        final byte[] serialized = new byte[serializer.remaining()];
+        serializer.get(serialized);
+        return serialized;
+    }
+
+    Result verifySerialized(final byte[] attestationResult, final byte[] challengeMessage)
+            throws DataFormatException, GeneralSecurityException, IOException {
+        final byte[] challenge = Arrays.copyOfRange(challengeMessage, 1 + CHALLENGE_LENGTH, 1 + CHALLENGE_LENGTH * 2);
+        return verifySerialized(attestationResult,
+                attestationChallenge -> Arrays.equals(attestationChallenge, challenge));
+    }
+
+    // Verify an attestation where the challenge isn't known in advance, such as on a server
+    // receiving attestations for any of the challenges it has issued.
+    Result verifySerialized(final byte[] attestationResult,
+            final ChallengeValidator challengeValidator)
+            throws DataFormatException, GeneralSecurityException, IOException {
+        return verifySerialized(attestationResult, challengeValidator, null);
+    }
+
+    Result verifySerialized(final byte[] attestationResult,
+            final ChallengeValidator challengeValidator, final PinAuthorizer pinAuthorizer)
+            throws DataFormatException, GeneralSecurityException, IOException {
+        final long start = System.nanoTime();
+        final Result result;
+        try {
+            final Decoded decoded = decode(attestationResult);
+            result = verifyPinned(decoded, verifyStateless(decoded, challengeValidator),
+                    pinAuthorizer);
+        } catch (final DataFormatException | GeneralSecurityException | IOException |
+                RuntimeException e) {
+            VerificationMetrics.increment(VerificationMetrics.Counter.VERIFY_FAILED);
+            throw e;
+        }
+        VerificationMetrics.record(VerificationMetrics.Stage.VERIFY, start);
+        VerificationMetrics.increment(result.strong ?
+                VerificationMetrics.Counter.VERIFIED_PAIRED :
+                VerificationMetrics.Counter.VERIFIED_PAIRING);
+        return result;
+    }
+
+    Decoded decode(final byte[] attestationResult)
+            throws DataFormatException, GeneralSecurityException {
+        final ByteBuffer deserializer = ByteBuffer.wrap(attestationResult);
+        final byte version = deserializer.get();
+        if (version > PROTOCOL_VERSION) {
+            throw new GeneralSecurityException("unsupported protocol version: " + version);
+        } else if (version < PROTOCOL_VERSION_MINIMUM) {
+            throw new GeneralSecurityException("App version on the other device too old, update to 5 or later");
+        }
+
+        final short compressedChainLength = deserializer.getShort();
+        final byte[] compressedChain = new byte[compressedChainLength];
+        deserializer.get(compressedChain);
+
+        long stageStart = System.nanoTime();
+        final byte[] chain = new byte[MAX_ENCODED_CHAIN_LENGTH];
+        final Inflater inflater = new Inflater(true);
+        inflater.setInput(compressedChain);
+        inflater.setDictionary(dictionary);
+        final int chainLength = inflater.inflate(chain);
+        if (!inflater.finished()) {
+            throw new GeneralSecurityException("certificate chain is too large");
+        }
+        inflater.end();
+        VerificationMetrics.record(VerificationMetrics.Stage.INFLATE, stageStart);
+
+        stageStart = System.nanoTime();
+        final ByteBuffer chainDeserializer = ByteBuffer.wrap(chain, 0, chainLength);
+        final List<Certificate> certs = new ArrayList<>();
+        while (chainDeserializer.hasRemaining()) {
+            final short encodedLength = chainDeserializer.getShort();
+            final byte[] encoded = new byte[encodedLength];
+            chainDeserializer.get(encoded);
+            // only the leaf is needed beyond verifying the chain
+            certs.add(certs.isEmpty() ? new LeafCertificate(encoded) :
+                    generateCertificate(new ByteArrayInputStream(encoded)));
+        }
+        final Certificate[] certificates = certs.toArray(new Certificate[certs.size() + 1]);
+        VerificationMetrics.record(VerificationMetrics.Stage.DECODE_CERTIFICATES, stageStart);
+
+        final byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+        deserializer.get(fingerprint);
+
+        final int osEnforcedFlags;
+        if (version < 2) {
+            osEnforcedFlags = deserializer.get();
+        } else {
+            osEnforcedFlags = deserializer.getInt();
+        }
+        final boolean deviceAdmin = (osEnforcedFlags & OS_ENFORCED_FLAGS_DEVICE_ADMIN) != 0;
+        final boolean deviceAdminNonSystem = (osEnforcedFlags & OS_ENFORCED_FLAGS_DEVICE_ADMIN_NON_SYSTEM) != 0;
+        if (deviceAdminNonSystem && !deviceAdmin) {
+            throw new GeneralSecurityException("invalid device administrator state");
+        }
+
+        final int signatureLength = deserializer.remaining();
+        final byte[] signature = new byte[signatureLength];
+        deserializer.get(signature);
+
+        certificates[certificates.length - 1] = root;
+
+        deserializer.rewind();
+        deserializer.limit(deserializer.capacity() - signature.length);
+
+        return new Decoded(fingerprint, certificates, deserializer.asReadOnlyBuffer(), signature,
+                osEnforcedFlags);
+    }
+
+    // Returns the fingerprint of the persistent key from a serialized attestation without
+    // verifying anything, or null if the message is truncated.
+    private static String peekFingerprint(final byte[] attestationResult) {
+        final ByteBuffer deserializer = ByteBuffer.wrap(attestationResult);
+        try {
+            deserializer.get();
+            final short compressedChainLength = deserializer.getShort();
+            if (compressedChainLength < 0) {
+                return null;
+            }
+            deserializer.position(deserializer.position() + compressedChainLength);
+            final byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+            deserializer.get(fingerprint);
+            return BaseEncoding.base16().encode(fingerprint);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Verify a batch of serialized attestations. Attestations from different devices are
+    // verified in parallel on the executor, while those from the same device are verified in
+    // order on one thread so they don't contend for the device lock and each update of the
+    // pinning data is seen by the next verification. Results are returned in the order of the items.
+    List<BatchResult> verifyBatch(final List<BatchItem> items, final Executor executor) {
+        final Map<String, List<Integer>> devices = new LinkedHashMap<>();
+        final List<List<Integer>> groups = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            final String fingerprint = peekFingerprint(items.get(i).attestationResult);
+            if (fingerprint == null) {
+                groups.add(Collections.singletonList(i));
+                continue;
+            }
+            List<Integer> group = devices.get(fingerprint);
+            if (group == null) {
+                group = new ArrayList<>();
+                devices.put(fingerprint, group);
+                groups.add(group);
+            }
+            group.add(i);
+        }
+
+        final BatchResult[] results = new BatchResult[items.size()];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[groups.size()];
+        for (int i = 0; i < futures.length; i++) {
+            final List<Integer> group = groups.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> {
+                for (final int index : group) {
+                    final BatchItem item = items.get(index);
+                    try {
+                        results[index] = new BatchResult(verifySerialized(item.attestationResult,
+                                item.challengeValidator), null);
+                    } catch (final DataFormatException | GeneralSecurityException | IOException |
+                            RuntimeException e) {
+                        results[index] = new BatchResult(null, e);
+                    }
+                }
+            }, executor);
+        }
+        CompletableFuture.allOf(futures).join();
+        return Arrays.asList(results);
+    }
+}
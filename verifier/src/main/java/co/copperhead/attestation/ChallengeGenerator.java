@@ -0,0 +1,97 @@
+package co.copperhead.attestation;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+
+// Random challenges from long-lived generators rather than instantiating and seeding a new
+// SecureRandom for each one. Each thread gets its own generator so they aren't contended.
+//
+// Instances also keep a bounded buffer of pre-generated challenges for serving bursts. The buffer
+// is refilled in bulk on a background executor once it drops below half full, with a single
+// nextBytes call covering many challenges. Challenges are only handed out once and the buffer
+// falls back to generating them directly when it's empty.
+class ChallengeGenerator {
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final BlockingQueue<byte[]> buffer;
+    private final int capacity;
+    private final Executor executor;
+    private final AtomicBoolean filling = new AtomicBoolean();
+
+    // A capacity of 0 disables the buffer. The executor is only used when buffering.
+    ChallengeGenerator(final int capacity, final Executor executor) {
+        this.capacity = capacity;
+        this.executor = executor;
+        buffer = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null;
+    }
+
+    static SecureRandom getRandom() {
+        return random.get();
+    }
+
+    static byte[] generateChallenge() {
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.get().nextBytes(challenge);
+        return challenge;
+    }
+
+    byte[] next() {
+        if (buffer == null) {
+            return generateChallenge();
+        }
+        final byte[] challenge = buffer.poll();
+        if (buffer.size() < capacity / 2) {
+            scheduleFill();
+        }
+        return challenge != null ? challenge : generateChallenge();
+    }
+
+    int buffered() {
+        return buffer != null ? buffer.size() : 0;
+    }
+
+    private void scheduleFill() {
+        if (!filling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    fill();
+                } finally {
+                    filling.set(false);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            filling.set(false);
+        }
+    }
+
+    // Tops up the buffer, which can also be called directly to fill it ahead of time.
+    void fill() {
+        if (buffer == null) {
+            return;
+        }
+        final int count = capacity - buffer.size();
+        if (count <= 0) {
+            return;
+        }
+        final byte[] bulk = new byte[count * CHALLENGE_LENGTH];
+        random.get().nextBytes(bulk);
+        for (int i = 0; i < count; i++) {
+            final byte[] challenge = Arrays.copyOfRange(bulk, i * CHALLENGE_LENGTH,
+                    (i + 1) * CHALLENGE_LENGTH);
+            if (!buffer.offer(challenge)) {
+                break;
+            }
+        }
+        Arrays.fill(bulk, (byte) 0);
+    }
+}
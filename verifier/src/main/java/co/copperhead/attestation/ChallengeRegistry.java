@@ -0,0 +1,155 @@
+package co.copperhead.attestation;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+
+// Issued challenges kept server-side until they're used or expire after EXPIRE_OFFSET_MS.
+//
+// Lookups go through a concurrent hash table keyed by the challenge. Expiry is driven by a
+// hierarchical timing wheel of lock-free queues: the inner wheel has WHEEL_SIZE slots of TICK_MS
+// and the outer wheel has WHEEL_SIZE slots spanning a full turn of the inner wheel each. Entries
+// further out than the inner wheel are cascaded into it when their outer slot comes up, so
+// expiring entries never requires scanning the table. The wheel is advanced by whichever caller
+// first notices that a tick has passed.
+//
+// An entry registered concurrently with the wheel advancing past its slot is only removed a turn
+// later, but consume checks the expiry time itself so this only delays reclaiming the memory.
+class ChallengeRegistry {
+    private static final int TICK_MS = 1000;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static class Entry {
+        final ByteBuffer challenge;
+        final long expiry;
+
+        Entry(final ByteBuffer challenge, final long expiry) {
+            this.challenge = challenge;
+            this.expiry = expiry;
+        }
+    }
+
+    private final int capacity;
+    private final LongSupplier clock;
+    private final ConcurrentMap<ByteBuffer, Entry> challenges = new ConcurrentHashMap<>();
+    private final Queue<Entry>[] inner = createWheel();
+    private final Queue<Entry>[] outer = createWheel();
+    private final AtomicBoolean advancing = new AtomicBoolean();
+    // last tick that has been expired
+    private volatile long currentTick;
+
+    ChallengeRegistry(final int capacity) {
+        this(capacity, System::currentTimeMillis);
+    }
+
+    // The clock is only replaced by tests.
+    ChallengeRegistry(final int capacity, final LongSupplier clock) {
+        this.capacity = capacity;
+        this.clock = clock;
+        currentTick = clock.getAsLong() / TICK_MS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Entry>[] createWheel() {
+        final Queue<Entry>[] wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        return wheel;
+    }
+
+    // Returns false if the registry is full or the challenge was already registered.
+    boolean register(final byte[] challenge) {
+        final long now = clock.getAsLong();
+        advance(now);
+        if (challenges.size() >= capacity) {
+            return false;
+        }
+        final Entry entry = new Entry(ByteBuffer.wrap(challenge.clone()), now + EXPIRE_OFFSET_MS);
+        if (challenges.putIfAbsent(entry.challenge, entry) != null) {
+            return false;
+        }
+        schedule(entry);
+        return true;
+    }
+
+    // Removes a registered challenge, returning whether it was present and hadn't expired.
+    boolean consume(final byte[] challenge) {
+        final long now = clock.getAsLong();
+        advance(now);
+        final Entry entry = challenges.remove(ByteBuffer.wrap(challenge));
+        return entry != null && entry.expiry >= now;
+    }
+
+    int size() {
+        return challenges.size();
+    }
+
+    private void schedule(final Entry entry) {
+        // the first tick starting after the expiry, so entries are never expired early and an
+        // entry expiring on a tick boundary isn't kept for another turn
+        final long tick = entry.expiry / TICK_MS + 1;
+        if (tick - currentTick <= WHEEL_SIZE) {
+            inner[(int) (tick & WHEEL_MASK)].add(entry);
+        } else {
+            outer[(int) ((tick >>> WHEEL_BITS) & WHEEL_MASK)].add(entry);
+        }
+    }
+
+    private void advance(final long now) {
+        final long nowTick = now / TICK_MS;
+        if (nowTick <= currentTick || !advancing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // after a long idle period, only a full turn of each wheel needs to be processed
+            long tick = Math.max(currentTick + 1, nowTick - WHEEL_SIZE * WHEEL_SIZE);
+            for (; tick <= nowTick; tick++) {
+                if ((tick & WHEEL_MASK) == 0) {
+                    cascade(outer[(int) ((tick >>> WHEEL_BITS) & WHEEL_MASK)], now);
+                }
+                expire(inner[(int) (tick & WHEEL_MASK)], now);
+                currentTick = tick;
+            }
+        } finally {
+            advancing.set(false);
+        }
+    }
+
+    private void cascade(final Queue<Entry> slot, final long now) {
+        for (int n = slot.size(); n > 0; n--) {
+            final Entry entry = slot.poll();
+            if (entry == null) {
+                break;
+            }
+            if (entry.expiry < now) {
+                challenges.remove(entry.challenge, entry);
+            } else if (challenges.get(entry.challenge) == entry) {
+                schedule(entry);
+            }
+        }
+    }
+
+    private void expire(final Queue<Entry> slot, final long now) {
+        for (int n = slot.size(); n > 0; n--) {
+            final Entry entry = slot.poll();
+            if (entry == null) {
+                break;
+            }
+            if (entry.expiry < now) {
+                challenges.remove(entry.challenge, entry);
+            } else if (challenges.get(entry.challenge) == entry) {
+                // placed a turn ahead by a racing registration
+                slot.add(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package co.copperhead.attestation;
+
+import com.google.common.collect.ImmutableMap;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+// Devices supported by the verifier, keyed by the verified boot key fingerprint. Each device is
+// named by a string resource name, which the Auditor maps to a localized string and other users
+// of the verifier can use as an identifier.
+class DeviceDatabase {
+    static final ImmutableMap<String, DeviceInfo> fingerprintsCopperheadOS = ImmutableMap
+            .<String, DeviceInfo>builder()
+            .put("36D067F8517A2284781B99A2984966BFF02D3F47310F831FCDCC4D792426B6DF",
+                    new DeviceInfo("device_pixel_2", 2, 3, true, true))
+            .put("815DCBA82BAC1B1758211FF53CAA0B6883CB6C901BE285E1B291C8BDAA12DF75",
+                    new DeviceInfo("device_pixel_2_xl", 2, 3, true, true))
+            .build();
+    static final ImmutableMap<String, DeviceInfo> fingerprintsStock = ImmutableMap
+            .<String, DeviceInfo>builder()
+            .put("5341E6B2646979A70E57653007A1F310169421EC9BDD9F1A5648F75ADE005AF1",
+                    new DeviceInfo("device_bkl_l04", 2, 3, false, true))
+            .put("DFC2920C81E136FDD2A510478FDA137B262DC51D449EDD7D0BDB554745725CFE",
+                    new DeviceInfo("device_nokia_6_1", 2, 3, true, true))
+            .put("1962B0538579FFCE9AC9F507C46AFE3B92055BAC7146462283C85C500BE78D82",
+                    new DeviceInfo("device_pixel_2", 2, 3, true, true))
+            .put("171616EAEF26009FC46DC6D89F3D24217E926C81A67CE65D2E3A9DC27040C7AB",
+                    new DeviceInfo("device_pixel_2_xl", 2, 3, true, true))
+            .put("33D9484FD512E610BCF00C502827F3D55A415088F276C6506657215E622FA770",
+                    new DeviceInfo("device_sm_g960f", 1, 2, false, false))
+            .put("266869F7CF2FB56008EFC4BE8946C8F84190577F9CA688F59C72DD585E696488",
+                    new DeviceInfo("device_sm_g960u", 1, 2, false, false))
+            .put("D1C53B7A931909EC37F1939B14621C6E4FD19BF9079D195F86B3CEA47CD1F92D",
+                    new DeviceInfo("device_sm_g965f", 1, 2, false, false))
+            .put("A4A544C2CFBAEAA88C12360C2E4B44C29722FC8DBB81392A6C1FAEDB7BF63010",
+                    new DeviceInfo("device_sm_g965_msm", 1, 2, false, false))
+            .put("4285AD64745CC79B4499817F264DC16BF2AF5163AF6C328964F39E61EC84693E",
+                    new DeviceInfo("device_sony_xperia_xa2", 2, 3, true, true))
+            .put("54A9F21E9CFAD3A2D028517EF333A658302417DB7FB75E0A109A019646CC5F39",
+                    new DeviceInfo("device_sony_xperia_xz1_compact", 2, 3, true, true))
+            .build();
+
+    private DeviceDatabase() {
+    }
+}
@@ -0,0 +1,31 @@
+package co.copperhead.attestation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Pinning data kept only in memory, for verification servers used for testing.
+class InMemoryPinStore implements PinStore {
+    private final ConcurrentMap<String, PinnedDevice> devices = new ConcurrentHashMap<>();
+
+    @Override
+    public PinnedDevice load(final String fingerprint) {
+        return devices.get(fingerprint);
+    }
+
+    @Override
+    public void pair(final String fingerprint, final PinnedDevice device) {
+        devices.put(fingerprint, device);
+    }
+
+    @Override
+    public void update(final String fingerprint, final PinnedDevice previous,
+            final String verifiedBootKey, final int osVersion, final int osPatchLevel,
+            final int appVersion, final long verifiedTime) {
+        devices.put(fingerprint, new PinnedDevice(previous.certificates, verifiedBootKey,
+                osVersion, osPatchLevel, appVersion, previous.verifiedTimeFirst, verifiedTime));
+    }
+
+    void clear() {
+        devices.clear();
+    }
+}
@@ -0,0 +1,454 @@
+package co.copperhead.attestation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateParsingException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+// Lightweight view of the leaf certificate of an attestation chain.
+//
+// Only the DER structure of the certificate is walked to find the fields used for verification:
+// the TBS certificate and signature for verifying it against the batch certificate, the validity
+// period, the SubjectPublicKeyInfo and the extensions. These are kept as slices of the encoding,
+// which avoids building a full X509Certificate for every attestation. The rest of the chain still
+// goes through CertificateFactory.
+class LeafCertificate extends Certificate {
+    private static final int TAG_BOOLEAN = 0x01;
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_BIT_STRING = 0x03;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_UTC_TIME = 0x17;
+    private static final int TAG_GENERALIZED_TIME = 0x18;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_VERSION = 0xa0;
+    private static final int TAG_EXTENSIONS = 0xa3;
+
+    private static class Extension {
+        final String oid;
+        // encoded OCTET STRING holding the extension value
+        final int offset;
+        final int length;
+
+        Extension(final String oid, final int offset, final int length) {
+            this.oid = oid;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final byte[] encoded;
+    private final int tbsOffset;
+    private final int tbsLength;
+    private final String signatureAlgorithm;
+    private final byte[] signature;
+    private final long notBefore;
+    private final long notAfter;
+    private final int publicKeyOffset;
+    private final int publicKeyLength;
+    private final String keyAlgorithm;
+    // decoded on first use since it isn't needed for devices that are already paired
+    private volatile PublicKey publicKey;
+    private final List<Extension> extensions = new ArrayList<>();
+
+    LeafCertificate(final byte[] encoded) throws CertificateParsingException {
+        super("X.509");
+        this.encoded = encoded;
+
+        final DerReader outer = new DerReader(encoded, 0, encoded.length);
+        final DerReader certificate = outer.enter(TAG_SEQUENCE);
+        outer.finish();
+
+        tbsOffset = certificate.position;
+        final DerReader tbs = certificate.enter(TAG_SEQUENCE);
+        tbsLength = certificate.position - tbsOffset;
+        final int signatureAlgorithmOffset = certificate.position;
+        signatureAlgorithm = getSignatureAlgorithm(certificate.enter(TAG_SEQUENCE).readOid());
+        final int signatureAlgorithmLength = certificate.position - signatureAlgorithmOffset;
+        final DerReader signatureBits = certificate.enter(TAG_BIT_STRING);
+        if (signatureBits.readByte() != 0) {
+            throw new CertificateParsingException("signature has unused bits");
+        }
+        signature = Arrays.copyOfRange(encoded, signatureBits.position, signatureBits.end);
+        certificate.finish();
+
+        if (tbs.peek(TAG_VERSION)) {
+            tbs.skip(TAG_VERSION);
+        }
+        tbs.skip(TAG_INTEGER);
+        // the algorithm in the TBS certificate is covered by the signature and must match
+        final int innerAlgorithmOffset = tbs.position;
+        tbs.skip(TAG_SEQUENCE);
+        if (!rangeEquals(encoded, innerAlgorithmOffset, tbs.position - innerAlgorithmOffset,
+                signatureAlgorithmOffset, signatureAlgorithmLength)) {
+            throw new CertificateParsingException("signature algorithm mismatch");
+        }
+        tbs.skip(TAG_SEQUENCE); // issuer
+        final DerReader validity = tbs.enter(TAG_SEQUENCE);
+        notBefore = validity.readTime();
+        notAfter = validity.readTime();
+        validity.finish();
+        tbs.skip(TAG_SEQUENCE); // subject
+
+        publicKeyOffset = tbs.position;
+        final DerReader publicKeyInfo = tbs.enter(TAG_SEQUENCE);
+        publicKeyLength = tbs.position - publicKeyOffset;
+        keyAlgorithm = getKeyAlgorithm(publicKeyInfo.enter(TAG_SEQUENCE).readOid());
+
+        // skip the issuer and subject unique identifiers
+        while (tbs.hasRemaining() && !tbs.peek(TAG_EXTENSIONS)) {
+            tbs.skip(tbs.data[tbs.position] & 0xff);
+        }
+        if (tbs.hasRemaining()) {
+            final DerReader wrapper = tbs.enter(TAG_EXTENSIONS);
+            final DerReader sequence = wrapper.enter(TAG_SEQUENCE);
+            wrapper.finish();
+            while (sequence.hasRemaining()) {
+                final DerReader extension = sequence.enter(TAG_SEQUENCE);
+                final String oid = extension.readOid();
+                if (extension.peek(TAG_BOOLEAN)) {
+                    extension.skip(TAG_BOOLEAN);
+                }
+                final int valueOffset = extension.position;
+                extension.skip(TAG_OCTET_STRING);
+                extension.finish();
+                // RFC 5280 forbids more than one instance of an extension, and taking either one
+                // would let the other go unchecked
+                for (final Extension existing : extensions) {
+                    if (existing.oid.equals(oid)) {
+                        throw new CertificateParsingException("duplicate extension: " + oid);
+                    }
+                }
+                extensions.add(new Extension(oid, valueOffset, extension.position - valueOffset));
+            }
+        }
+        tbs.finish();
+    }
+
+    private static boolean rangeEquals(final byte[] data, final int offset1, final int length1,
+            final int offset2, final int length2) {
+        if (length1 != length2) {
+            return false;
+        }
+        for (int i = 0; i < length1; i++) {
+            if (data[offset1 + i] != data[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getSignatureAlgorithm(final String oid)
+            throws CertificateParsingException {
+        switch (oid) {
+            case "1.2.840.10045.4.3.2":
+                return "SHA256withECDSA";
+            case "1.2.840.10045.4.3.3":
+                return "SHA384withECDSA";
+            case "1.2.840.10045.4.3.4":
+                return "SHA512withECDSA";
+            case "1.2.840.113549.1.1.11":
+                return "SHA256withRSA";
+            case "1.2.840.113549.1.1.12":
+                return "SHA384withRSA";
+            case "1.2.840.113549.1.1.13":
+                return "SHA512withRSA";
+            default:
+                throw new CertificateParsingException("unsupported signature algorithm: " + oid);
+        }
+    }
+
+    private static String getKeyAlgorithm(final String oid) throws CertificateParsingException {
+        switch (oid) {
+            case "1.2.840.10045.2.1":
+                return "EC";
+            case "1.2.840.113549.1.1.1":
+                return "RSA";
+            default:
+                throw new CertificateParsingException("unsupported key algorithm: " + oid);
+        }
+    }
+
+    // Same format as X509Certificate.getExtensionValue: the encoded OCTET STRING holding the
+    // extension value, or null if the extension isn't present.
+    byte[] getExtensionValue(final String oid) {
+        for (final Extension extension : extensions) {
+            if (extension.oid.equals(oid)) {
+                return Arrays.copyOfRange(encoded, extension.offset,
+                        extension.offset + extension.length);
+            }
+        }
+        return null;
+    }
+
+    // The accessors below are named after their X509Certificate counterparts.
+
+    byte[] getTBSCertificate() {
+        return Arrays.copyOfRange(encoded, tbsOffset, tbsOffset + tbsLength);
+    }
+
+    byte[] getSignature() {
+        return signature.clone();
+    }
+
+    String getSigAlgName() {
+        return signatureAlgorithm;
+    }
+
+    Date getNotBefore() {
+        return new Date(notBefore);
+    }
+
+    Date getNotAfter() {
+        return new Date(notAfter);
+    }
+
+    void checkValidity() throws CertificateExpiredException, CertificateNotYetValidException {
+        checkValidity(new Date());
+    }
+
+    void checkValidity(final Date date)
+            throws CertificateExpiredException, CertificateNotYetValidException {
+        if (date.getTime() > notAfter) {
+            throw new CertificateExpiredException("certificate expired on " + new Date(notAfter));
+        }
+        if (date.getTime() < notBefore) {
+            throw new CertificateNotYetValidException("certificate not valid until " +
+                    new Date(notBefore));
+        }
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        return encoded.clone();
+    }
+
+    @Override
+    public void verify(final PublicKey key) throws CertificateException, NoSuchAlgorithmException,
+            InvalidKeyException, NoSuchProviderException, SignatureException {
+        verify(Signature.getInstance(signatureAlgorithm), key);
+    }
+
+    @Override
+    public void verify(final PublicKey key, final String sigProvider) throws CertificateException,
+            NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException,
+            SignatureException {
+        verify(Signature.getInstance(signatureAlgorithm, sigProvider), key);
+    }
+
+    private void verify(final Signature sig, final PublicKey key)
+            throws InvalidKeyException, SignatureException {
+        sig.initVerify(key);
+        sig.update(encoded, tbsOffset, tbsLength);
+        if (!sig.verify(signature)) {
+            throw new SignatureException("certificate signature verification failed");
+        }
+    }
+
+    // Throws IllegalArgumentException if the encoded key is invalid, since the interface doesn't
+    // allow checked exceptions.
+    @Override
+    public PublicKey getPublicKey() {
+        PublicKey key = publicKey;
+        if (key == null) {
+            try {
+                key = KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(
+                        Arrays.copyOfRange(encoded, publicKeyOffset,
+                                publicKeyOffset + publicKeyLength)));
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalArgumentException("invalid public key", e);
+            }
+            publicKey = key;
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "LeafCertificate[" + signatureAlgorithm + ", " + keyAlgorithm +
+                ", valid from " + new Date(notBefore) + " to " + new Date(notAfter) + "]";
+    }
+
+    private static class DerReader {
+        final byte[] data;
+        final int end;
+        int position;
+
+        DerReader(final byte[] data, final int position, final int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+
+        boolean peek(final int tag) {
+            return position < end && (data[position] & 0xff) == tag;
+        }
+
+        int readByte() throws CertificateParsingException {
+            if (position >= end) {
+                throw new CertificateParsingException("truncated certificate");
+            }
+            return data[position++] & 0xff;
+        }
+
+        // Reads the header of the next element, which must have the given tag, and returns the
+        // length of its contents. Only the minimal definite length DER form is accepted.
+        int readHeader(final int tag) throws CertificateParsingException {
+            final int actual = readByte();
+            if (actual != tag) {
+                throw new CertificateParsingException("expected tag " + tag + ", found " + actual);
+            }
+            final int first = readByte();
+            int length;
+            if (first < 0x80) {
+                length = first;
+            } else {
+                final int bytes = first & 0x7f;
+                if (bytes == 0 || bytes > 3) {
+                    throw new CertificateParsingException("unsupported length encoding");
+                }
+                length = 0;
+                for (int i = 0; i < bytes; i++) {
+                    length = (length << 8) | readByte();
+                }
+                if (length < 0x80 || length >>> (8 * (bytes - 1)) == 0) {
+                    throw new CertificateParsingException("non-minimal length encoding");
+                }
+            }
+            if (length > end - position) {
+                throw new CertificateParsingException("truncated certificate");
+            }
+            return length;
+        }
+
+        DerReader enter(final int tag) throws CertificateParsingException {
+            final int length = readHeader(tag);
+            final DerReader reader = new DerReader(data, position, position + length);
+            position += length;
+            return reader;
+        }
+
+        void skip(final int tag) throws CertificateParsingException {
+            final int length = readHeader(tag);
+            position += length;
+        }
+
+        void finish() throws CertificateParsingException {
+            if (position != end) {
+                throw new CertificateParsingException("unexpected trailing data");
+            }
+        }
+
+        String readOid() throws CertificateParsingException {
+            final int length = readHeader(TAG_OID);
+            if (length == 0) {
+                throw new CertificateParsingException("empty object identifier");
+            }
+            final StringBuilder builder = new StringBuilder();
+            final int oidEnd = position + length;
+            boolean first = true;
+            while (position < oidEnd) {
+                long value = 0;
+                int b;
+                do {
+                    if (position >= oidEnd || value > Long.MAX_VALUE >>> 7) {
+                        throw new CertificateParsingException("invalid object identifier");
+                    }
+                    b = data[position++] & 0xff;
+                    value = (value << 7) | (b & 0x7f);
+                } while ((b & 0x80) != 0);
+                if (first) {
+                    final long arc = Math.min(value / 40, 2);
+                    builder.append(arc).append('.').append(value - arc * 40);
+                    first = false;
+                } else {
+                    builder.append('.').append(value);
+                }
+            }
+            return builder.toString();
+        }
+
+        // Reads a UTCTime or GeneralizedTime in the form required by RFC 5280 and returns it in
+        // milliseconds since the epoch.
+        long readTime() throws CertificateParsingException {
+            final boolean generalized = peek(TAG_GENERALIZED_TIME);
+            final int length = readHeader(generalized ? TAG_GENERALIZED_TIME : TAG_UTC_TIME);
+            final String time = new String(data, position, length, StandardCharsets.US_ASCII);
+            position += length;
+
+            final int yearDigits = generalized ? 4 : 2;
+            if (time.length() != yearDigits + 11 || time.charAt(time.length() - 1) != 'Z') {
+                throw new CertificateParsingException("invalid time: " + time);
+            }
+            for (int i = 0; i < time.length() - 1; i++) {
+                if (time.charAt(i) < '0' || time.charAt(i) > '9') {
+                    throw new CertificateParsingException("invalid time: " + time);
+                }
+            }
+            int year = Integer.parseInt(time.substring(0, yearDigits));
+            if (!generalized) {
+                year += year < 50 ? 2000 : 1900;
+            }
+            final int month = Integer.parseInt(time.substring(yearDigits, yearDigits + 2));
+            final int day = Integer.parseInt(time.substring(yearDigits + 2, yearDigits + 4));
+            final int hour = Integer.parseInt(time.substring(yearDigits + 4, yearDigits + 6));
+            final int minute = Integer.parseInt(time.substring(yearDigits + 6, yearDigits + 8));
+            final int second = Integer.parseInt(time.substring(yearDigits + 8, yearDigits + 10));
+            if (month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month) ||
+                    hour > 23 || minute > 59 || second > 59) {
+                throw new CertificateParsingException("invalid time: " + time);
+            }
+            final long seconds = getDaysSinceEpoch(year, month, day) * 86400L + hour * 3600L +
+                    minute * 60L + second;
+            return seconds * 1000;
+        }
+    }
+
+    private static boolean isLeapYear(final int year) {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int getDaysInMonth(final int year, final int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Days from 1970-01-01 to the given date in the proleptic Gregorian calendar.
+    private static long getDaysSinceEpoch(final int year, final int month, final int day) {
+        // count years from March so the leap day is at the end
+        final int y = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(y, 400);
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
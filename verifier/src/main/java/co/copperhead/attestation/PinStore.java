@@ -0,0 +1,43 @@
+package co.copperhead.attestation;
+
+import java.io.IOException;
+
+// Storage for the pinning data of paired Auditees, keyed by the hex encoded fingerprint of the
+// persistent key. Implementations must be safe to use from multiple threads, but the verifier
+// never calls them concurrently for the same device.
+interface PinStore {
+    class PinnedDevice {
+        // encoded certificate chain from the initial pairing, starting with the persistent key
+        final byte[][] certificates;
+        // null for pairing data from versions of the app before it was pinned
+        final String verifiedBootKey;
+        final int osVersion;
+        final int osPatchLevel;
+        final int appVersion;
+        final long verifiedTimeFirst;
+        final long verifiedTimeLast;
+
+        PinnedDevice(final byte[][] certificates, final String verifiedBootKey,
+                final int osVersion, final int osPatchLevel, final int appVersion,
+                final long verifiedTimeFirst, final long verifiedTimeLast) {
+            this.certificates = certificates;
+            this.verifiedBootKey = verifiedBootKey;
+            this.osVersion = osVersion;
+            this.osPatchLevel = osPatchLevel;
+            this.appVersion = appVersion;
+            this.verifiedTimeFirst = verifiedTimeFirst;
+            this.verifiedTimeLast = verifiedTimeLast;
+        }
+    }
+
+    // Returns the pinning data for a device or null if it isn't paired.
+    PinnedDevice load(String fingerprint) throws IOException;
+
+    // Stores the pinning data from the initial pairing, replacing any existing data.
+    void pair(String fingerprint, PinnedDevice device) throws IOException;
+
+    // Stores the downgrade protection values and time of a successful paired verification. The
+    // pinned values must be durable before this returns.
+    void update(String fingerprint, PinnedDevice previous, String verifiedBootKey, int osVersion,
+            int osPatchLevel, int appVersion, long verifiedTime) throws IOException;
+}
@@ -0,0 +1,162 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+// Client for the /challenge and /verify endpoints of a remote verification server.
+//
+// Requests leave the connection open for reuse by HttpURLConnection's keep-alive pool: response
+// bodies are always read to the end and connections are never explicitly disconnected, so a
+// challenge and the following verification share one TLS session.
+//
+// The client can also ask the server to issue the challenge for the next verification along with
+// the result of this one. Storing it until the next run avoids the /challenge request, leaving a
+// single request per verification interval.
+class RemoteVerifyClient {
+    static final String HEADER_NEXT_CHALLENGE = "Next-Challenge";
+
+    static class ResponseException extends IOException {
+        final int responseCode;
+        // 0 unless the server sent a Retry-After in seconds
+        final int retryAfterSeconds;
+
+        ResponseException(final int responseCode, final int retryAfterSeconds) {
+            super("response code: " + responseCode);
+            this.responseCode = responseCode;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    static class Result {
+        final String subscribeKey;
+        final int verifyInterval;
+        // null unless requested and issued by the server
+        final byte[] nextChallengeMessage;
+
+        Result(final String subscribeKey, final int verifyInterval,
+                final byte[] nextChallengeMessage) {
+            this.subscribeKey = subscribeKey;
+            this.verifyInterval = verifyInterval;
+            this.nextChallengeMessage = nextChallengeMessage;
+        }
+    }
+
+    private final String challengeUrl;
+    private final String verifyUrl;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    RemoteVerifyClient(final String baseUrl, final int connectTimeout, final int readTimeout) {
+        challengeUrl = baseUrl + "/challenge";
+        verifyUrl = baseUrl + "/verify";
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    private HttpURLConnection open(final String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod("POST");
+        return connection;
+    }
+
+    // Throws ResponseException for responses other than 200, after draining the error response so
+    // the connection can still be reused.
+    private static void checkResponse(final HttpURLConnection connection) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != 200) {
+            final InputStream error = connection.getErrorStream();
+            if (error != null) {
+                try (final InputStream input = error) {
+                    ByteStreams.exhaust(input);
+                }
+            }
+            int retryAfterSeconds = 0;
+            final String retryAfter = connection.getHeaderField("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    retryAfterSeconds = Math.max(Integer.parseInt(retryAfter.trim()), 0);
+                } catch (final NumberFormatException ignored) {
+                    // HTTP dates aren't supported
+                }
+            }
+            throw new ResponseException(responseCode, retryAfterSeconds);
+        }
+    }
+
+    byte[] fetchChallenge() throws IOException {
+        final HttpURLConnection connection = open(challengeUrl);
+        checkResponse(connection);
+        try (final InputStream input = connection.getInputStream()) {
+            final byte[] challengeMessage = ByteStreams.toByteArray(input);
+            if (challengeMessage.length != AttestationConstants.CHALLENGE_MESSAGE_LENGTH) {
+                throw new IOException("invalid challenge message length");
+            }
+            return challengeMessage;
+        }
+    }
+
+    // The subscribeKey is only sent when pairing and should be null otherwise.
+    Result verify(final long userId, final String subscribeKey, final byte[] serialized,
+            final boolean requestNextChallenge) throws GeneralSecurityException, IOException {
+        final HttpURLConnection connection = open(verifyUrl);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(serialized.length);
+        final String extra = subscribeKey != null ? " " + subscribeKey : "";
+        connection.setRequestProperty("Authorization", "Auditor " + userId + extra);
+        if (requestNextChallenge) {
+            connection.setRequestProperty(HEADER_NEXT_CHALLENGE, "true");
+        }
+
+        try (final OutputStream output = connection.getOutputStream()) {
+            output.write(serialized);
+        }
+
+        checkResponse(connection);
+        try (final InputStream input = connection.getInputStream()) {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(input, StandardCharsets.UTF_8));
+            final String line = reader.readLine();
+            if (line == null) {
+                throw new GeneralSecurityException("missing fields");
+            }
+            final String[] tokens = line.split(" ");
+            if (tokens.length < 2) {
+                throw new GeneralSecurityException("missing fields");
+            }
+            final int verifyInterval;
+            try {
+                verifyInterval = Integer.parseInt(tokens[1]);
+            } catch (final NumberFormatException e) {
+                throw new GeneralSecurityException("invalid verify interval", e);
+            }
+
+            byte[] nextChallengeMessage = null;
+            final String nextLine = reader.readLine();
+            if (requestNextChallenge && nextLine != null && !nextLine.isEmpty()) {
+                try {
+                    nextChallengeMessage = BaseEncoding.base64().decode(nextLine);
+                } catch (final IllegalArgumentException e) {
+                    throw new GeneralSecurityException("invalid next challenge", e);
+                }
+                if (nextChallengeMessage.length != AttestationConstants.CHALLENGE_MESSAGE_LENGTH) {
+                    throw new GeneralSecurityException("invalid next challenge length");
+                }
+            }
+            // drain anything else so the connection goes back to the pool
+            ByteStreams.exhaust(input);
+            return new Result(tokens[0], verifyInterval, nextChallengeMessage);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Sample bundle submitted by SubmitSampleJob: the certificate chain of a sample attestation along
+// with getprop output, uname and Java system properties.
+//
+// A bundle is a gzip stream holding a magic and version followed by records, each made of a tag
+// byte, a 32-bit length and the payload. Certificates are stored as DER rather than base64, and
+// getprop output is copied in as it's read, split across as many records as needed. The stream
+// ends with an empty end record, so a bundle cut short by a failed upload is rejected instead of
+// being taken as a complete sample. Unknown record types are skipped by the parser.
+//
+// Bundles are submitted to their own versioned path with their own content type, so the service
+// never has to guess the format of a /submit body. The gzip stream is part of the format rather
+// than a Content-Encoding, which intermediaries would be free to strip. Stored legacy plain text
+// submissions can still be told apart by the gzip magic.
+class SampleBundle {
+    static final String SUBMIT_PATH = "/submit/v2";
+    static final String CONTENT_TYPE = "application/x-auditor-sample-bundle";
+
+    private static final byte[] MAGIC = {'A', 'S', 'M', 'P'};
+    private static final byte VERSION = 1;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    // decompressed, to bound the work done for a hostile bundle
+    private static final int MAX_BUNDLE_LENGTH = 4 * 1024 * 1024;
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_CERTIFICATE = 1;
+    private static final byte TAG_PROPERTIES = 2;
+    private static final byte TAG_UNAME = 3;
+    private static final byte TAG_SYSTEM_PROPERTY = 4;
+
+    // in the order they were written, starting from the leaf
+    final List<byte[]> certificates;
+    // getprop output
+    final byte[] properties;
+    // null if not included
+    final String uname;
+    final Map<String, String> systemProperties;
+
+    private SampleBundle(final List<byte[]> certificates, final byte[] properties,
+            final String uname, final Map<String, String> systemProperties) {
+        this.certificates = certificates;
+        this.properties = properties;
+        this.uname = uname;
+        this.systemProperties = systemProperties;
+    }
+
+    static boolean isBundle(final byte[] data) {
+        return data.length >= 2 && (data[0] & 0xff) == GZIP_MAGIC_0 &&
+                (data[1] & 0xff) == GZIP_MAGIC_1;
+    }
+
+    // Writes a bundle to a stream, typically a chunked HTTP request body. All of the small writes
+    // are buffered ahead of the compressor, and the underlying stream only sees compressed output.
+    static class Writer implements Closeable {
+        private final GZIPOutputStream compressed;
+        private final DataOutputStream output;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        Writer(final OutputStream stream) throws IOException {
+            compressed = new GZIPOutputStream(stream, BUFFER_SIZE);
+            output = new DataOutputStream(new BufferedOutputStream(compressed, BUFFER_SIZE));
+            output.write(MAGIC);
+            output.writeByte(VERSION);
+        }
+
+        private void writeRecord(final byte tag, final byte[] payload, final int length)
+                throws IOException {
+            output.writeByte(tag);
+            output.writeInt(length);
+            output.write(payload, 0, length);
+        }
+
+        void writeCertificate(final byte[] encoded) throws IOException {
+            writeRecord(TAG_CERTIFICATE, encoded, encoded.length);
+        }
+
+        // Copies getprop output until the end of the stream.
+        void writeProperties(final InputStream properties) throws IOException {
+            int read;
+            while ((read = properties.read(buffer)) != -1) {
+                if (read > 0) {
+                    writeRecord(TAG_PROPERTIES, buffer, read);
+                }
+            }
+        }
+
+        void writeUname(final String uname) throws IOException {
+            final byte[] encoded = uname.getBytes(StandardCharsets.UTF_8);
+            writeRecord(TAG_UNAME, encoded, encoded.length);
+        }
+
+        void writeSystemProperties(final Properties properties) throws IOException {
+            for (final String name : properties.stringPropertyNames()) {
+                final byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+                final byte[] encodedValue =
+                        properties.getProperty(name).getBytes(StandardCharsets.UTF_8);
+                output.writeByte(TAG_SYSTEM_PROPERTY);
+                output.writeInt(4 + encodedName.length + encodedValue.length);
+                output.writeInt(encodedName.length);
+                output.write(encodedName);
+                output.write(encodedValue);
+            }
+        }
+
+        // Marks the bundle as complete and writes out the end of the compressed stream. A bundle
+        // closed without finishing it is treated as truncated.
+        void finish() throws IOException {
+            output.writeByte(TAG_END);
+            output.writeInt(0);
+            output.flush();
+            compressed.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    static SampleBundle parse(final InputStream stream) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(
+                ByteStreams.limit(new GZIPInputStream(stream, BUFFER_SIZE), MAX_BUNDLE_LENGTH),
+                BUFFER_SIZE));
+
+        final byte[] magic = new byte[MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("invalid sample bundle magic");
+        }
+        final byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported sample bundle version: " + version);
+        }
+
+        final List<byte[]> certificates = new ArrayList<>();
+        final ByteArrayOutputStream properties = new ByteArrayOutputStream();
+        String uname = null;
+        final Map<String, String> systemProperties = new TreeMap<>();
+        while (true) {
+            final byte tag = input.readByte();
+            final int length = input.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                throw new IOException("invalid sample bundle record length");
+            }
+            if (tag == TAG_END) {
+                break;
+            }
+            final byte[] payload = new byte[length];
+            input.readFully(payload);
+            switch (tag) {
+                case TAG_CERTIFICATE:
+                    certificates.add(payload);
+                    break;
+                case TAG_PROPERTIES:
+                    properties.write(payload);
+                    break;
+                case TAG_UNAME:
+                    uname = new String(payload, StandardCharsets.UTF_8);
+                    break;
+                case TAG_SYSTEM_PROPERTY:
+                    if (length < 4) {
+                        throw new IOException("invalid system property record");
+                    }
+                    final int nameLength = ((payload[0] & 0xff) << 24) |
+                            ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) |
+                            (payload[3] & 0xff);
+                    if (nameLength < 0 || nameLength > length - 4) {
+                        throw new IOException("invalid system property record");
+                    }
+                    systemProperties.put(
+                            new String(payload, 4, nameLength, StandardCharsets.UTF_8),
+                            new String(payload, 4 + nameLength, length - 4 - nameLength,
+                                    StandardCharsets.UTF_8));
+                    break;
+            }
+        }
+        if (input.read() != -1) {
+            throw new IOException("trailing data after sample bundle");
+        }
+        return new SampleBundle(Collections.unmodifiableList(certificates),
+                properties.toByteArray(), uname, Collections.unmodifiableMap(systemProperties));
+    }
+}
@@ -0,0 +1,511 @@
+package co.copperhead.attestation;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+import co.copperhead.attestation.attestation.Attestation;
+import co.copperhead.attestation.attestation.AuthorizationList;
+import co.copperhead.attestation.attestation.RootOfTrust;
+
+// Batch tool deriving candidate device table entries for DeviceDatabase from the samples
+// submitted by SubmitSampleJob, such as a directory stored by AttestationServer.
+//
+// Sample bundles and legacy plain text submissions are read from one thread per core, each
+// claiming the next file from a shared index and aggregating into its own results, which are
+// merged at the end. Identical certificate chains are only counted once, by a digest of the
+// chain taken before any parsing.
+//
+// Chains have to lead to the attestation root, with the intermediate and batch certificates
+// shared by many samples only verified the first time they're seen. Leaf signatures are verified
+// until a cluster has a sample with a valid one, after which the cluster is known to come from
+// genuine hardware and further samples only add to the counts. The getprop output can't be
+// verified either way, and the leaf signature is by far the most expensive part of ingesting a
+// sample. The validity period isn't checked since samples are kept long after submission.
+//
+// Samples are clustered by verified boot key and state, attestation and keymaster version and
+// whether the key is rollback resistant. Each verified boot key becomes a candidate entry using
+// the minimum versions across its clusters, since the verifier treats them as minimums, with
+// rollback resistance and per-user encryption only when every sample has them. The name is
+// derived from the most common ro.product.model and per-user encryption from ro.crypto.type.
+class SampleIngestor {
+    private static final int MAX_SAMPLE_LENGTH = 1024 * 1024;
+    private static final String PROPERTY_MODEL = "ro.product.model";
+    private static final String PROPERTY_CRYPTO_TYPE = "ro.crypto.type";
+    private static final String CRYPTO_TYPE_FILE = "file";
+    private static final String UNKNOWN_MODEL = "unknown";
+
+    static class ClusterKey {
+        final String verifiedBootKey;
+        final boolean stock;
+        final int attestationVersion;
+        final int keymasterVersion;
+        final boolean rollbackResistant;
+
+        ClusterKey(final String verifiedBootKey, final boolean stock,
+                final int attestationVersion, final int keymasterVersion,
+                final boolean rollbackResistant) {
+            this.verifiedBootKey = verifiedBootKey;
+            this.stock = stock;
+            this.attestationVersion = attestationVersion;
+            this.keymasterVersion = keymasterVersion;
+            this.rollbackResistant = rollbackResistant;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof ClusterKey)) {
+                return false;
+            }
+            final ClusterKey key = (ClusterKey) other;
+            return verifiedBootKey.equals(key.verifiedBootKey) && stock == key.stock &&
+                    attestationVersion == key.attestationVersion &&
+                    keymasterVersion == key.keymasterVersion &&
+                    rollbackResistant == key.rollbackResistant;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(verifiedBootKey, stock, attestationVersion, keymasterVersion,
+                    rollbackResistant);
+        }
+    }
+
+    static class Cluster {
+        final ClusterKey key;
+        final Multiset<String> models = HashMultiset.create();
+        int samples;
+        int fileBasedEncryption;
+
+        Cluster(final ClusterKey key) {
+            this.key = key;
+        }
+
+        void merge(final Cluster other) {
+            models.addAll(other.models);
+            samples += other.samples;
+            fileBasedEncryption += other.fileBasedEncryption;
+        }
+    }
+
+    // Results gathered by a single worker.
+    static class Results {
+        final Map<ClusterKey, Cluster> clusters = new HashMap<>();
+        final Map<String, Integer> rejected = new TreeMap<>();
+        int bundles;
+        int legacy;
+        int duplicates;
+
+        void reject(final String reason) {
+            rejected.merge(reason, 1, Integer::sum);
+        }
+
+        void merge(final Results other) {
+            for (final Cluster cluster : other.clusters.values()) {
+                final Cluster existing = clusters.putIfAbsent(cluster.key, cluster);
+                if (existing != null) {
+                    existing.merge(cluster);
+                }
+            }
+            for (final Map.Entry<String, Integer> entry : other.rejected.entrySet()) {
+                rejected.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+            bundles += other.bundles;
+            legacy += other.legacy;
+            duplicates += other.duplicates;
+        }
+    }
+
+    private static class Sample {
+        final List<byte[]> certificates;
+        // null if not included
+        final String model;
+        final boolean fileBasedEncryption;
+
+        Sample(final List<byte[]> certificates, final String properties) {
+            this.certificates = certificates;
+            this.model = getProperty(properties, PROPERTY_MODEL);
+            this.fileBasedEncryption =
+                    CRYPTO_TYPE_FILE.equals(getProperty(properties, PROPERTY_CRYPTO_TYPE));
+        }
+    }
+
+    private final byte[] root;
+    private final PublicKey rootKey;
+    private final Set<HashCode> chains = ConcurrentHashMap.newKeySet();
+    // intermediate and batch certificates already verified up to the root
+    private final ConcurrentHashMap<HashCode, PublicKey> verifiedKeys = new ConcurrentHashMap<>();
+    // clusters with at least one sample with a verified leaf signature
+    private final Set<ClusterKey> verifiedClusters = ConcurrentHashMap.newKeySet();
+
+    SampleIngestor(final X509Certificate root) throws GeneralSecurityException {
+        this.root = root.getEncoded();
+        this.rootKey = root.getPublicKey();
+    }
+
+    // Returns the value of a property in getprop output, or null if it isn't there. Only a couple
+    // of properties are needed, so they're looked up directly rather than parsing every line.
+    private static String getProperty(final String output, final String name) {
+        // [name]: [value]
+        final String prefix = "[" + name + "]: [";
+        final int index;
+        if (output.startsWith(prefix)) {
+            index = 0;
+        } else {
+            final int newline = output.indexOf("\n" + prefix);
+            if (newline == -1) {
+                return null;
+            }
+            index = newline + 1;
+        }
+        final int start = index + prefix.length();
+        int end = output.indexOf('\n', start);
+        if (end == -1) {
+            end = output.length();
+        }
+        if (end == start || output.charAt(end - 1) != ']') {
+            return null;
+        }
+        return output.substring(start, end - 1);
+    }
+
+    // Legacy submissions are base64 certificates one per line followed by getprop output, uname
+    // and Java system properties.
+    private static Sample parseLegacy(final byte[] data) throws IOException {
+        final String text = new String(data, StandardCharsets.UTF_8);
+        final List<byte[]> certificates = new ArrayList<>();
+        int offset = 0;
+        while (offset < text.length() && text.charAt(offset) != '[') {
+            int end = text.indexOf('\n', offset);
+            if (end == -1) {
+                end = text.length();
+            }
+            try {
+                certificates.add(BaseEncoding.base64().decode(text.substring(offset, end).trim()));
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("invalid certificate encoding", e);
+            }
+            offset = end + 1;
+        }
+        return new Sample(certificates, text.substring(Math.min(offset, text.length())));
+    }
+
+    private static Sample parseBundle(final byte[] data) throws IOException {
+        final SampleBundle bundle = SampleBundle.parse(new ByteArrayInputStream(data));
+        return new Sample(bundle.certificates,
+                new String(bundle.properties, StandardCharsets.UTF_8));
+    }
+
+    private static HashCode getChainDigest(final List<byte[]> certificates) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(certificates.size());
+        for (final byte[] certificate : certificates) {
+            hasher.putInt(certificate.length);
+            hasher.putBytes(certificate);
+        }
+        return hasher.hash();
+    }
+
+    // Verifies the chain up to the leaf and returns the key of the leaf's issuer.
+    private PublicKey verifyIssuers(final List<byte[]> certificates)
+            throws GeneralSecurityException {
+        if (certificates.size() < 2) {
+            throw new GeneralSecurityException("chain too short");
+        }
+        if (!Arrays.equals(certificates.get(certificates.size() - 1), root)) {
+            throw new GeneralSecurityException("not the attestation root");
+        }
+        PublicKey issuerKey = rootKey;
+        for (int i = certificates.size() - 2; i > 0; i--) {
+            final HashCode digest = Hashing.sha256().hashBytes(certificates.get(i));
+            PublicKey key = verifiedKeys.get(digest);
+            if (key == null) {
+                final X509Certificate certificate = AttestationVerifier.generateCertificate(
+                        new ByteArrayInputStream(certificates.get(i)));
+                certificate.verify(issuerKey);
+                key = certificate.getPublicKey();
+                verifiedKeys.put(digest, key);
+            }
+            issuerKey = key;
+        }
+        return issuerKey;
+    }
+
+    private void ingest(final File file, final Results results) {
+        final byte[] data;
+        try {
+            if (file.length() > MAX_SAMPLE_LENGTH) {
+                results.reject("too large");
+                return;
+            }
+            try (final InputStream input = new FileInputStream(file)) {
+                data = ByteStreams.toByteArray(input);
+            }
+        } catch (final IOException e) {
+            results.reject("unreadable");
+            return;
+        }
+
+        final Sample sample;
+        try {
+            if (SampleBundle.isBundle(data)) {
+                sample = parseBundle(data);
+                results.bundles++;
+            } else {
+                sample = parseLegacy(data);
+                results.legacy++;
+            }
+        } catch (final IOException e) {
+            results.reject("malformed sample");
+            return;
+        }
+
+        if (!chains.add(getChainDigest(sample.certificates))) {
+            results.duplicates++;
+            return;
+        }
+
+        final PublicKey issuerKey;
+        final LeafCertificate leaf;
+        final Attestation attestation;
+        try {
+            issuerKey = verifyIssuers(sample.certificates);
+            leaf = new LeafCertificate(sample.certificates.get(0));
+            attestation = new Attestation(leaf.getExtensionValue(Attestation.KEY_DESCRIPTION_OID));
+        } catch (final GeneralSecurityException e) {
+            results.reject("invalid chain");
+            return;
+        } catch (final RuntimeException e) {
+            // malformed attestation extensions aren't fully validated before parsing
+            results.reject("invalid attestation");
+            return;
+        }
+
+        if (attestation.getAttestationSecurityLevel() !=
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT ||
+                attestation.getKeymasterSecurityLevel() !=
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT) {
+            results.reject("software attestation");
+            return;
+        }
+        final AuthorizationList teeEnforced = attestation.getTeeEnforced();
+        final RootOfTrust rootOfTrust = teeEnforced.getRootOfTrust();
+        if (rootOfTrust == null) {
+            results.reject("missing root of trust");
+            return;
+        }
+        final boolean stock;
+        if (rootOfTrust.getVerifiedBootState() == RootOfTrust.KM_VERIFIED_BOOT_VERIFIED) {
+            stock = true;
+        } else if (rootOfTrust.getVerifiedBootState() == RootOfTrust.KM_VERIFIED_BOOT_SELF_SIGNED) {
+            stock = false;
+        } else {
+            results.reject("verified boot state is not verified or self signed");
+            return;
+        }
+        if (!rootOfTrust.isDeviceLocked()) {
+            results.reject("device is not locked");
+            return;
+        }
+
+        final ClusterKey key = new ClusterKey(
+                BaseEncoding.base16().encode(rootOfTrust.getVerifiedBootKey()), stock,
+                attestation.getAttestationVersion(), attestation.getKeymasterVersion(),
+                teeEnforced.isRollbackResistant());
+        if (!verifiedClusters.contains(key)) {
+            try {
+                leaf.verify(issuerKey);
+            } catch (final GeneralSecurityException e) {
+                results.reject("invalid leaf signature");
+                return;
+            }
+            verifiedClusters.add(key);
+        }
+        Cluster cluster = results.clusters.get(key);
+        if (cluster == null) {
+            cluster = new Cluster(key);
+            results.clusters.put(key, cluster);
+        }
+        cluster.samples++;
+        cluster.models.add(sample.model != null ? sample.model : UNKNOWN_MODEL);
+        if (sample.fileBasedEncryption) {
+            cluster.fileBasedEncryption++;
+        }
+    }
+
+    Results ingest(final File[] files, final int threads) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Results>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    final Results results = new Results();
+                    int index;
+                    while ((index = next.getAndIncrement()) < files.length) {
+                        ingest(files[index], results);
+                    }
+                    return results;
+                }));
+            }
+            final Results merged = new Results();
+            for (final Future<Results> future : futures) {
+                merged.merge(future.get());
+            }
+            return merged;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String getResourceName(final String model) {
+        final String name = model.toLowerCase(Locale.US).replaceAll("[^a-z0-9]+", "_")
+                .replaceAll("^_|_$", "");
+        return "device_" + (name.isEmpty() ? UNKNOWN_MODEL : name);
+    }
+
+    private static String describe(final ClusterKey key) {
+        return "attestation " + key.attestationVersion + ", keymaster " + key.keymasterVersion +
+                (key.rollbackResistant ? ", rollback resistant" : "");
+    }
+
+    // Prints candidate entries for one of the device tables, most common first.
+    static void printCandidates(final PrintStream out, final List<Cluster> clusters,
+            final boolean stock, final Map<String, DeviceInfo> listed) {
+        final Map<String, List<Cluster>> byKey = new HashMap<>();
+        for (final Cluster cluster : clusters) {
+            if (cluster.key.stock == stock) {
+                byKey.computeIfAbsent(cluster.key.verifiedBootKey, k -> new ArrayList<>())
+                        .add(cluster);
+            }
+        }
+        final List<List<Cluster>> groups = new ArrayList<>(byKey.values());
+        groups.sort((a, b) -> Integer.compare(countSamples(b), countSamples(a)));
+
+        out.println("// " + (stock ? "fingerprintsStock" : "fingerprintsCopperheadOS"));
+        for (final List<Cluster> group : groups) {
+            group.sort((a, b) -> Integer.compare(b.samples, a.samples));
+            final Multiset<String> models = HashMultiset.create();
+            int attestationVersion = Integer.MAX_VALUE;
+            int keymasterVersion = Integer.MAX_VALUE;
+            boolean rollbackResistant = true;
+            int fileBasedEncryption = 0;
+            for (final Cluster cluster : group) {
+                models.addAll(cluster.models);
+                attestationVersion = Math.min(attestationVersion, cluster.key.attestationVersion);
+                keymasterVersion = Math.min(keymasterVersion, cluster.key.keymasterVersion);
+                rollbackResistant &= cluster.key.rollbackResistant;
+                fileBasedEncryption += cluster.fileBasedEncryption;
+            }
+            final int samples = countSamples(group);
+            final boolean perUserEncryption = fileBasedEncryption == samples;
+            final String model = Multisets.copyHighestCountFirst(models).iterator().next();
+            final String verifiedBootKey = group.get(0).key.verifiedBootKey;
+
+            String status = "new";
+            final DeviceInfo existing = listed.get(verifiedBootKey);
+            if (existing != null) {
+                status = existing.attestationVersion == attestationVersion &&
+                        existing.keymasterVersion == keymasterVersion &&
+                        existing.rollbackResistant == rollbackResistant &&
+                        existing.perUserEncryption == perUserEncryption ?
+                        "listed" : "listed with different values";
+            }
+            out.println("            // " + model + ": " + samples + " samples, " +
+                    status);
+            if (group.size() > 1) {
+                for (final Cluster cluster : group) {
+                    out.println("            //   " + describe(cluster.key) + ": " +
+                            cluster.samples + " samples");
+                }
+            }
+            out.println("            .put(\"" + verifiedBootKey + "\",");
+            out.println("                    new DeviceInfo(\"" +
+                    getResourceName(model) + "\", " + attestationVersion + ", " +
+                    keymasterVersion + ", " + rollbackResistant + ", " + perUserEncryption + "))");
+        }
+    }
+
+    private static int countSamples(final List<Cluster> group) {
+        int samples = 0;
+        for (final Cluster cluster : group) {
+            samples += cluster.samples;
+        }
+        return samples;
+    }
+
+    // usage: SampleIngestor <samples directory> <google_root.der> [threads]
+    //
+    // Candidate entries are printed in the form used by the tables in DeviceDatabase, with
+    // a summary of the run on stderr.
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: SampleIngestor <samples directory> <root certificate> " +
+                    "[threads]");
+            System.exit(1);
+        }
+        final File[] files = new File(args[0]).listFiles(File::isFile);
+        if (files == null) {
+            System.err.println("not a directory: " + args[0]);
+            System.exit(1);
+        }
+        final X509Certificate root;
+        try (final InputStream input = new FileInputStream(args[1])) {
+            root = AttestationVerifier.generateCertificate(input);
+        }
+        final int threads = args.length == 3 ?
+                Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        final long start = System.nanoTime();
+        final Results results = new SampleIngestor(root).ingest(files, threads);
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        final List<Cluster> clusters = new ArrayList<>(results.clusters.values());
+        printCandidates(System.out, clusters, true, DeviceDatabase.fingerprintsStock);
+        printCandidates(System.out, clusters, false, DeviceDatabase.fingerprintsCopperheadOS);
+
+        int accepted = 0;
+        for (final Cluster cluster : clusters) {
+            accepted += cluster.samples;
+        }
+        System.err.println(files.length + " files (" + results.bundles + " bundles, " +
+                results.legacy + " legacy) in " + elapsedMillis + " ms using " + threads +
+                " threads");
+        System.err.println(accepted + " samples in " + clusters.size() + " clusters, " +
+                results.duplicates + " duplicate chains");
+        for (final Map.Entry<String, Integer> entry : results.rejected.entrySet()) {
+            System.err.println("rejected: " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
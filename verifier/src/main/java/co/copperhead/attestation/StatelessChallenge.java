@@ -0,0 +1,151 @@
+package co.copperhead.attestation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.CLOCK_SKEW_MS;
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+
+// Challenges that authenticate themselves, so any verifier sharing the key can check freshness
+// without a shared store of issued challenges.
+//
+// Challenge layout (CHALLENGE_LENGTH bytes):
+//
+// long issue time in milliseconds since the epoch
+// byte[] random nonce (length: NONCE_LENGTH)
+// byte[] truncated HMAC-SHA256 of the time and nonce (length: MAC_LENGTH)
+//
+// A challenge is accepted if it was issued within EXPIRE_OFFSET_MS, with CLOCK_SKEW_MS of leeway
+// for the clocks of other nodes being ahead. Each node remembers the challenges it accepted for a
+// full validity window to reject reuse, but a challenge can still be used once per node. The sets
+// of accepted challenges are only swapped under the write lock, so a validation can't check one
+// generation and record the challenge in the next.
+//
+// Nodes also need to present the same challenge index for Auditees to find their pairing, so it's
+// derived from the key.
+class StatelessChallenge {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 8;
+    private static final int MAC_OFFSET = Long.BYTES + NONCE_LENGTH;
+    private static final int MAC_LENGTH = CHALLENGE_LENGTH - MAC_OFFSET;
+    private static final int REPLAY_WINDOW_MS = EXPIRE_OFFSET_MS + CLOCK_SKEW_MS;
+    private static final byte[] CHALLENGE_INDEX_LABEL =
+            "challenge index".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+    private final LongSupplier clock;
+
+    // accepted challenges from the current and previous replay window, replaced under the write
+    // lock and used under the read lock
+    private final ReadWriteLock usedLock = new ReentrantReadWriteLock();
+    private Set<ByteBuffer> used = ConcurrentHashMap.newKeySet();
+    private Set<ByteBuffer> usedPrevious = ConcurrentHashMap.newKeySet();
+    private long windowStart;
+
+    StatelessChallenge(final byte[] key) throws GeneralSecurityException {
+        this(key, System::currentTimeMillis);
+    }
+
+    // The clock is only replaced by tests.
+    StatelessChallenge(final byte[] key, final LongSupplier clock)
+            throws GeneralSecurityException {
+        this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+        this.clock = clock;
+        windowStart = clock.getAsLong();
+        // fail early for invalid keys rather than on first use
+        Mac.getInstance(MAC_ALGORITHM).init(this.key);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                final Mac instance = Mac.getInstance(MAC_ALGORITHM);
+                instance.init(this.key);
+                return instance;
+            } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private byte[] computeMac(final byte[] challenge) {
+        final Mac instance = mac.get();
+        instance.update(challenge, 0, MAC_OFFSET);
+        return Arrays.copyOf(instance.doFinal(), MAC_LENGTH);
+    }
+
+    byte[] getChallengeIndex() {
+        return Arrays.copyOf(mac.get().doFinal(CHALLENGE_INDEX_LABEL), CHALLENGE_LENGTH);
+    }
+
+    byte[] generate() {
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        final ByteBuffer buffer = ByteBuffer.wrap(challenge);
+        buffer.putLong(clock.getAsLong());
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        ChallengeGenerator.getRandom().nextBytes(nonce);
+        buffer.put(nonce);
+        buffer.put(computeMac(challenge));
+        return challenge;
+    }
+
+    boolean validate(final byte[] challenge) {
+        if (challenge.length != CHALLENGE_LENGTH) {
+            return false;
+        }
+        final byte[] expected = computeMac(challenge);
+        if (!MessageDigest.isEqual(expected,
+                Arrays.copyOfRange(challenge, MAC_OFFSET, CHALLENGE_LENGTH))) {
+            return false;
+        }
+
+        final long issued = ByteBuffer.wrap(challenge).getLong();
+        final ByteBuffer entry = ByteBuffer.wrap(challenge.clone());
+        while (true) {
+            final Lock lock = usedLock.readLock();
+            lock.lock();
+            try {
+                // read under the lock so it's never older than the start of the current window
+                final long now = clock.getAsLong();
+                if (issued > now + CLOCK_SKEW_MS || issued < now - EXPIRE_OFFSET_MS) {
+                    return false;
+                }
+                if (now - windowStart <= REPLAY_WINDOW_MS) {
+                    return !usedPrevious.contains(entry) && used.add(entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+            rotate();
+        }
+    }
+
+    private void rotate() {
+        final Lock lock = usedLock.writeLock();
+        lock.lock();
+        try {
+            final long now = clock.getAsLong();
+            if (now - windowStart > REPLAY_WINDOW_MS) {
+                usedPrevious = now - windowStart > REPLAY_WINDOW_MS * 2 ?
+                        ConcurrentHashMap.newKeySet() : used;
+                used = ConcurrentHashMap.newKeySet();
+                windowStart = now;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.RateLimiter;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+import co.copperhead.attestation.attestation.Attestation;
+import co.copperhead.attestation.attestation.AuthorizationList;
+import co.copperhead.attestation.attestation.RootOfTrust;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.CLOCK_SKEW_MS;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+import static co.copperhead.attestation.AttestationConstants.SIGNATURE_ALGORITHM;
+
+// Auditee backed by a locally generated attestation hierarchy, for driving the verifier at scale
+// without hardware-backed keys.
+//
+// The certificates mirror the structure of real attestations: a root, intermediate and batch
+// certificate followed by attestation certificates carrying the key description extension with
+// a TEE security level, the challenge, the root of trust of one of the supported devices and the
+// attestation application ID of the release app. Like the real Auditee, the first attestation for
+// a challenge index is made with the persistent key and later ones with fresh keys signed by it.
+// Verifiers need to use the synthetic root instead of the Google root as their trust anchor.
+class SyntheticAuditee {
+    private static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
+    private static final String EC_CURVE = "secp256r1";
+    private static final long VALIDITY_MS = TimeUnit.DAYS.toMillis(365);
+
+    // Keymaster tags without the type bits, as used in the key description
+    private static final int KM_TAG_PURPOSE = 1;
+    private static final int KM_TAG_ALGORITHM = 2;
+    private static final int KM_TAG_KEY_SIZE = 3;
+    private static final int KM_TAG_DIGEST = 5;
+    private static final int KM_TAG_EC_CURVE = 10;
+    private static final int KM_TAG_NO_AUTH_REQUIRED = 503;
+    private static final int KM_TAG_CREATION_DATETIME = 701;
+    private static final int KM_TAG_ORIGIN = 702;
+    private static final int KM_TAG_ROLLBACK_RESISTANT = 703;
+    private static final int KM_TAG_ROOT_OF_TRUST = 704;
+    private static final int KM_TAG_OS_VERSION = 705;
+    private static final int KM_TAG_OS_PATCHLEVEL = 706;
+    private static final int KM_TAG_ATTESTATION_APPLICATION_ID = 709;
+
+    private static final int DEFAULT_OS_VERSION = 80100;
+    private static final int DEFAULT_OS_PATCH_LEVEL = 201805;
+    // versionCode of the app at the time of writing
+    private static final int DEFAULT_APP_VERSION = 22;
+
+    // Synthetic counterpart of the Google attestation root and the intermediate and batch
+    // certificates provisioned on devices.
+    static class Authority {
+        final X509Certificate root;
+        final X509Certificate intermediate;
+        final X509Certificate batch;
+        private final X500Name batchName;
+        private final PrivateKey batchKey;
+
+        private Authority(final X509Certificate root, final X509Certificate intermediate,
+                final X509Certificate batch, final X500Name batchName, final PrivateKey batchKey) {
+            this.root = root;
+            this.intermediate = intermediate;
+            this.batch = batch;
+            this.batchName = batchName;
+            this.batchKey = batchKey;
+        }
+
+        static Authority generate() throws GeneralSecurityException, IOException {
+            final Date start = new Date(System.currentTimeMillis() - CLOCK_SKEW_MS);
+            final Date end = new Date(start.getTime() + VALIDITY_MS);
+
+            final X500Name rootName = new X500Name("CN=Synthetic Attestation Root");
+            final KeyPair rootKey = generateKeyPair();
+            final X509Certificate root = createCertificate(rootName, rootKey.getPrivate(),
+                    rootName, rootKey.getPublic(), start, end, createCaExtensions());
+
+            final X500Name intermediateName = new X500Name("CN=Synthetic Attestation Intermediate");
+            final KeyPair intermediateKey = generateKeyPair();
+            final X509Certificate intermediate = createCertificate(rootName, rootKey.getPrivate(),
+                    intermediateName, intermediateKey.getPublic(), start, end,
+                    createCaExtensions());
+
+            final X500Name batchName = new X500Name("CN=Synthetic Attestation Batch");
+            final KeyPair batchKey = generateKeyPair();
+            final X509Certificate batch = createCertificate(intermediateName,
+                    intermediateKey.getPrivate(), batchName, batchKey.getPublic(), start, end,
+                    createCaExtensions());
+
+            return new Authority(root, intermediate, batch, batchName, batchKey.getPrivate());
+        }
+    }
+
+    private final Authority authority;
+    private final byte[] verifiedBootKey;
+    private final int verifiedBootState;
+    private final boolean deviceLocked;
+    private final DeviceInfo device;
+    private final int osVersion;
+    private final int osPatchLevel;
+    private final int appVersion;
+
+    private KeyPair persistentKey;
+    private X509Certificate persistentCertificate;
+
+    SyntheticAuditee(final Authority authority, final String verifiedBootKey, final boolean stock,
+            final DeviceInfo device, final int osVersion, final int osPatchLevel,
+            final int appVersion) {
+        this(authority, verifiedBootKey, stock ?
+                RootOfTrust.KM_VERIFIED_BOOT_VERIFIED : RootOfTrust.KM_VERIFIED_BOOT_SELF_SIGNED,
+                true, device, osVersion, osPatchLevel, appVersion);
+    }
+
+    // Also allows an unverified boot state or an unlocked device, as in samples submitted by
+    // devices the verifier rejects.
+    SyntheticAuditee(final Authority authority, final String verifiedBootKey,
+            final int verifiedBootState, final boolean deviceLocked, final DeviceInfo device,
+            final int osVersion, final int osPatchLevel, final int appVersion) {
+        this.authority = authority;
+        this.verifiedBootKey = BaseEncoding.base16().decode(verifiedBootKey);
+        this.verifiedBootState = verifiedBootState;
+        this.deviceLocked = deviceLocked;
+        this.device = device;
+        this.osVersion = osVersion;
+        this.osPatchLevel = osPatchLevel;
+        this.appVersion = appVersion;
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(EC_CURVE));
+        return generator.generateKeyPair();
+    }
+
+    private static ExtensionsGenerator createCaExtensions() throws IOException {
+        final ExtensionsGenerator extensions = new ExtensionsGenerator();
+        extensions.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+        return extensions;
+    }
+
+    private static X509Certificate createCertificate(final X500Name issuer,
+            final PrivateKey issuerKey, final X500Name subject, final PublicKey key,
+            final Date start, final Date end, final ExtensionsGenerator extensions)
+            throws GeneralSecurityException, IOException {
+        final AlgorithmIdentifier algorithm =
+                new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+
+        final V3TBSCertificateGenerator generator = new V3TBSCertificateGenerator();
+        generator.setSerialNumber(new ASN1Integer(BigInteger.ONE));
+        generator.setSignature(algorithm);
+        generator.setIssuer(issuer);
+        generator.setStartDate(new Time(start));
+        generator.setEndDate(new Time(end));
+        generator.setSubject(subject);
+        generator.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(key.getEncoded()));
+        generator.setExtensions(extensions.generate());
+        final TBSCertificate tbs = generator.generateTBSCertificate();
+
+        final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(issuerKey);
+        signature.update(tbs.getEncoded());
+
+        final ASN1EncodableVector certificate = new ASN1EncodableVector();
+        certificate.add(tbs);
+        certificate.add(algorithm);
+        certificate.add(new DERBitString(signature.sign()));
+        return AttestationVerifier.generateCertificate(
+                new ByteArrayInputStream(new DERSequence(certificate).getEncoded()));
+    }
+
+    private static DERTaggedObject tag(final int tag, final ASN1Encodable value) {
+        return new DERTaggedObject(true, tag, value);
+    }
+
+    private byte[] createKeyDescription(final byte[] challenge, final long creationTime)
+            throws IOException {
+        final ASN1EncodableVector packageInfo = new ASN1EncodableVector();
+        packageInfo.add(new DEROctetString(AttestationVerifier.ATTESTATION_APP_PACKAGE_NAME
+                .getBytes(StandardCharsets.UTF_8)));
+        packageInfo.add(new ASN1Integer(appVersion));
+        final ASN1EncodableVector applicationId = new ASN1EncodableVector();
+        applicationId.add(new DERSet(new DERSequence(packageInfo)));
+        applicationId.add(new DERSet(new DEROctetString(BaseEncoding.base16()
+                .decode(AttestationVerifier.ATTESTATION_APP_SIGNATURE_DIGEST_RELEASE))));
+
+        final ASN1EncodableVector softwareEnforced = new ASN1EncodableVector();
+        softwareEnforced.add(tag(KM_TAG_CREATION_DATETIME, new ASN1Integer(creationTime)));
+        softwareEnforced.add(tag(KM_TAG_ATTESTATION_APPLICATION_ID,
+                new DEROctetString(new DERSequence(applicationId).getEncoded())));
+
+        final ASN1EncodableVector purposes = new ASN1EncodableVector();
+        purposes.add(new ASN1Integer(AuthorizationList.KM_PURPOSE_SIGN));
+        purposes.add(new ASN1Integer(AuthorizationList.KM_PURPOSE_VERIFY));
+
+        final ASN1EncodableVector rootOfTrust = new ASN1EncodableVector();
+        rootOfTrust.add(new DEROctetString(verifiedBootKey));
+        rootOfTrust.add(ASN1Boolean.getInstance(deviceLocked));
+        rootOfTrust.add(new ASN1Enumerated(verifiedBootState));
+
+        final ASN1EncodableVector teeEnforced = new ASN1EncodableVector();
+        teeEnforced.add(tag(KM_TAG_PURPOSE, new DERSet(purposes)));
+        teeEnforced.add(tag(KM_TAG_ALGORITHM, new ASN1Integer(AuthorizationList.KM_ALGORITHM_EC)));
+        teeEnforced.add(tag(KM_TAG_KEY_SIZE, new ASN1Integer(256)));
+        teeEnforced.add(tag(KM_TAG_DIGEST,
+                new DERSet(new ASN1Integer(AuthorizationList.KM_DIGEST_SHA_2_256))));
+        teeEnforced.add(tag(KM_TAG_EC_CURVE, new ASN1Integer(AuthorizationList.KM_EC_CURVE_P256)));
+        teeEnforced.add(tag(KM_TAG_NO_AUTH_REQUIRED, DERNull.INSTANCE));
+        teeEnforced.add(tag(KM_TAG_ORIGIN, new ASN1Integer(AuthorizationList.KM_ORIGIN_GENERATED)));
+        if (device.rollbackResistant) {
+            teeEnforced.add(tag(KM_TAG_ROLLBACK_RESISTANT, DERNull.INSTANCE));
+        }
+        teeEnforced.add(tag(KM_TAG_ROOT_OF_TRUST, new DERSequence(rootOfTrust)));
+        teeEnforced.add(tag(KM_TAG_OS_VERSION, new ASN1Integer(osVersion)));
+        teeEnforced.add(tag(KM_TAG_OS_PATCHLEVEL, new ASN1Integer(osPatchLevel)));
+
+        final ASN1EncodableVector keyDescription = new ASN1EncodableVector();
+        keyDescription.add(new ASN1Integer(device.attestationVersion));
+        keyDescription.add(new ASN1Enumerated(Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT));
+        keyDescription.add(new ASN1Integer(device.keymasterVersion));
+        keyDescription.add(new ASN1Enumerated(Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT));
+        keyDescription.add(new DEROctetString(challenge));
+        keyDescription.add(new DEROctetString(new byte[0]));
+        keyDescription.add(new DERSequence(softwareEnforced));
+        keyDescription.add(new DERSequence(teeEnforced));
+        return new DERSequence(keyDescription).getEncoded();
+    }
+
+    private X509Certificate createAttestationCertificate(final PublicKey key,
+            final byte[] challenge) throws GeneralSecurityException, IOException {
+        final long now = System.currentTimeMillis();
+        final ExtensionsGenerator extensions = new ExtensionsGenerator();
+        extensions.addExtension(new ASN1ObjectIdentifier(KEY_DESCRIPTION_OID), false,
+                createKeyDescription(challenge, now));
+        return createCertificate(authority.batchName, authority.batchKey,
+                new X500Name("CN=Android Keystore Key"), key, new Date(now - CLOCK_SKEW_MS),
+                new Date(now + VALIDITY_MS), extensions);
+    }
+
+    // Equivalent of AttestationProtocol.generateSerialized for a challenge message from an
+    // Auditor, with the OS-enforced checks replaced by the provided flags.
+    synchronized byte[] generateSerialized(final byte[] challengeMessage, final byte[] dictionary,
+            final int osEnforcedFlags) throws GeneralSecurityException, IOException {
+        final byte maxVersion = challengeMessage[0];
+        final byte[] challenge = Arrays.copyOfRange(challengeMessage, 1 + CHALLENGE_LENGTH,
+                1 + CHALLENGE_LENGTH * 2);
+        final Certificate[] chain = generateChain(challenge);
+        return AttestationVerifier.serialize(maxVersion, chain,
+                AttestationVerifier.getFingerprint(persistentCertificate), osEnforcedFlags,
+                dictionary, persistentKey.getPrivate());
+    }
+
+    // Returns the certificate chain of an attestation for the challenge, from the attestation
+    // certificate up to the root, as included in samples.
+    synchronized Certificate[] generateChain(final byte[] challenge)
+            throws GeneralSecurityException, IOException {
+        final X509Certificate leaf;
+        if (persistentKey == null) {
+            persistentKey = generateKeyPair();
+            persistentCertificate = createAttestationCertificate(persistentKey.getPublic(),
+                    challenge);
+            leaf = persistentCertificate;
+        } else {
+            leaf = createAttestationCertificate(generateKeyPair().getPublic(), challenge);
+        }
+
+        return new Certificate[]{leaf, authority.batch, authority.intermediate, authority.root};
+    }
+
+    private static byte[] readFile(final String path) throws IOException {
+        try (final InputStream input = new FileInputStream(path)) {
+            return ByteStreams.toByteArray(input);
+        }
+    }
+
+    // usage: SyntheticAuditee <deflate_dictionary.bin> <devices> <rate> <seconds>
+    //
+    // Pairs the given number of synthetic devices with an in-process verifier and then runs
+    // paired verifications against it from one thread per core, limited to the given number of
+    // attestations per second (0 for no limit).
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("usage: SyntheticAuditee <deflate dictionary> <devices> <rate> " +
+                    "<seconds>");
+            System.exit(1);
+        }
+        final byte[] dictionary = readFile(args[0]);
+        final int deviceCount = Integer.parseInt(args[1]);
+        final double rate = Double.parseDouble(args[2]);
+        final long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(args[3]));
+
+        final Authority authority = Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, dictionary,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        final ChallengeRegistry challenges = new ChallengeRegistry(Integer.MAX_VALUE);
+        final byte[] challengeIndex = new byte[CHALLENGE_LENGTH];
+        new SecureRandom().nextBytes(challengeIndex);
+
+        final List<SyntheticAuditee> devices = new ArrayList<>();
+        final List<Map.Entry<String, DeviceInfo>> stock =
+                new ArrayList<>(DeviceDatabase.fingerprintsStock.entrySet());
+        for (int i = 0; i < deviceCount; i++) {
+            final Map.Entry<String, DeviceInfo> entry = stock.get(i % stock.size());
+            devices.add(new SyntheticAuditee(authority, entry.getKey(), true, entry.getValue(),
+                    DEFAULT_OS_VERSION, DEFAULT_OS_PATCH_LEVEL, DEFAULT_APP_VERSION));
+        }
+
+        final RateLimiter limiter = rate > 0 ? RateLimiter.create(rate) : null;
+        final AtomicInteger next = new AtomicInteger();
+        final LongAdder verified = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final long start = System.currentTimeMillis();
+        final long deadline = start + duration;
+
+        final Thread[] threads = new Thread[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                final SecureRandom random = new SecureRandom();
+                while (System.currentTimeMillis() < deadline) {
+                    if (limiter != null) {
+                        limiter.acquire();
+                    }
+                    final SyntheticAuditee device =
+                            devices.get(Math.floorMod(next.getAndIncrement(), devices.size()));
+                    final byte[] challenge = new byte[CHALLENGE_LENGTH];
+                    random.nextBytes(challenge);
+                    challenges.register(challenge);
+                    try {
+                        final byte[] serialized = device.generateSerialized(
+                                Bytes.concat(new byte[]{PROTOCOL_VERSION}, challengeIndex, challenge),
+                                dictionary, OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+                        verifier.verifySerialized(serialized, challenges::consume);
+                        verified.increment();
+                    } catch (final Exception e) {
+                        if (failed.sum() == 0) {
+                            e.printStackTrace();
+                        }
+                        failed.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final long elapsed = System.currentTimeMillis() - start;
+        System.out.println("verified: " + verified.sum() + ", failed: " + failed.sum() +
+                ", per second: " + verified.sum() * 1000 / Math.max(elapsed, 1));
+        for (final Map.Entry<VerificationMetrics.Stage, VerificationMetrics.Snapshot> entry :
+                VerificationMetrics.getSnapshots().entrySet()) {
+            if (entry.getValue().count > 0) {
+                System.out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        System.out.println("pinned key cache: " + verifier.getPinnedKeyCacheStats());
+    }
+}
@@ -0,0 +1,211 @@
+package co.copperhead.attestation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms for each stage of generating and verifying attestations, along with counts
+// of the outcomes.
+//
+// Recording is lock-free and allocation-free so it can stay enabled: each histogram has log-linear
+// buckets with SUB_BUCKETS buckets per power of 2 nanoseconds, bounding the relative error of the
+// reported percentiles to 1 / SUB_BUCKETS. Snapshots are taken without stopping recording, so they
+// can be off by the measurements recorded while they're being taken.
+class VerificationMetrics {
+    enum Stage {
+        // verification
+        VERIFY,
+        INFLATE,
+        DECODE_CERTIFICATES,
+        VERIFY_CHAIN,
+        PARSE_ATTESTATION,
+        DEVICE_LOCK,
+        PIN_LOAD,
+        VERIFY_SIGNATURE,
+        PIN_STORE,
+        // generation
+        GENERATE,
+        KEY_GENERATION,
+        SELF_VERIFY,
+        // run concurrently with key generation and verification of the generated attestation
+        OS_CHECKS,
+        // time spent waiting for the OS checks after the attestation was verified
+        OS_CHECKS_WAIT,
+        SERIALIZE,
+        // the app's warm-up at startup, recorded once
+        WARMUP
+    }
+
+    enum Counter {
+        VERIFIED_PAIRING,
+        VERIFIED_PAIRED,
+        VERIFY_FAILED,
+        GENERATED,
+        GENERATE_FAILED
+    }
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values of 2^MAX_EXPONENT nanoseconds (~18 minutes) and above share the last bucket
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+    static class Histogram {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void record(final long value) {
+            counts.incrementAndGet(getBucket(value));
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        Snapshot snapshot() {
+            final long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return new Snapshot(copy, sum.sum(), max.get());
+        }
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sumNanos;
+        final long maxNanos;
+
+        private Snapshot(final long[] counts, final long sumNanos, final long maxNanos) {
+            this.counts = counts;
+            long count = 0;
+            for (final long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        // Returns the upper bound of the bucket containing the given percentile (0 to 100).
+        long getPercentileNanos(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == counts.length - 1 ?
+                            maxNanos : Math.min(getBucketLowerBound(i + 1) - 1, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count +
+                    " mean=" + getMeanNanos() / 1000 + "us" +
+                    " p50=" + getPercentileNanos(50) / 1000 + "us" +
+                    " p99=" + getPercentileNanos(99) / 1000 + "us" +
+                    " max=" + maxNanos / 1000 + "us";
+        }
+    }
+
+    // indexed by ordinal
+    private static final Histogram[] histograms = new Histogram[Stage.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+    // only cleared to measure the overhead of recording, which leaves the nanoTime calls for the
+    // start of each stage in place
+    private static volatile boolean enabled = true;
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    private VerificationMetrics() {
+    }
+
+    static int getBucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long getBucketLowerBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    // Records the time since startNanos, a value from System.nanoTime().
+    static void record(final Stage stage, final long startNanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    static void increment(final Counter counter) {
+        if (enabled) {
+            counters[counter.ordinal()].increment();
+        }
+    }
+
+    static void setEnabled(final boolean enabled) {
+        VerificationMetrics.enabled = enabled;
+    }
+
+    static Snapshot getSnapshot(final Stage stage) {
+        return histograms[stage.ordinal()].snapshot();
+    }
+
+    static Map<Stage, Snapshot> getSnapshots() {
+        final Map<Stage, Snapshot> snapshots = new EnumMap<>(Stage.class);
+        for (final Stage stage : Stage.values()) {
+            snapshots.put(stage, getSnapshot(stage));
+        }
+        return snapshots;
+    }
+
+    static long getCount(final Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    static void reset() {
+        for (final Histogram histogram : histograms) {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.counts.set(i, 0);
+            }
+            histogram.sum.reset();
+            histogram.max.set(0);
+        }
+        for (final LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+}
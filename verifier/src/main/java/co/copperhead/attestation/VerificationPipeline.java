@@ -0,0 +1,142 @@
+package co.copperhead.attestation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import co.copperhead.attestation.AttestationVerifier.ChallengeValidator;
+import co.copperhead.attestation.AttestationVerifier.Decoded;
+import co.copperhead.attestation.AttestationVerifier.Result;
+import co.copperhead.attestation.AttestationVerifier.Verified;
+
+// Asynchronous verification of serialized attestations split into stages with their own
+// executors, so each kind of work can be sized separately:
+//
+// decode: inflating and parsing the certificate chain
+// crypto: verifying the certificate chain and the attestation extension, on a work-stealing pool
+// store: checking the signature against the pinning data and storing it, which may block on I/O
+//
+// At most capacity attestations are in flight at once. Submitting blocks until there's room, so a
+// producer faster than the pipeline is slowed down rather than building up an unbounded backlog.
+// Since nothing else submits to the stage executors, their bounded queues never fill up.
+//
+// The returned futures complete exceptionally with a CompletionException wrapping the
+// DataFormatException, GeneralSecurityException or IOException from verification.
+class VerificationPipeline implements Closeable {
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
+
+    private final AttestationVerifier verifier;
+    private final Semaphore permits;
+    private final ExecutorService decodeExecutor;
+    private final ForkJoinPool cryptoPool;
+    private final ExecutorService storeExecutor;
+
+    VerificationPipeline(final AttestationVerifier verifier, final int capacity,
+            final int decodeThreads, final int cryptoThreads, final int storeThreads) {
+        this.verifier = verifier;
+        permits = new Semaphore(capacity);
+        decodeExecutor = createExecutor(decodeThreads, capacity, "VerificationPipeline-decode-%d");
+        cryptoPool = new ForkJoinPool(cryptoThreads);
+        storeExecutor = createExecutor(storeThreads, capacity, "VerificationPipeline-store-%d");
+    }
+
+    private static ExecutorService createExecutor(final int threads, final int capacity,
+            final String nameFormat) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+    }
+
+    CompletableFuture<Result> submit(final byte[] attestationResult,
+            final ChallengeValidator challengeValidator) throws InterruptedException {
+        permits.acquire();
+        final long start = System.nanoTime();
+        final CompletableFuture<Result> future;
+        try {
+            future = CompletableFuture
+                    .supplyAsync(() -> decode(attestationResult), decodeExecutor)
+                    .thenApplyAsync(decoded -> verifyStateless(decoded, challengeValidator),
+                            cryptoPool)
+                    .thenApplyAsync(this::verifyPinned, storeExecutor);
+        } catch (final RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> {
+            permits.release();
+            if (e != null) {
+                VerificationMetrics.increment(VerificationMetrics.Counter.VERIFY_FAILED);
+                return;
+            }
+            VerificationMetrics.record(VerificationMetrics.Stage.VERIFY, start);
+            VerificationMetrics.increment(result.strong ?
+                    VerificationMetrics.Counter.VERIFIED_PAIRED :
+                    VerificationMetrics.Counter.VERIFIED_PAIRING);
+        });
+    }
+
+    private static class Stateless {
+        final Decoded decoded;
+        final Verified verified;
+
+        Stateless(final Decoded decoded, final Verified verified) {
+            this.decoded = decoded;
+            this.verified = verified;
+        }
+    }
+
+    private Decoded decode(final byte[] attestationResult) {
+        try {
+            return verifier.decode(attestationResult);
+        } catch (final DataFormatException | GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private Stateless verifyStateless(final Decoded decoded,
+            final ChallengeValidator challengeValidator) {
+        try {
+            return new Stateless(decoded, verifier.verifyStateless(decoded, challengeValidator));
+        } catch (final GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private Result verifyPinned(final Stateless stateless) {
+        try {
+            return verifier.verifyPinned(stateless.decoded, stateless.verified);
+        } catch (final GeneralSecurityException | IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // Stops accepting attestations and waits for the ones in flight to finish.
+    @Override
+    public void close() {
+        decodeExecutor.shutdown();
+        try {
+            decodeExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            cryptoPool.shutdown();
+            cryptoPool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            storeExecutor.shutdown();
+            storeExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cryptoPool.shutdownNow();
+            storeExecutor.shutdownNow();
+        }
+    }
+}
@@ -29,7 +29,7 @@ import java.security.cert.X509Certificate;
  * contents.
  */
 public class Attestation {
-    static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
+    public static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
     static final int ATTESTATION_VERSION_INDEX = 0;
     static final int ATTESTATION_SECURITY_LEVEL_INDEX = 1;
     static final int KEYMASTER_VERSION_INDEX = 2;
@@ -61,7 +61,17 @@ public class Attestation {
      *                                     attestation extension.
      */
     public Attestation(X509Certificate x509Cert) throws CertificateParsingException {
-        ASN1Sequence seq = getAttestationSequence(x509Cert);
+        this(x509Cert.getExtensionValue(KEY_DESCRIPTION_OID));
+    }
+
+    /**
+     * Constructs an {@code Attestation} object from the encoded value of the attestation
+     * extension, in the format returned by {@link X509Certificate#getExtensionValue}.
+     *
+     * @throws CertificateParsingException if the extension is not properly formatted.
+     */
+    public Attestation(byte[] attestationExtensionBytes) throws CertificateParsingException {
+        ASN1Sequence seq = getAttestationSequence(attestationExtensionBytes);
         if (seq == null) {
             haveAttestation = false;
             attestationVersion = 0;
@@ -165,9 +175,8 @@ public class Attestation {
         return s.toString();
     }
 
-    private ASN1Sequence getAttestationSequence(X509Certificate x509Cert)
+    private ASN1Sequence getAttestationSequence(byte[] attestationExtensionBytes)
             throws CertificateParsingException {
-        byte[] attestationExtensionBytes = x509Cert.getExtensionValue(KEY_DESCRIPTION_OID);
         if (attestationExtensionBytes == null || attestationExtensionBytes.length == 0) {
             return null;
         }
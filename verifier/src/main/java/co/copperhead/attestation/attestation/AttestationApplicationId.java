@@ -14,57 +14,31 @@
 
 package co.copperhead.attestation.attestation;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1Set;
 
+import java.nio.charset.StandardCharsets;
 import java.security.cert.CertificateParsingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
-import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.Signature;
-
 public class AttestationApplicationId implements java.lang.Comparable<AttestationApplicationId> {
     private static final int PACKAGE_INFOS_INDEX = 0;
     private static final int SIGNATURE_DIGESTS_INDEX = 1;
+    private static final Comparator<byte[]> BYTE_ARRAY_COMPARATOR = new ByteArrayComparator();
 
     private final List<AttestationPackageInfo> packageInfos;
     private final List<byte[]> signatureDigests;
-
-    public AttestationApplicationId(Context context)
-            throws NoSuchAlgorithmException, NameNotFoundException {
-        PackageManager pm = context.getPackageManager();
-        int uid = context.getApplicationInfo().uid;
-        String[] packageNames = pm.getPackagesForUid(uid);
-        if (packageNames == null || packageNames.length == 0) {
-            throw new NameNotFoundException("No names found for uid");
-        }
-        packageInfos = new ArrayList<AttestationPackageInfo>();
-        for (String packageName : packageNames) {
-            // get the package info for the given package name including
-            // the signatures
-            PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-            packageInfos.add(new AttestationPackageInfo(packageName, packageInfo.versionCode));
-        }
-        // The infos must be sorted, the implementation of Comparable relies on it.
-        packageInfos.sort(null);
-
-        // compute the sha256 digests of the signature blobs
-        signatureDigests = new ArrayList<byte[]>();
-        PackageInfo packageInfo = pm.getPackageInfo(packageNames[0], PackageManager.GET_SIGNATURES);
-        for (Signature signature : packageInfo.signatures) {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            signatureDigests.add(sha256.digest(signature.toByteArray()));
-        }
-        // The digests must be sorted. the implementation of Comparable relies on it
-        signatureDigests.sort(new ByteArrayComparator());
-    }
+    // SHA-256 of the canonical (sorted) contents, so equal ids have equal digests
+    private final byte[] digest;
+    private final int hashCode;
 
     public AttestationApplicationId(ASN1Encodable asn1Encodable)
             throws CertificateParsingException {
@@ -80,15 +54,34 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
         packageInfos.sort(null);
         signatureDigests = parseSignatures(sequence.getObjectAt(SIGNATURE_DIGESTS_INDEX));
         // The digests must be sorted. the implementation of Comparable relies on it
-        signatureDigests.sort(new ByteArrayComparator());
+        signatureDigests.sort(BYTE_ARRAY_COMPARATOR);
+        digest = computeDigest(packageInfos, signatureDigests);
+        hashCode = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8
+                | (digest[3] & 0xff);
+    }
+
+    private static byte[] computeDigest(List<AttestationPackageInfo> packageInfos,
+            List<byte[]> signatureDigests) {
+        // Lengths are included so that different contents can't have the same encoding.
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(packageInfos.size());
+        for (AttestationPackageInfo info : packageInfos) {
+            byte[] packageName = info.getPackageName().getBytes(StandardCharsets.UTF_8);
+            hasher.putInt(packageName.length).putBytes(packageName).putInt(info.getVersion());
+        }
+        hasher.putInt(signatureDigests.size());
+        for (byte[] signatureDigest : signatureDigests) {
+            hasher.putInt(signatureDigest.length).putBytes(signatureDigest);
+        }
+        return hasher.hash().asBytes();
     }
 
     public List<AttestationPackageInfo> getAttestationPackageInfos() {
-        return packageInfos;
+        return Collections.unmodifiableList(packageInfos);
     }
 
     public List<byte[]> getSignatureDigests() {
-        return signatureDigests;
+        return Collections.unmodifiableList(signatureDigests);
     }
 
     @Override
@@ -113,6 +106,9 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
 
     @Override
     public int compareTo(AttestationApplicationId other) {
+        if (hashCode == other.hashCode && Arrays.equals(digest, other.digest)) {
+            return 0;
+        }
         int res = Integer.compare(packageInfos.size(), other.packageInfos.size());
         if (res != 0) return res;
         for (int i = 0; i < packageInfos.size(); ++i) {
@@ -121,9 +117,8 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
         }
         res = Integer.compare(signatureDigests.size(), other.signatureDigests.size());
         if (res != 0) return res;
-        ByteArrayComparator cmp = new ByteArrayComparator();
         for (int i = 0; i < signatureDigests.size(); ++i) {
-            res = cmp.compare(signatureDigests.get(i), other.signatureDigests.get(i));
+            res = BYTE_ARRAY_COMPARATOR.compare(signatureDigests.get(i), other.signatureDigests.get(i));
             if (res != 0) return res;
         }
         return res;
@@ -131,8 +126,16 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
 
     @Override
     public boolean equals(Object o) {
-        return (o instanceof AttestationApplicationId)
-                && (0 == compareTo((AttestationApplicationId) o));
+        if (!(o instanceof AttestationApplicationId)) {
+            return false;
+        }
+        AttestationApplicationId other = (AttestationApplicationId) o;
+        return hashCode == other.hashCode && Arrays.equals(digest, other.digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
     }
 
     private List<AttestationPackageInfo> parseAttestationPackageInfos(ASN1Encodable asn1Encodable)
@@ -167,7 +170,7 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
         return result;
     }
 
-    private class ByteArrayComparator implements java.util.Comparator<byte[]> {
+    private static class ByteArrayComparator implements Comparator<byte[]> {
         @Override
         public int compare(byte[] a, byte[] b) {
             int res = Integer.compare(a.length, b.length);
@@ -14,6 +14,9 @@
 
 package co.copperhead.attestation.attestation;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Sequence;
 
@@ -24,6 +27,8 @@ import java.io.UnsupportedEncodingException;
 public class AttestationPackageInfo implements java.lang.Comparable<AttestationPackageInfo> {
     private static final int PACKAGE_NAME_INDEX = 0;
     private static final int VERSION_INDEX = 1;
+    // The same few package names show up in every attestation, so share one copy of each.
+    private static final Interner<String> PACKAGE_NAMES = Interners.newWeakInterner();
 
     private final String packageName;
     private final int version;
@@ -42,8 +47,8 @@ public class AttestationPackageInfo implements java.lang.Comparable<AttestationP
 
         ASN1Sequence sequence = (ASN1Sequence) asn1Encodable;
         try {
-            packageName = Asn1Utils.getStringFromAsn1OctetStreamAssumingUTF8(
-                    sequence.getObjectAt(PACKAGE_NAME_INDEX));
+            packageName = PACKAGE_NAMES.intern(Asn1Utils.getStringFromAsn1OctetStreamAssumingUTF8(
+                    sequence.getObjectAt(PACKAGE_NAME_INDEX)));
         } catch (UnsupportedEncodingException e) {
             throw new CertificateParsingException(
                     "Converting octet stream to String triggered an UnsupportedEncodingException",
@@ -80,4 +85,9 @@ public class AttestationPackageInfo implements java.lang.Comparable<AttestationP
         return (o instanceof AttestationPackageInfo)
                 && (0 == compareTo((AttestationPackageInfo) o));
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * packageName.hashCode() + version;
+    }
 }
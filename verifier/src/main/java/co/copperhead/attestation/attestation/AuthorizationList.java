@@ -24,9 +24,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
-import android.security.keystore.KeyProperties;
-import android.util.Log;
-
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.ASN1Sequence;
@@ -60,6 +57,13 @@ public class AuthorizationList {
     public static final int KM_PAD_RSA_PKCS1_1_5_ENCRYPT = 4;
     public static final int KM_PAD_RSA_PKCS1_1_5_SIGN = 5;
 
+    // Names of the padding modes, matching those in android.security.keystore.KeyProperties.
+    private static final String ENCRYPTION_PADDING_NONE = "NoPadding";
+    private static final String ENCRYPTION_PADDING_RSA_OAEP = "OAEPPadding";
+    private static final String ENCRYPTION_PADDING_RSA_PKCS1 = "PKCS1Padding";
+    private static final String SIGNATURE_PADDING_RSA_PKCS1 = "PKCS1";
+    private static final String SIGNATURE_PADDING_RSA_PSS = "PSS";
+
     // Digest modes.
     public static final int KM_DIGEST_NONE = 0;
     public static final int KM_DIGEST_MD5 = 1;
@@ -189,7 +193,6 @@ public class AuthorizationList {
         for (; entry != null; entry = parseAsn1TaggedObject(parser)) {
             int tag = entry.getTagNo();
             ASN1Primitive value = entry.getObject();
-            Log.i("Attestation", "Parsing tag: [" + tag + "], value: [" + value + "]");
             switch (tag) {
                 default:
                     throw new CertificateParsingException("Unknown tag " + tag + " found");
@@ -202,7 +205,6 @@ public class AuthorizationList {
                     break;
                 case KM_TAG_KEY_SIZE & KEYMASTER_TAG_TYPE_MASK:
                     keySize = Asn1Utils.getIntegerFromAsn1(value);
-                    Log.i("Attestation", "Found KEY SIZE, value: " + keySize);
                     break;
                 case KM_TAG_DIGEST & KEYMASTER_TAG_TYPE_MASK:
                     digests = Asn1Utils.getIntegersFromAsn1Set(value);
@@ -383,19 +385,19 @@ public class AuthorizationList {
         for (int paddingMode : paddingModes) {
             switch (paddingMode) {
                 case KM_PAD_NONE:
-                    builder.add(KeyProperties.ENCRYPTION_PADDING_NONE);
+                    builder.add(ENCRYPTION_PADDING_NONE);
                     break;
                 case KM_PAD_RSA_OAEP:
-                    builder.add(KeyProperties.ENCRYPTION_PADDING_RSA_OAEP);
+                    builder.add(ENCRYPTION_PADDING_RSA_OAEP);
                     break;
                 case KM_PAD_RSA_PKCS1_1_5_ENCRYPT:
-                    builder.add(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1);
+                    builder.add(ENCRYPTION_PADDING_RSA_PKCS1);
                     break;
                 case KM_PAD_RSA_PKCS1_1_5_SIGN:
-                    builder.add(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1);
+                    builder.add(SIGNATURE_PADDING_RSA_PKCS1);
                     break;
                 case KM_PAD_RSA_PSS:
-                    builder.add(KeyProperties.SIGNATURE_PADDING_RSA_PSS);
+                    builder.add(SIGNATURE_PADDING_RSA_PSS);
                     break;
                 default:
                     throw new CertificateParsingException("Invalid padding mode " + paddingMode);
@@ -0,0 +1,150 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.BaseEncoding;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class AttestationServerTest {
+    private static final byte[] DICTIONARY = "attestation".getBytes(StandardCharsets.US_ASCII);
+
+    private SyntheticAuditee.Authority authority;
+    private InMemoryPinStore pinStore;
+    private AttestationVerifier verifier;
+    private AttestationServer server;
+    private RemoteVerifyClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        authority = SyntheticAuditee.Authority.generate();
+        pinStore = new InMemoryPinStore();
+        verifier = new AttestationVerifier(authority.root, DICTIONARY,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                pinStore, false);
+        server = new AttestationServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), verifier, 3600, 2,
+                null, null);
+        server.start();
+        client = new RemoteVerifyClient("http://127.0.0.1:" + server.getPort(), 10000, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private SyntheticAuditee createDevice() {
+        final Map.Entry<String, DeviceInfo> entry =
+                DeviceDatabase.fingerprintsStock.entrySet().iterator().next();
+        return new SyntheticAuditee(authority, entry.getKey(), true, entry.getValue(), 80100,
+                201805, 22);
+    }
+
+    private byte[] attest(final SyntheticAuditee device) throws Exception {
+        return device.generateSerialized(client.fetchChallenge(), DICTIONARY,
+                OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+    }
+
+    private void assertRejected(final int responseCode, final long userId,
+            final String subscribeKey, final byte[] serialized) throws Exception {
+        try {
+            client.verify(userId, subscribeKey, serialized, false);
+            fail("verification should have been rejected");
+        } catch (final RemoteVerifyClient.ResponseException e) {
+            assertEquals(responseCode, e.responseCode);
+        }
+    }
+
+    @Test
+    public void pairedVerificationByOwner() throws Exception {
+        final SyntheticAuditee device = createDevice();
+        assertEquals("key", client.verify(1, "key", attest(device), false).subscribeKey);
+        assertEquals("key", client.verify(1, null, attest(device), false).subscribeKey);
+    }
+
+    @Test
+    public void otherAccountCannotUpdatePinnedDevice() throws Exception {
+        final SyntheticAuditee device = createDevice();
+        final byte[] pairing = attest(device);
+        client.verify(1, "first", pairing, false);
+        client.verify(2, "second", attest(createDevice()), false);
+        final String fingerprint =
+                BaseEncoding.base16().encode(verifier.decode(pairing).fingerprint);
+        final PinStore.PinnedDevice pinned = pinStore.load(fingerprint);
+        assertNotNull(pinned);
+
+        Thread.sleep(10);
+        assertRejected(403, 2, null, attest(device));
+        assertEquals(pinned.verifiedTimeLast, pinStore.load(fingerprint).verifiedTimeLast);
+    }
+
+    @Test
+    public void pairingRequiresSubscribeKey() throws Exception {
+        client.verify(1, "key", attest(createDevice()), false);
+        assertRejected(400, 1, null, attest(createDevice()));
+    }
+
+    private int post(final String path, final String contentType, final byte[] body)
+            throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        try {
+            connection.setDoOutput(true);
+            if (contentType != null) {
+                connection.setRequestProperty("Content-Type", contentType);
+            }
+            try (final OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] createBundle() throws Exception {
+        final ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        try (final SampleBundle.Writer writer = new SampleBundle.Writer(bundle)) {
+            writer.writeCertificate(new byte[]{1, 2, 3});
+            writer.writeUname("Linux");
+            writer.writeSystemProperties(new Properties());
+            writer.finish();
+        }
+        return bundle.toByteArray();
+    }
+
+    @Test
+    public void bundlesAreOnlyAcceptedAtTheirOwnPath() throws Exception {
+        final byte[] bundle = createBundle();
+        assertEquals(200, post(SampleBundle.SUBMIT_PATH, SampleBundle.CONTENT_TYPE, bundle));
+        assertEquals(415, post(SampleBundle.SUBMIT_PATH, null, bundle));
+        assertEquals(400, post(SampleBundle.SUBMIT_PATH, SampleBundle.CONTENT_TYPE,
+                Arrays.copyOf(bundle, bundle.length - 1)));
+        assertEquals(400, post(SampleBundle.SUBMIT_PATH, SampleBundle.CONTENT_TYPE,
+                "legacy\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void legacySubmissionsAreAccepted() throws Exception {
+        assertEquals(200, post("/submit", null, "legacy\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+}
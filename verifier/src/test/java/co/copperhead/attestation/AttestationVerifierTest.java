@@ -0,0 +1,191 @@
+package co.copperhead.attestation;
+
+import com.google.common.primitives.Bytes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import co.copperhead.attestation.AttestationVerifier.BatchItem;
+import co.copperhead.attestation.AttestationVerifier.BatchResult;
+import co.copperhead.attestation.AttestationVerifier.ChallengeValidator;
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Batch verification with synthetic devices.
+public class AttestationVerifierTest {
+    private static final byte[] DICTIONARY = "attestation".getBytes(StandardCharsets.US_ASCII);
+    private static final long BARRIER_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private SyntheticAuditee.Authority authority;
+    private AttestationVerifier verifier;
+    private ExecutorService executor;
+    private int nextChallenge;
+
+    @Before
+    public void setUp() throws Exception {
+        authority = SyntheticAuditee.Authority.generate();
+        verifier = new AttestationVerifier(authority.root, DICTIONARY,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private SyntheticAuditee createDevice(final int index) throws Exception {
+        final List<Map.Entry<String, DeviceInfo>> stock =
+                new ArrayList<>(DeviceDatabase.fingerprintsStock.entrySet());
+        final Map.Entry<String, DeviceInfo> entry = stock.get(index % stock.size());
+        return new SyntheticAuditee(authority, entry.getKey(), true, entry.getValue(), 80100,
+                201805, 22);
+    }
+
+    // Each attestation has a distinct challenge, so the validators can tell them apart.
+    private byte[] generate(final SyntheticAuditee device) throws Exception {
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        challenge[0] = (byte) nextChallenge++;
+        return device.generateSerialized(
+                Bytes.concat(new byte[]{PROTOCOL_VERSION}, new byte[CHALLENGE_LENGTH], challenge),
+                DICTIONARY, OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+    }
+
+    // Records the order in which the items are verified.
+    private static ChallengeValidator recording(final List<Integer> order, final int index) {
+        return challenge -> {
+            order.add(index);
+            return true;
+        };
+    }
+
+    private static void assertVerified(final BatchResult result) {
+        if (result.exception != null) {
+            throw new AssertionError(result.exception);
+        }
+        assertNotNull(result.result);
+    }
+
+    // Only the first attestation pairs and the others are verified against the pinning data it
+    // stored.
+    @Test
+    public void sameDeviceIsVerifiedInOrder() throws Exception {
+        final SyntheticAuditee device = createDevice(0);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final List<BatchItem> items = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            items.add(new BatchItem(generate(device), recording(order, i)));
+        }
+
+        final List<BatchResult> results = verifier.verifyBatch(items, executor);
+        assertEquals(items.size(), results.size());
+        assertEquals(items.size(), order.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(i, (int) order.get(i));
+            assertVerified(results.get(i));
+            assertEquals(i > 0, results.get(i).result.strong);
+        }
+    }
+
+    @Test
+    public void truncatedItemFailsAlone() throws Exception {
+        final SyntheticAuditee device = createDevice(0);
+        final byte[] valid = generate(device);
+        final List<BatchItem> items = new ArrayList<>();
+        items.add(new BatchItem(valid, challenge -> true));
+        items.add(new BatchItem(new byte[]{PROTOCOL_VERSION, 0x7f}, challenge -> true));
+        items.add(new BatchItem(new byte[0], challenge -> true));
+        items.add(new BatchItem(generate(device), challenge -> true));
+
+        final List<BatchResult> results = verifier.verifyBatch(items, executor);
+        assertVerified(results.get(0));
+        for (final BatchResult result : results.subList(1, 3)) {
+            assertNull(result.result);
+            assertNotNull(result.exception);
+        }
+        assertVerified(results.get(3));
+        assertTrue(results.get(3).result.strong);
+    }
+
+    @Test
+    public void resultsAreInInputOrder() throws Exception {
+        final List<SyntheticAuditee> devices = new ArrayList<>();
+        final List<String> fingerprints = new ArrayList<>();
+        final List<BatchItem> pairing = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            devices.add(createDevice(i));
+            pairing.add(new BatchItem(generate(devices.get(i)), challenge -> true));
+        }
+        for (final BatchResult result : verifier.verifyBatch(pairing, executor)) {
+            assertVerified(result);
+            assertFalse(result.result.strong);
+            fingerprints.add(result.result.fingerprint);
+        }
+
+        // interleaved devices with a failing item in between
+        final List<BatchItem> items = new ArrayList<>();
+        final List<Integer> expected = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = devices.size() - 1; i >= 0; i--) {
+                items.add(new BatchItem(generate(devices.get(i)), challenge -> true));
+                expected.add(i);
+            }
+            items.add(new BatchItem(generate(devices.get(0)), challenge -> false));
+            expected.add(-1);
+        }
+
+        final List<BatchResult> results = verifier.verifyBatch(items, executor);
+        assertEquals(items.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            if (expected.get(i) == -1) {
+                assertNotNull(results.get(i).exception);
+            } else {
+                assertVerified(results.get(i));
+                assertTrue(results.get(i).result.strong);
+                assertEquals(fingerprints.get(expected.get(i)), results.get(i).result.fingerprint);
+            }
+        }
+    }
+
+    // Each device's verification waits for the other's to start, which only succeeds if they
+    // run at the same time.
+    @Test
+    public void independentDevicesRunConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final ChallengeValidator waiting = challenge -> {
+            try {
+                barrier.await(BARRIER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (final Exception e) {
+                return false;
+            }
+        };
+        final List<BatchItem> items = new ArrayList<>();
+        items.add(new BatchItem(generate(createDevice(0)), waiting));
+        items.add(new BatchItem(generate(createDevice(1)), waiting));
+
+        for (final BatchResult result : verifier.verifyBatch(items, executor)) {
+            assertVerified(result);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package co.copperhead.attestation;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+
+// Throughput of challenge generation at 1 and 32 threads: a new SecureRandom for each challenge as
+// the app used to, the per-thread generators of ChallengeGenerator, and its pre-generated buffer
+// refilled on a background thread.
+public class ChallengeGeneratorBenchmark {
+    private static final int[] THREADS = {1, 32};
+    private static final int BUFFER_CAPACITY = 4096;
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private ChallengeGeneratorBenchmark() {}
+
+    private static byte[] generateWithNewRandom() {
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        new SecureRandom().nextBytes(challenge);
+        return challenge;
+    }
+
+    private static long run(final Supplier<byte[]> generator, final int threadCount,
+            final long duration) throws InterruptedException {
+        final LongAdder generated = new LongAdder();
+        final long deadline = System.currentTimeMillis() + duration;
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    if (generator.get().length != CHALLENGE_LENGTH) {
+                        throw new IllegalStateException("invalid challenge");
+                    }
+                    generated.increment();
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return generated.sum() * 1000 / duration;
+    }
+
+    private static void measure(final String name, final Supplier<byte[]> generator)
+            throws InterruptedException {
+        run(generator, THREADS[THREADS.length - 1], WARMUP_MS);
+        for (final int threads : THREADS) {
+            System.out.printf("%-12s %2d threads: %10d challenges/s%n", name, threads,
+                    run(generator, threads, DURATION_MS));
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        measure("new random", ChallengeGeneratorBenchmark::generateWithNewRandom);
+        measure("per thread", ChallengeGenerator::generateChallenge);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ChallengeGenerator buffered = new ChallengeGenerator(BUFFER_CAPACITY, executor);
+            buffered.fill();
+            measure("buffered", buffered::next);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
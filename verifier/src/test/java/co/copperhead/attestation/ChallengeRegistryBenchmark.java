@@ -0,0 +1,92 @@
+package co.copperhead.attestation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+
+// Throughput of ChallengeRegistry registrations and consumptions at 1 and 32 threads.
+//
+// Each thread registers a new challenge per iteration and consumes every other one after
+// CONSUME_LAG further registrations, as for auditees scanning the challenge a little later, while
+// the rest are left to expire. The registry's clock runs fast enough for challenges to expire
+// EXPIRE_REAL_MS after being registered, so the wheel is filling and expiring throughout the
+// measurement rather than only growing. Registrations rejected for a full registry are counted
+// separately.
+public class ChallengeRegistryBenchmark {
+    private static final int[] THREADS = {1, 32};
+    // as used by AttestationServer
+    private static final int CAPACITY = 1 << 20;
+    private static final int CONSUME_LAG = 64;
+    private static final long EXPIRE_REAL_MS = 1000;
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private ChallengeRegistryBenchmark() {}
+
+    private static class Result {
+        final LongAdder registered = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder consumed = new LongAdder();
+    }
+
+    private static Result run(final ChallengeRegistry registry, final int threadCount,
+            final long duration) throws InterruptedException {
+        final Result result = new Result();
+        final long deadline = System.currentTimeMillis() + duration;
+        // distinguishes the challenges of each thread across runs
+        final AtomicInteger nextThread = new AtomicInteger();
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                final long thread = nextThread.getAndIncrement();
+                final byte[][] pending = new byte[CONSUME_LAG][];
+                long next = System.nanoTime();
+                while (System.currentTimeMillis() < deadline) {
+                    final byte[] challenge = new byte[CHALLENGE_LENGTH];
+                    ByteBuffer.wrap(challenge).putLong(thread).putLong(next++);
+                    if (registry.register(challenge)) {
+                        result.registered.increment();
+                    } else {
+                        result.rejected.increment();
+                    }
+                    final int slot = (int) (next % CONSUME_LAG);
+                    if (pending[slot] != null && registry.consume(pending[slot])) {
+                        result.consumed.increment();
+                    }
+                    pending[slot] = next % 2 == 0 ? challenge : null;
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return result;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        for (final int threads : THREADS) {
+            final long start = System.currentTimeMillis();
+            final LongSupplier clock = () ->
+                    start + (System.currentTimeMillis() - start) * EXPIRE_OFFSET_MS /
+                            EXPIRE_REAL_MS;
+            final ChallengeRegistry registry = new ChallengeRegistry(CAPACITY, clock);
+            // fills the registry up to the point where challenges start expiring
+            run(registry, threads, WARMUP_MS);
+            final Result result = run(registry, threads, DURATION_MS);
+            System.out.printf("%2d threads: %10d registered/s %10d consumed/s %10d rejected/s" +
+                            ", size %d%n", threads,
+                    result.registered.sum() * 1000 / DURATION_MS,
+                    result.consumed.sum() * 1000 / DURATION_MS,
+                    result.rejected.sum() * 1000 / DURATION_MS,
+                    registry.size());
+        }
+    }
+}
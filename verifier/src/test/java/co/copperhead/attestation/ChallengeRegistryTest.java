@@ -0,0 +1,185 @@
+package co.copperhead.attestation;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChallengeRegistryTest {
+    private static final long START_MS = 1_500_000_000_000L;
+    // long enough for entries raced into a slot the wheel already passed to come around again
+    private static final long RECLAIM_MS = EXPIRE_OFFSET_MS + 2 * 64 * 64 * 1000L;
+
+    private static byte[] createChallenge(final Random random) {
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    // Moves the clock forward a second at a time, letting the registry process every tick.
+    private static void advance(final ChallengeRegistry registry, final AtomicLong clock,
+            final long millis, final Random random) {
+        for (long elapsed = 0; elapsed < millis; elapsed += 1000) {
+            clock.addAndGet(1000);
+            registry.consume(createChallenge(random));
+        }
+    }
+
+    @Test
+    public void consumedOnce() {
+        final ChallengeRegistry registry = new ChallengeRegistry(16, () -> START_MS);
+        final byte[] challenge = createChallenge(new Random(1));
+        assertTrue(registry.register(challenge));
+        assertFalse(registry.register(challenge));
+        assertTrue(registry.consume(challenge));
+        assertFalse(registry.consume(challenge));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void registrationFailsWhenFull() {
+        final ChallengeRegistry registry = new ChallengeRegistry(2, () -> START_MS);
+        final Random random = new Random(1);
+        assertTrue(registry.register(createChallenge(random)));
+        assertTrue(registry.register(createChallenge(random)));
+        assertFalse(registry.register(createChallenge(random)));
+    }
+
+    @Test
+    public void expiredChallengeIsRejected() {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final ChallengeRegistry registry = new ChallengeRegistry(16, clock::get);
+        final byte[] challenge = createChallenge(new Random(1));
+        registry.register(challenge);
+        clock.addAndGet(EXPIRE_OFFSET_MS + 1);
+        assertFalse(registry.consume(challenge));
+    }
+
+    @Test
+    public void challengeIsValidUntilExpiry() {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final ChallengeRegistry registry = new ChallengeRegistry(16, clock::get);
+        final Random random = new Random(1);
+        final byte[] challenge = createChallenge(random);
+        registry.register(challenge);
+        advance(registry, clock, EXPIRE_OFFSET_MS - 1000, random);
+        assertTrue(registry.consume(challenge));
+    }
+
+    @Test
+    public void expiredEntriesAreReclaimed() {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final ChallengeRegistry registry = new ChallengeRegistry(1 << 16, clock::get);
+        final Random random = new Random(1);
+        // spread over more than a turn of the inner wheel so both wheels are used
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 100; j++) {
+                registry.register(createChallenge(random));
+            }
+            clock.addAndGet(700);
+        }
+        advance(registry, clock, EXPIRE_OFFSET_MS + 2000, random);
+        assertEquals(0, registry.size());
+    }
+
+    // Producers register challenges while consumers race each other to use them and the clock
+    // moves on, so registrations also race with the wheel advancing. Every challenge must be
+    // accepted at most once, and nothing may be left behind once it has all expired.
+    @Test
+    public void concurrentRegisterAndConsumeWithExpiry() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 50000;
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final ChallengeRegistry registry = new ChallengeRegistry(Integer.MAX_VALUE, clock::get);
+        final List<byte[]> issued = new ArrayList<>();
+        final Object lock = new Object();
+        final ConcurrentMap<ByteBuffer, Boolean> accepted = new ConcurrentHashMap<>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(producers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final Random random = new Random(p);
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perProducer; i++) {
+                        final byte[] challenge = createChallenge(random);
+                        assertTrue(registry.register(challenge));
+                        synchronized (lock) {
+                            issued.add(challenge);
+                        }
+                        if (i % 64 == 0) {
+                            // about a tenth of the expiry time per producer
+                            clock.addAndGet(EXPIRE_OFFSET_MS / 10 * 64 / perProducer + 1);
+                        }
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            final Random random = new Random(100 + c);
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    while (running.get() > 0) {
+                        final byte[] challenge;
+                        synchronized (lock) {
+                            if (issued.isEmpty()) {
+                                continue;
+                            }
+                            // some are consumed by several threads and some never
+                            challenge = issued.get(random.nextInt(issued.size()));
+                        }
+                        if (registry.consume(challenge) &&
+                                accepted.put(ByteBuffer.wrap(challenge), true) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, duplicates.get());
+        assertTrue(accepted.size() > 0);
+        assertEquals(producers * perProducer - accepted.size(), registry.size());
+
+        advance(registry, clock, RECLAIM_MS, new Random(1));
+        assertEquals(0, registry.size());
+        for (final byte[] challenge : issued) {
+            assertFalse(registry.consume(challenge));
+        }
+    }
+}
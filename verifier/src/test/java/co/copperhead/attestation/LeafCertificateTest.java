@@ -0,0 +1,330 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.Files;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+import co.copperhead.attestation.attestation.Attestation;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_MESSAGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// LeafCertificate compared with the X509Certificate from CertificateFactory for the real
+// certificates in samples/ and for synthetic attestations, and its handling of malformed encodings.
+public class LeafCertificateTest {
+    private static final byte[] DICTIONARY = "attestation".getBytes(StandardCharsets.US_ASCII);
+    // the samples directory at the root of the repository, relative to the verifier project
+    private static final String SAMPLES = System.getProperty("samples", "../samples");
+
+    private static List<byte[]> samples;
+    private static List<byte[]> synthetic;
+    private static List<PublicKey> keys;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        samples = new ArrayList<>();
+        final File[] files = new File(SAMPLES).listFiles();
+        assertTrue("no samples in " + SAMPLES, files != null && files.length > 0);
+        Arrays.sort(files);
+        for (final File file : files) {
+            samples.add(Files.toByteArray(file));
+        }
+
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, DICTIONARY,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        final Map.Entry<String, DeviceInfo> entry =
+                DeviceDatabase.fingerprintsStock.entrySet().iterator().next();
+        final SyntheticAuditee auditee = new SyntheticAuditee(authority, entry.getKey(), true,
+                entry.getValue(), 80100, 201805, 22);
+        final byte[] challengeMessage = new byte[CHALLENGE_MESSAGE_LENGTH];
+        challengeMessage[0] = PROTOCOL_VERSION;
+        synthetic = new ArrayList<>();
+        // the first attestation is for the persistent key and the later ones for fresh keys
+        for (int i = 0; i < 2; i++) {
+            final byte[] serialized = auditee.generateSerialized(challengeMessage, DICTIONARY,
+                    OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+            synthetic.add(verifier.decode(serialized).certificates[0].getEncoded());
+        }
+
+        keys = new ArrayList<>();
+        for (final byte[] encoded : samples) {
+            keys.add(parse(encoded).getPublicKey());
+        }
+        keys.add(authority.batch.getPublicKey());
+        keys.add(authority.intermediate.getPublicKey());
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        keys.add(generator.generateKeyPair().getPublic());
+    }
+
+    private static X509Certificate parse(final byte[] encoded) throws CertificateException {
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(encoded));
+    }
+
+    private static boolean verifies(final X509Certificate certificate, final PublicKey key) {
+        try {
+            certificate.verify(key);
+            return true;
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean verifies(final LeafCertificate certificate, final PublicKey key) {
+        try {
+            certificate.verify(key);
+            return true;
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean isValid(final X509Certificate certificate, final Date date) {
+        try {
+            certificate.checkValidity(date);
+            return true;
+        } catch (final CertificateException e) {
+            return false;
+        }
+    }
+
+    private static boolean isValid(final LeafCertificate certificate, final Date date) {
+        try {
+            certificate.checkValidity(date);
+            return true;
+        } catch (final CertificateException e) {
+            return false;
+        }
+    }
+
+    // Returns the number of keys the certificate was verified with.
+    private static int assertEquivalent(final byte[] encoded) throws Exception {
+        final X509Certificate expected = parse(encoded);
+        final LeafCertificate actual = new LeafCertificate(encoded);
+
+        assertArrayEquals(expected.getEncoded(), actual.getEncoded());
+        assertArrayEquals(expected.getTBSCertificate(), actual.getTBSCertificate());
+        assertArrayEquals(expected.getSignature(), actual.getSignature());
+        assertEquals(expected.getSigAlgName().toUpperCase(),
+                actual.getSigAlgName().toUpperCase());
+        assertArrayEquals(expected.getPublicKey().getEncoded(),
+                actual.getPublicKey().getEncoded());
+        assertEquals(expected.getNotBefore(), actual.getNotBefore());
+        assertEquals(expected.getNotAfter(), actual.getNotAfter());
+
+        final long notBefore = expected.getNotBefore().getTime();
+        final long notAfter = expected.getNotAfter().getTime();
+        for (final long time : new long[]{notBefore - 1, notBefore, notAfter, notAfter + 1}) {
+            assertEquals(isValid(expected, new Date(time)), isValid(actual, new Date(time)));
+        }
+
+        final Set<String> oids = new HashSet<>();
+        oids.add(Attestation.KEY_DESCRIPTION_OID);
+        if (expected.getCriticalExtensionOIDs() != null) {
+            oids.addAll(expected.getCriticalExtensionOIDs());
+        }
+        if (expected.getNonCriticalExtensionOIDs() != null) {
+            oids.addAll(expected.getNonCriticalExtensionOIDs());
+        }
+        for (final String oid : oids) {
+            assertArrayEquals(oid, expected.getExtensionValue(oid), actual.getExtensionValue(oid));
+        }
+
+        int verified = 0;
+        for (final PublicKey key : keys) {
+            final boolean result = verifies(expected, key);
+            assertEquals(result, verifies(actual, key));
+            if (result) {
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    @Test
+    public void samplesMatchCertificateFactory() throws Exception {
+        int verified = 0;
+        for (final byte[] encoded : samples) {
+            verified += assertEquivalent(encoded);
+        }
+        // each sample except the last in the chain is signed by the next one
+        assertEquals(samples.size() - 1, verified);
+    }
+
+    @Test
+    public void syntheticLeavesMatchCertificateFactory() throws Exception {
+        for (final byte[] encoded : synthetic) {
+            assertEquals(1, assertEquivalent(encoded));
+            assertTrue(new LeafCertificate(encoded).getExtensionValue(
+                    Attestation.KEY_DESCRIPTION_OID) != null);
+        }
+    }
+
+    @Test
+    public void tamperedSignatureIsRejected() throws Exception {
+        final byte[] encoded = synthetic.get(0).clone();
+        // the signature is at the end of the certificate
+        encoded[encoded.length - 1] ^= 1;
+        final LeafCertificate certificate = new LeafCertificate(encoded);
+        for (final PublicKey key : keys) {
+            assertEquals(false, verifies(certificate, key));
+        }
+    }
+
+    private static void assertRejected(final byte[] encoded) {
+        try {
+            new LeafCertificate(encoded);
+            fail("certificate should have been rejected");
+        } catch (final CertificateParsingException expected) {
+        }
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+
+    // Minimal DER header for the tag and length.
+    private static byte[] header(final int tag, final int length) {
+        if (length < 0x80) {
+            return new byte[]{(byte) tag, (byte) length};
+        } else if (length < 0x100) {
+            return new byte[]{(byte) tag, (byte) 0x81, (byte) length};
+        }
+        return new byte[]{(byte) tag, (byte) 0x82, (byte) (length >> 8), (byte) length};
+    }
+
+    private static byte[] sequence(final byte[]... parts) {
+        final byte[] contents = concat(parts);
+        return concat(header(0x30, contents.length), contents);
+    }
+
+    // The TBS certificate, signature algorithm and signature of an encoded certificate.
+    private static byte[][] split(final byte[] encoded) throws IOException {
+        final ASN1Sequence certificate = ASN1Sequence.getInstance(encoded);
+        return new byte[][]{
+                certificate.getObjectAt(0).toASN1Primitive().getEncoded(ASN1Encoding.DER),
+                certificate.getObjectAt(1).toASN1Primitive().getEncoded(ASN1Encoding.DER),
+                certificate.getObjectAt(2).toASN1Primitive().getEncoded(ASN1Encoding.DER)
+        };
+    }
+
+    @Test
+    public void reassembledCertificateIsAccepted() throws Exception {
+        final byte[][] parts = split(synthetic.get(0));
+        assertArrayEquals(synthetic.get(0), sequence(parts));
+        new LeafCertificate(sequence(parts));
+    }
+
+    @Test
+    public void truncatedCertificateIsRejected() {
+        for (final byte[] encoded : Arrays.asList(samples.get(0), synthetic.get(0))) {
+            for (int length = 0; length < encoded.length; length++) {
+                assertRejected(Arrays.copyOf(encoded, length));
+            }
+        }
+    }
+
+    @Test
+    public void trailingDataIsRejected() {
+        assertRejected(concat(synthetic.get(0), new byte[]{0}));
+        assertRejected(concat(synthetic.get(0), synthetic.get(0)));
+    }
+
+    @Test
+    public void nonMinimalLengthIsRejected() throws Exception {
+        final byte[][] parts = split(synthetic.get(0));
+
+        // outer length with a leading zero byte
+        final byte[] contents = concat(parts);
+        assertRejected(concat(new byte[]{0x30, (byte) 0x83, 0, (byte) (contents.length >> 8),
+                (byte) contents.length}, contents));
+
+        // short signature algorithm length in the long form
+        final byte[] algorithm = parts[1];
+        assertTrue(algorithm[1] < 0x80);
+        final byte[] longForm = concat(new byte[]{algorithm[0], (byte) 0x81, algorithm[1]},
+                Arrays.copyOfRange(algorithm, 2, algorithm.length));
+        assertRejected(sequence(parts[0], longForm, parts[2]));
+    }
+
+    @Test
+    public void indefiniteLengthIsRejected() throws Exception {
+        final byte[][] parts = split(synthetic.get(0));
+        assertRejected(concat(new byte[]{0x30, (byte) 0x80}, concat(parts), new byte[]{0, 0}));
+    }
+
+    @Test
+    public void duplicateAttestationExtensionIsRejected() throws Exception {
+        final byte[][] parts = split(synthetic.get(0));
+        final ASN1Sequence tbs = ASN1Sequence.getInstance(parts[0]);
+        final ASN1EncodableVector fields = new ASN1EncodableVector();
+        for (int i = 0; i < tbs.size(); i++) {
+            if (tbs.getObjectAt(i) instanceof ASN1TaggedObject &&
+                    ((ASN1TaggedObject) tbs.getObjectAt(i)).getTagNo() == 3) {
+                final ASN1Sequence extensions = ASN1Sequence.getInstance(
+                        (ASN1TaggedObject) tbs.getObjectAt(i), true);
+                final ASN1EncodableVector duplicated = new ASN1EncodableVector();
+                for (int j = 0; j < extensions.size(); j++) {
+                    duplicated.add(extensions.getObjectAt(j));
+                    duplicated.add(extensions.getObjectAt(j));
+                }
+                fields.add(new DERTaggedObject(true, 3, new DERSequence(duplicated)));
+            } else {
+                fields.add(tbs.getObjectAt(i));
+            }
+        }
+        final byte[] duplicatedTbs = new DERSequence(fields).getEncoded(ASN1Encoding.DER);
+        new LeafCertificate(sequence(parts[0], parts[1], parts[2]));
+        assertRejected(sequence(duplicatedTbs, parts[1], parts[2]));
+    }
+
+    @Test
+    public void mismatchedSignatureAlgorithmIsRejected() throws Exception {
+        final byte[][] parts = split(synthetic.get(0));
+        final byte[] other = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA384)
+                .getEncoded(ASN1Encoding.DER);
+        assertRejected(sequence(parts[0], other, parts[2]));
+    }
+}
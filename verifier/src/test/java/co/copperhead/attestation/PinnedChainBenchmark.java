@@ -0,0 +1,84 @@
+package co.copperhead.attestation;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import co.copperhead.attestation.AttestationVerifier.Decoded;
+
+// Cost of the checks that don't depend on the pinning data for paired devices, with and without
+// the fast path for a chain identical to the pinned chain.
+//
+// Attestations are decoded for each verification like they would be for a request, and
+// verifyStateless is measured on a single thread, reporting both its total time and the time spent
+// on the certificate chain. The full path is measured after dropping the cached pinning data,
+// which is what the fast path compares the chain against.
+//
+// On OpenJDK, CertificateFactory hands out cached instances for an encoding it has already seen
+// and those remember their last successful verification, so the intermediates of a known chain
+// are cheap to verify even without the fast path.
+public class PinnedChainBenchmark {
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private PinnedChainBenchmark() {}
+
+    private static class Timing {
+        final double totalMicros;
+        final double chainMicros;
+
+        Timing(final double totalMicros, final double chainMicros) {
+            this.totalMicros = totalMicros;
+            this.chainMicros = chainMicros;
+        }
+    }
+
+    private static Timing run(final AttestationVerifier verifier,
+            final List<byte[]> attestations, final long duration) throws Exception {
+        VerificationMetrics.reset();
+        final long deadline = System.currentTimeMillis() + duration;
+        long nanos = 0;
+        long count = 0;
+        while (System.currentTimeMillis() < deadline) {
+            final Decoded decoded =
+                    verifier.decode(attestations.get((int) (count % attestations.size())));
+            final long start = System.nanoTime();
+            verifier.verifyStateless(decoded, challenge -> true);
+            nanos += System.nanoTime() - start;
+            count++;
+        }
+        return new Timing(nanos / 1000.0 / count,
+                VerificationMetrics.getSnapshot(VerificationMetrics.Stage.VERIFY_CHAIN)
+                        .getMeanNanos() / 1000.0);
+    }
+
+    // usage: PinnedChainBenchmark <deflate_dictionary.bin>
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: PinnedChainBenchmark <deflate dictionary>");
+            System.exit(1);
+        }
+        final byte[] dictionary = VerifierBenchmark.readDictionary(args[0]);
+
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, dictionary,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        final List<byte[]> attestations =
+                VerifierBenchmark.createPairedAttestations(authority, verifier, dictionary);
+
+        run(verifier, attestations, WARMUP_MS);
+        final Timing pinned = run(verifier, attestations, DURATION_MS);
+        final long hits = verifier.getPinnedKeyCacheStats().hitCount();
+        verifier.invalidatePinnedKeys();
+        run(verifier, attestations, WARMUP_MS);
+        final Timing full = run(verifier, attestations, DURATION_MS);
+        if (verifier.getPinnedKeyCacheStats().hitCount() != hits) {
+            throw new IllegalStateException("fast path taken after invalidation");
+        }
+
+        System.out.printf("full chain:   %7.1f us per verification, %7.1f us on the chain%n",
+                full.totalMicros, full.chainMicros);
+        System.out.printf("pinned chain: %7.1f us per verification, %7.1f us on the chain%n",
+                pinned.totalMicros, pinned.chainMicros);
+    }
+}
@@ -0,0 +1,157 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+
+// Periodic remote verification checks by RemoteVerifyClient against a local AttestationServer
+// standing in for the real service, at 1, 4 and 16 threads.
+//
+// Each thread checks its own paired devices in turn, either fetching a challenge before each
+// verification or using the challenge pre-issued with the previous result. Reported latency only
+// covers the requests, not generating the attestation, and the server counts the requests and
+// connections each check took.
+public class RemoteVerifyBenchmark {
+    private static final int DEVICES_PER_THREAD = 4;
+    private static final int[] THREADS = {1, 4, 16};
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private RemoteVerifyBenchmark() {}
+
+    private static class Device {
+        final long userId;
+        final SyntheticAuditee auditee;
+        byte[] nextChallengeMessage;
+
+        Device(final long userId, final SyntheticAuditee auditee) {
+            this.userId = userId;
+            this.auditee = auditee;
+        }
+    }
+
+    private static class Totals {
+        final LongAdder checks = new LongAdder();
+        final LongAdder requestNanos = new LongAdder();
+    }
+
+    private static void run(final RemoteVerifyClient client, final List<List<Device>> devices,
+            final byte[] dictionary, final boolean pipelined, final long duration,
+            final Totals totals) throws InterruptedException {
+        final AtomicLong failed = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + duration;
+        final Thread[] threads = new Thread[devices.size()];
+        for (int i = 0; i < threads.length; i++) {
+            final List<Device> owned = devices.get(i);
+            threads[i] = new Thread(() -> {
+                for (int n = 0; System.currentTimeMillis() < deadline; n++) {
+                    final Device device = owned.get(n % owned.size());
+                    try {
+                        long start = System.nanoTime();
+                        byte[] challengeMessage = pipelined ? device.nextChallengeMessage : null;
+                        if (challengeMessage == null) {
+                            challengeMessage = client.fetchChallenge();
+                        }
+                        long requestNanos = System.nanoTime() - start;
+                        final byte[] serialized = device.auditee.generateSerialized(
+                                challengeMessage, dictionary,
+                                OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+                        start = System.nanoTime();
+                        device.nextChallengeMessage = client.verify(device.userId, null,
+                                serialized, pipelined).nextChallengeMessage;
+                        requestNanos += System.nanoTime() - start;
+                        totals.requestNanos.add(requestNanos);
+                        totals.checks.increment();
+                    } catch (final Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " checks failed");
+        }
+    }
+
+    // usage: RemoteVerifyBenchmark <deflate_dictionary.bin>
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: RemoteVerifyBenchmark <deflate dictionary>");
+            System.exit(1);
+        }
+        final byte[] dictionary;
+        try (final InputStream input = new FileInputStream(args[0])) {
+            dictionary = ByteStreams.toByteArray(input);
+        }
+
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, dictionary,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        final AttestationServer server = new AttestationServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), verifier, 3600,
+                Runtime.getRuntime().availableProcessors(), null, null);
+        server.start();
+        try {
+            final RemoteVerifyClient client = new RemoteVerifyClient(
+                    "http://127.0.0.1:" + server.getPort(), 60000, 60000);
+            final List<Map.Entry<String, DeviceInfo>> stock =
+                    new ArrayList<>(DeviceDatabase.fingerprintsStock.entrySet());
+            long userId = 0;
+
+            for (final int threadCount : THREADS) {
+                final List<List<Device>> devices = new ArrayList<>();
+                for (int i = 0; i < threadCount; i++) {
+                    final List<Device> owned = new ArrayList<>();
+                    for (int j = 0; j < DEVICES_PER_THREAD; j++) {
+                        final Map.Entry<String, DeviceInfo> entry =
+                                stock.get((int) (userId % stock.size()));
+                        final Device device = new Device(++userId, new SyntheticAuditee(
+                                authority, entry.getKey(), true, entry.getValue(), 80100, 201805,
+                                22));
+                        client.verify(device.userId, "key", device.auditee.generateSerialized(
+                                client.fetchChallenge(), dictionary,
+                                OS_ENFORCED_FLAGS_USER_PROFILE_SECURE), false);
+                        owned.add(device);
+                    }
+                    devices.add(owned);
+                }
+                run(client, devices, dictionary, true, WARMUP_MS, new Totals());
+
+                for (final boolean pipelined : new boolean[]{false, true}) {
+                    final long requests = server.getRequestsHandled();
+                    final long connections = server.getConnectionsAccepted();
+                    final Totals totals = new Totals();
+                    run(client, devices, dictionary, pipelined, DURATION_MS, totals);
+                    final long checks = totals.checks.sum();
+                    System.out.printf("%-9s %2d threads: %7.1f checks/s, %6.0f us in requests, " +
+                                    "%.2f requests and %.3f connections per check%n",
+                            pipelined ? "pipelined" : "two-step", threadCount,
+                            checks * 1000.0 / DURATION_MS,
+                            totals.requestNanos.sum() / 1000.0 / checks,
+                            (double) (server.getRequestsHandled() - requests) / checks,
+                            (double) (server.getConnectionsAccepted() - connections) / checks);
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
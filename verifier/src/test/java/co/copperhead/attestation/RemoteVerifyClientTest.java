@@ -0,0 +1,129 @@
+package co.copperhead.attestation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_MESSAGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// Remote verification against a local AttestationServer standing in for the real service.
+public class RemoteVerifyClientTest {
+    private static final byte[] DICTIONARY = "attestation".getBytes(StandardCharsets.US_ASCII);
+    private static final int CHECKS = 5;
+
+    private SyntheticAuditee.Authority authority;
+    private AttestationServer server;
+    private RemoteVerifyClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, DICTIONARY,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        server = new AttestationServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), verifier, 3600, 2,
+                null, null);
+        server.start();
+        client = new RemoteVerifyClient("http://127.0.0.1:" + server.getPort(), 10000, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private SyntheticAuditee createDevice() {
+        final Map.Entry<String, DeviceInfo> entry =
+                DeviceDatabase.fingerprintsStock.entrySet().iterator().next();
+        return new SyntheticAuditee(authority, entry.getKey(), true, entry.getValue(), 80100,
+                201805, 22);
+    }
+
+    private static byte[] attest(final SyntheticAuditee device, final byte[] challengeMessage)
+            throws Exception {
+        return device.generateSerialized(challengeMessage, DICTIONARY,
+                OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+    }
+
+    private void assertRejected(final long userId, final byte[] serialized) throws Exception {
+        try {
+            client.verify(userId, null, serialized, false);
+            fail("verification should have been rejected");
+        } catch (final RemoteVerifyClient.ResponseException e) {
+            assertEquals(400, e.responseCode);
+        }
+    }
+
+    // After the first check, each check is a single request and all of them share a connection.
+    @Test
+    public void pipelinedChecksTakeOneRequestOnOneConnection() throws Exception {
+        final SyntheticAuditee device = createDevice();
+        RemoteVerifyClient.Result result =
+                client.verify(1, "key", attest(device, client.fetchChallenge()), true);
+        for (int i = 0; i < CHECKS; i++) {
+            assertNotNull(result.nextChallengeMessage);
+            assertEquals(CHALLENGE_MESSAGE_LENGTH, result.nextChallengeMessage.length);
+            result = client.verify(1, null, attest(device, result.nextChallengeMessage), true);
+            assertEquals("key", result.subscribeKey);
+        }
+        assertEquals(2 + CHECKS, server.getRequestsHandled());
+        assertEquals(1, server.getConnectionsAccepted());
+    }
+
+    @Test
+    public void nextChallengeIsOnlyIssuedOnRequest() throws Exception {
+        final RemoteVerifyClient.Result result =
+                client.verify(1, "key", attest(createDevice(), client.fetchChallenge()), false);
+        assertNull(result.nextChallengeMessage);
+    }
+
+    @Test
+    public void nextChallengeIsSingleUse() throws Exception {
+        final SyntheticAuditee device = createDevice();
+        final byte[] next =
+                client.verify(1, "key", attest(device, client.fetchChallenge()), true)
+                        .nextChallengeMessage;
+        client.verify(1, null, attest(device, next), false);
+        assertRejected(1, attest(device, next));
+    }
+
+    @Test
+    public void nextChallengeIsOnlyValidForItsAccount() throws Exception {
+        final SyntheticAuditee first = createDevice();
+        final SyntheticAuditee second = createDevice();
+        final byte[] next =
+                client.verify(1, "first", attest(first, client.fetchChallenge()), true)
+                        .nextChallengeMessage;
+        client.verify(2, "second", attest(second, client.fetchChallenge()), false);
+
+        assertRejected(2, attest(second, next));
+        client.verify(1, null, attest(first, next), false);
+    }
+
+    // Requesting another challenge replaces the unused one rather than accumulating them.
+    @Test
+    public void nextChallengeReplacesUnusedOne() throws Exception {
+        final SyntheticAuditee device = createDevice();
+        final byte[] unused =
+                client.verify(1, "key", attest(device, client.fetchChallenge()), true)
+                        .nextChallengeMessage;
+        final byte[] next =
+                client.verify(1, null, attest(device, client.fetchChallenge()), true)
+                        .nextChallengeMessage;
+        assertRejected(1, attest(device, unused));
+        client.verify(1, null, attest(device, next), false);
+    }
+}
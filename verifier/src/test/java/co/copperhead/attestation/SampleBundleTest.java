@@ -0,0 +1,210 @@
+package co.copperhead.attestation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SampleBundleTest {
+    private static final byte[][] CERTIFICATES = {
+            {0x30, 0x01, 0x02}, {0x30, 0x03, 0x04, 0x05}, {}
+    };
+    private static final String UNAME = "Linux localhost 4.4.88 #1 SMP PREEMPT aarch64";
+
+    // getprop output larger than the writer's buffer, so it spans several records
+    private static byte[] createProperties() {
+        final StringBuilder builder = new StringBuilder();
+        final Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            builder.append("[ro.property.").append(i).append("]: [")
+                    .append(Long.toHexString(random.nextLong())).append("]\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Properties createSystemProperties() {
+        final Properties properties = new Properties();
+        properties.setProperty("java.vm.name", "Dalvik");
+        properties.setProperty("os.arch", "aarch64");
+        properties.setProperty("empty", "");
+        properties.setProperty("unicode.\u00e9", "\u2603");
+        return properties;
+    }
+
+    private static byte[] write(final byte[] properties, final boolean finish) throws IOException {
+        final ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        try (final SampleBundle.Writer writer = new SampleBundle.Writer(bundle)) {
+            for (final byte[] certificate : CERTIFICATES) {
+                writer.writeCertificate(certificate);
+            }
+            writer.writeProperties(new ByteArrayInputStream(properties));
+            writer.writeUname(UNAME);
+            writer.writeSystemProperties(createSystemProperties());
+            if (finish) {
+                writer.finish();
+            }
+        }
+        return bundle.toByteArray();
+    }
+
+    private static SampleBundle parse(final byte[] data) throws IOException {
+        return SampleBundle.parse(new ByteArrayInputStream(data));
+    }
+
+    private static void assertInvalid(final byte[] data) {
+        try {
+            parse(data);
+            fail("invalid bundle was accepted");
+        } catch (final IOException expected) {
+        }
+    }
+
+    // Compresses a bundle body written by hand.
+    private static byte[] compress(final byte[] body) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static DataOutputStream writeHeader(final ByteArrayOutputStream body)
+            throws IOException {
+        final DataOutputStream output = new DataOutputStream(body);
+        output.write(new byte[]{'A', 'S', 'M', 'P'});
+        output.writeByte(1);
+        return output;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[] properties = createProperties();
+        final byte[] data = write(properties, true);
+        assertTrue(SampleBundle.isBundle(data));
+
+        final SampleBundle bundle = parse(data);
+        assertEquals(CERTIFICATES.length, bundle.certificates.size());
+        for (int i = 0; i < CERTIFICATES.length; i++) {
+            assertArrayEquals(CERTIFICATES[i], bundle.certificates.get(i));
+        }
+        assertArrayEquals(properties, bundle.properties);
+        assertEquals(UNAME, bundle.uname);
+        final Properties systemProperties = createSystemProperties();
+        assertEquals(systemProperties.size(), bundle.systemProperties.size());
+        for (final String name : systemProperties.stringPropertyNames()) {
+            assertEquals(systemProperties.getProperty(name), bundle.systemProperties.get(name));
+        }
+    }
+
+    @Test
+    public void emptyBundle() throws Exception {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (final SampleBundle.Writer writer = new SampleBundle.Writer(data)) {
+            writer.finish();
+        }
+        final SampleBundle bundle = parse(data.toByteArray());
+        assertTrue(bundle.certificates.isEmpty());
+        assertEquals(0, bundle.properties.length);
+        assertNull(bundle.uname);
+        assertTrue(bundle.systemProperties.isEmpty());
+    }
+
+    @Test
+    public void legacySubmissionIsNotABundle() {
+        assertFalse(SampleBundle.isBundle("MIIB\n".getBytes(StandardCharsets.US_ASCII)));
+        assertFalse(SampleBundle.isBundle(new byte[]{0x1f}));
+    }
+
+    // An upload cut short anywhere, including between records, is never taken as complete.
+    @Test
+    public void truncatedBundleIsRejected() throws Exception {
+        final byte[] data = write(createProperties(), true);
+        for (int length = 0; length < data.length; length++) {
+            assertInvalid(Arrays.copyOf(data, length));
+        }
+    }
+
+    @Test
+    public void unfinishedBundleIsRejected() throws Exception {
+        assertInvalid(write(createProperties(), false));
+    }
+
+    @Test
+    public void trailingDataIsRejected() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream output = writeHeader(body);
+        output.writeByte(0);
+        output.writeInt(0);
+        output.writeByte(0);
+        assertInvalid(compress(body.toByteArray()));
+    }
+
+    @Test
+    public void unknownRecordsAreSkipped() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream output = writeHeader(body);
+        output.writeByte(100);
+        output.writeInt(3);
+        output.write(new byte[]{1, 2, 3});
+        output.writeByte(3);
+        output.writeInt(1);
+        output.writeByte('x');
+        output.writeByte(0);
+        output.writeInt(0);
+        assertEquals("x", parse(compress(body.toByteArray())).uname);
+    }
+
+    @Test
+    public void invalidHeaderOrLengthIsRejected() throws Exception {
+        assertInvalid(compress(new byte[]{'A', 'S', 'M', 'P', 2, 0, 0, 0, 0, 0}));
+        assertInvalid(compress(new byte[]{'A', 'S', 'M', 'Q', 1, 0, 0, 0, 0, 0}));
+
+        for (final int length : new int[]{-1, 1024 * 1024 + 1}) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream output = writeHeader(body);
+            output.writeByte(1);
+            output.writeInt(length);
+            assertInvalid(compress(body.toByteArray()));
+        }
+
+        final ByteArrayOutputStream property = new ByteArrayOutputStream();
+        final DataOutputStream output = writeHeader(property);
+        output.writeByte(4);
+        output.writeInt(5);
+        output.writeInt(2);
+        output.writeByte('a');
+        assertInvalid(compress(property.toByteArray()));
+    }
+
+    // A small upload decompressing to more than the limit is rejected without reading it all.
+    @Test
+    public void decompressedSizeIsBounded() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream output = writeHeader(body);
+        final byte[] payload = new byte[1024 * 1024];
+        for (int i = 0; i < 5; i++) {
+            output.writeByte(2);
+            output.writeInt(payload.length);
+            output.write(payload);
+        }
+        output.writeByte(0);
+        output.writeInt(0);
+        final byte[] data = compress(body.toByteArray());
+        assertTrue(data.length < 64 * 1024);
+        assertInvalid(data);
+    }
+}
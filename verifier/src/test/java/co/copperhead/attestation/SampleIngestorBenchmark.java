@@ -0,0 +1,149 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+// Throughput of SampleIngestor over a directory of synthetic samples at 1 thread and one thread
+// per core.
+//
+// The samples are written up front from SyntheticAuditee chains for DEVICES devices, alternating
+// between bundles and legacy submissions, with every DUPLICATE_INTERVAL-th sample repeating an
+// earlier chain. Each run uses a new ingestor, so nothing is known about the chains beforehand.
+public class SampleIngestorBenchmark {
+    private static final int DEVICES = 16;
+    private static final int DUPLICATE_INTERVAL = 10;
+    private static final int DEFAULT_SAMPLES = 20000;
+    private static final int GETPROP_LINES = 800;
+
+    private SampleIngestorBenchmark() {}
+
+    // getprop output of a typical size with the properties used by SampleIngestor.
+    static String createProperties(final String model, final boolean fileBasedEncryption) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("[ro.crypto.type]: [").append(fileBasedEncryption ? "file" : "block")
+                .append("]\n");
+        for (int i = 0; i < GETPROP_LINES; i++) {
+            builder.append("[ro.vendor.property.").append(i).append("]: [").append(i)
+                    .append("]\n");
+        }
+        builder.append("[ro.product.model]: [").append(model).append("]\n");
+        return builder.toString();
+    }
+
+    static byte[] writeBundle(final Certificate[] chain, final String properties)
+            throws GeneralSecurityException, IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final SampleBundle.Writer writer = new SampleBundle.Writer(output)) {
+            for (final Certificate certificate : chain) {
+                writer.writeCertificate(certificate.getEncoded());
+            }
+            writer.writeProperties(new ByteArrayInputStream(
+                    properties.getBytes(StandardCharsets.UTF_8)));
+            writer.writeUname("Linux localhost 3.18.70 #1 SMP PREEMPT aarch64");
+            writer.writeSystemProperties(new Properties());
+            writer.finish();
+        }
+        return output.toByteArray();
+    }
+
+    // Same as the legacy writer in SubmitSampleJob, without the uname and system properties
+    // following the getprop output.
+    static byte[] writeLegacy(final Certificate[] chain, final String properties)
+            throws GeneralSecurityException {
+        final StringBuilder builder = new StringBuilder();
+        for (final Certificate certificate : chain) {
+            builder.append(BaseEncoding.base64().encode(certificate.getEncoded())).append('\n');
+        }
+        builder.append(properties);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes the samples to the directory and returns the number of distinct chains.
+    private static int writeSamples(final SyntheticAuditee.Authority authority,
+            final File directory, final int count) throws GeneralSecurityException, IOException {
+        final List<Map.Entry<String, DeviceInfo>> stock =
+                new ArrayList<>(DeviceDatabase.fingerprintsStock.entrySet());
+        final List<SyntheticAuditee> devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            final Map.Entry<String, DeviceInfo> entry = stock.get(i % stock.size());
+            devices.add(new SyntheticAuditee(authority, entry.getKey(), true, entry.getValue(),
+                    80100, 201805, 22));
+        }
+
+        final Random random = new Random(1);
+        final List<Certificate[]> chains = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Certificate[] chain;
+            if (i % DUPLICATE_INTERVAL == DUPLICATE_INTERVAL - 1) {
+                chain = chains.get(random.nextInt(chains.size()));
+            } else {
+                final byte[] challenge = new byte[AttestationConstants.CHALLENGE_LENGTH];
+                random.nextBytes(challenge);
+                chain = devices.get(i % DEVICES).generateChain(challenge);
+                chains.add(chain);
+            }
+            final String properties = createProperties("Pixel " + i % DEVICES, true);
+            Files.write(i % 2 == 0 ? writeBundle(chain, properties) :
+                    writeLegacy(chain, properties), new File(directory, "sample_" + i));
+        }
+        return chains.size();
+    }
+
+    // usage: SampleIngestorBenchmark [samples]
+    public static void main(final String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES;
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final File directory = Files.createTempDir();
+        try {
+            long start = System.nanoTime();
+            final int distinct = writeSamples(authority, directory, count);
+            System.out.println("cores: " + Runtime.getRuntime().availableProcessors() +
+                    ", samples: " + count + ", distinct chains: " + distinct +
+                    ", generated in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            final File[] files = directory.listFiles();
+            // warm-up
+            new SampleIngestor(authority.root).ingest(files, 1);
+            final int cores = Runtime.getRuntime().availableProcessors();
+            for (final int threads : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+                start = System.nanoTime();
+                final SampleIngestor.Results results =
+                        new SampleIngestor(authority.root).ingest(files, threads);
+                final long elapsed = System.nanoTime() - start;
+                int accepted = 0;
+                for (final SampleIngestor.Cluster cluster : results.clusters.values()) {
+                    accepted += cluster.samples;
+                }
+                if (accepted != distinct || !results.rejected.isEmpty()) {
+                    throw new IllegalStateException("accepted " + accepted + " of " + distinct +
+                            " samples, rejected: " + results.rejected);
+                }
+                System.out.printf("%2d threads: %6d ms, %8.0f samples/s%n", threads,
+                        elapsed / 1000000, files.length * 1e9 / elapsed);
+            }
+        } finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+import co.copperhead.attestation.attestation.RootOfTrust;
+
+import static co.copperhead.attestation.SampleIngestorBenchmark.createProperties;
+import static co.copperhead.attestation.SampleIngestorBenchmark.writeBundle;
+import static co.copperhead.attestation.SampleIngestorBenchmark.writeLegacy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Ingestion of samples built from synthetic attestations, written the way SubmitSampleJob does.
+public class SampleIngestorTest {
+    private static final String KEY_A =
+            "0000000000000000000000000000000000000000000000000000000000000001";
+    private static final String KEY_B =
+            "0000000000000000000000000000000000000000000000000000000000000002";
+    private static final DeviceInfo CURRENT = new DeviceInfo("device_a", 2, 3, true, true);
+    private static final DeviceInfo OLDER = new DeviceInfo("device_a", 1, 2, false, true);
+
+    private SyntheticAuditee.Authority authority;
+    private File directory;
+    private int nextSample;
+    private byte nextChallenge;
+
+    @Before
+    public void setUp() throws Exception {
+        authority = SyntheticAuditee.Authority.generate();
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    private SyntheticAuditee createDevice(final SyntheticAuditee.Authority authority,
+            final String verifiedBootKey, final int verifiedBootState, final boolean locked,
+            final DeviceInfo device) {
+        return new SyntheticAuditee(authority, verifiedBootKey, verifiedBootState, locked, device,
+                80100, 201805, 22);
+    }
+
+    private SyntheticAuditee createDevice(final String verifiedBootKey, final DeviceInfo device) {
+        return createDevice(authority, verifiedBootKey, RootOfTrust.KM_VERIFIED_BOOT_VERIFIED,
+                true, device);
+    }
+
+    private Certificate[] generateChain(final SyntheticAuditee device) throws Exception {
+        final byte[] challenge = new byte[AttestationConstants.CHALLENGE_LENGTH];
+        challenge[0] = nextChallenge++;
+        return device.generateChain(challenge);
+    }
+
+    private void write(final byte[] sample) throws IOException {
+        Files.write(sample, new File(directory, "sample_" + nextSample++));
+    }
+
+    private void writeSample(final Certificate[] chain, final String model,
+            final boolean fileBasedEncryption) throws Exception {
+        write(writeBundle(chain, createProperties(model, fileBasedEncryption)));
+    }
+
+    private SampleIngestor.Results ingest() throws Exception {
+        return new SampleIngestor(authority.root).ingest(directory.listFiles(), 2);
+    }
+
+    private static int countAccepted(final SampleIngestor.Results results) {
+        int accepted = 0;
+        for (final SampleIngestor.Cluster cluster : results.clusters.values()) {
+            accepted += cluster.samples;
+        }
+        return accepted;
+    }
+
+    private static List<String> printCandidates(final SampleIngestor.Results results,
+            final boolean stock, final Map<String, DeviceInfo> listed) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final PrintStream out = new PrintStream(output, true)) {
+            SampleIngestor.printCandidates(out, new ArrayList<>(results.clusters.values()), stock,
+                    listed);
+        }
+        return Arrays.asList(new String(output.toByteArray(), StandardCharsets.UTF_8)
+                .split("\n"));
+    }
+
+    // The same chain submitted in both formats is only counted once.
+    @Test
+    public void duplicateChainsAreCountedOnce() throws Exception {
+        final SyntheticAuditee device = createDevice(KEY_A, CURRENT);
+        final Certificate[] chain = generateChain(device);
+        final String properties = createProperties("Pixel", true);
+        write(writeBundle(chain, properties));
+        write(writeBundle(chain, properties));
+        write(writeLegacy(chain, properties));
+        writeSample(generateChain(device), "Pixel", true);
+
+        final SampleIngestor.Results results = ingest();
+        assertEquals(2, results.duplicates);
+        assertEquals(2, results.bundles + results.legacy - results.duplicates);
+        assertEquals(2, countAccepted(results));
+        assertTrue(results.rejected.isEmpty());
+    }
+
+    @Test
+    public void invalidSamplesAreRejected() throws Exception {
+        final SyntheticAuditee.Authority foreign = SyntheticAuditee.Authority.generate();
+        writeSample(generateChain(createDevice(foreign, KEY_A,
+                RootOfTrust.KM_VERIFIED_BOOT_VERIFIED, true, CURRENT)), "Pixel", true);
+
+        final byte[] bundle = writeBundle(generateChain(createDevice(KEY_A, CURRENT)),
+                createProperties("Pixel", true));
+        write(Arrays.copyOf(bundle, bundle.length / 2));
+        write(Arrays.copyOf(bundle, bundle.length - 1));
+
+        writeSample(generateChain(createDevice(authority, KEY_A,
+                RootOfTrust.KM_VERIFIED_BOOT_VERIFIED, false, CURRENT)), "Pixel", true);
+        writeSample(generateChain(createDevice(authority, KEY_A,
+                RootOfTrust.KM_VERIFIED_BOOT_UNVERIFIED, true, CURRENT)), "Pixel", true);
+
+        final SampleIngestor.Results results = ingest();
+        assertEquals(0, countAccepted(results));
+        final Map<String, Integer> expected = new HashMap<>();
+        expected.put("invalid chain", 1);
+        expected.put("malformed sample", 2);
+        expected.put("device is not locked", 1);
+        expected.put("verified boot state is not verified or self signed", 1);
+        assertEquals(expected, results.rejected);
+    }
+
+    // Clusters of the same verified boot key are combined into one entry with the minimum
+    // versions, rollback resistance and per-user encryption only if every sample has them, and
+    // the most common model.
+    @Test
+    public void clustersAreCombinedIntoCandidates() throws Exception {
+        final SyntheticAuditee current = createDevice(KEY_A, CURRENT);
+        final SyntheticAuditee older = createDevice(KEY_A, OLDER);
+        writeSample(generateChain(current), "Pixel 2", true);
+        writeSample(generateChain(current), "Pixel 2", true);
+        writeSample(generateChain(current), "Pixel 2 XL", true);
+        writeSample(generateChain(older), "Pixel 2", false);
+        final SyntheticAuditee other = createDevice(KEY_B, CURRENT);
+        writeSample(generateChain(other), "Other", true);
+        final SyntheticAuditee copperhead = createDevice(authority, KEY_B,
+                RootOfTrust.KM_VERIFIED_BOOT_SELF_SIGNED, true, CURRENT);
+        writeSample(generateChain(copperhead), "Other", true);
+
+        final SampleIngestor.Results results = ingest();
+        assertTrue(results.rejected.isEmpty());
+        assertEquals(4, results.clusters.size());
+        assertEquals(6, countAccepted(results));
+
+        assertEquals(Arrays.asList(
+                "// fingerprintsStock",
+                "            // Pixel 2: 4 samples, new",
+                "            //   attestation 2, keymaster 3, rollback resistant: 3 samples",
+                "            //   attestation 1, keymaster 2: 1 samples",
+                "            .put(\"" + KEY_A + "\",",
+                "                    new DeviceInfo(\"device_pixel_2\", 1, 2, false, false))",
+                "            // Other: 1 samples, new",
+                "            .put(\"" + KEY_B + "\",",
+                "                    new DeviceInfo(\"device_other\", 2, 3, true, true))"),
+                printCandidates(results, true, Collections.emptyMap()));
+
+        assertEquals(Arrays.asList(
+                "// fingerprintsCopperheadOS",
+                "            // Other: 1 samples, listed",
+                "            .put(\"" + KEY_B + "\",",
+                "                    new DeviceInfo(\"device_other\", 2, 3, true, true))"),
+                printCandidates(results, false, Collections.singletonMap(KEY_B, CURRENT)));
+
+        final Map<String, DeviceInfo> listed = new HashMap<>();
+        listed.put(KEY_A, CURRENT);
+        listed.put(KEY_B, CURRENT);
+        final List<String> lines = printCandidates(results, true, listed);
+        assertEquals("            // Pixel 2: 4 samples, listed with different values",
+                lines.get(1));
+        assertEquals("            // Other: 1 samples, listed", lines.get(6));
+    }
+}
@@ -0,0 +1,207 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Submissions of samples to AttestationServer as a local stand-in for the sample collection
+// service, in both formats written by SubmitSampleJob, at 1, 4 and 16 threads.
+//
+// Each submission is sent the way the job sends it: a chunked bundle to SampleBundle.SUBMIT_PATH,
+// or plain text with a Content-Length to /submit. The body is encoded once up front so only the
+// receiver is measured, and the cost of encoding a sample on the sending side is reported
+// separately. Samples are synthetic, with getprop output and system properties of a typical
+// size, and aren't stored.
+public class SampleSubmitBenchmark {
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int CERTIFICATES = 3;
+    private static final int CERTIFICATE_LENGTH = 700;
+    private static final int GETPROP_LINES = 800;
+    private static final int SYSTEM_PROPERTIES = 60;
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private SampleSubmitBenchmark() {}
+
+    private static class Sample {
+        final byte[][] certificates = new byte[CERTIFICATES][CERTIFICATE_LENGTH];
+        final byte[] properties;
+        final String uname = "Linux localhost 3.18.70 #1 SMP PREEMPT aarch64";
+        final Properties systemProperties = new Properties();
+
+        Sample() {
+            final Random random = new Random(1);
+            for (final byte[] certificate : certificates) {
+                random.nextBytes(certificate);
+            }
+            final StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < GETPROP_LINES; i++) {
+                builder.append("[ro.vendor.property.").append(i).append("]: [")
+                        .append(random.nextInt(1000)).append("]\n");
+            }
+            properties = builder.toString().getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < SYSTEM_PROPERTIES; i++) {
+                systemProperties.setProperty("java.property." + i,
+                        Long.toHexString(random.nextLong()));
+            }
+        }
+    }
+
+    private static byte[] writeBundle(final Sample sample) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final SampleBundle.Writer writer = new SampleBundle.Writer(output)) {
+            for (final byte[] certificate : sample.certificates) {
+                writer.writeCertificate(certificate);
+            }
+            writer.writeProperties(new ByteArrayInputStream(sample.properties));
+            writer.writeUname(sample.uname);
+            writer.writeSystemProperties(sample.systemProperties);
+            writer.finish();
+        }
+        return output.toByteArray();
+    }
+
+    // Same as the legacy writer in SubmitSampleJob.
+    private static byte[] writeLegacy(final Sample sample) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final InputStream propertyStream = new ByteArrayInputStream(sample.properties);
+                final OutputStream stream = output) {
+            for (final byte[] certificate : sample.certificates) {
+                stream.write(BaseEncoding.base64().encode(certificate).getBytes());
+                stream.write("\n".getBytes());
+            }
+            ByteStreams.copy(propertyStream, stream);
+            stream.write(sample.uname.getBytes());
+            stream.write("\n".getBytes());
+            final Enumeration<?> names = sample.systemProperties.propertyNames();
+            while (names.hasMoreElements()) {
+                final String name = (String) names.nextElement();
+                stream.write(name.getBytes());
+                stream.write("=".getBytes());
+                stream.write(sample.systemProperties.getProperty(name).getBytes());
+                stream.write("\n".getBytes());
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static void submit(final String baseUrl, final byte[] body, final boolean bundle)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl +
+                (bundle ? SampleBundle.SUBMIT_PATH : "/submit")).openConnection();
+        try {
+            connection.setDoOutput(true);
+            if (bundle) {
+                connection.setRequestProperty("Content-Type", SampleBundle.CONTENT_TYPE);
+                connection.setChunkedStreamingMode(0);
+            }
+            try (final OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                throw new IOException("response code: " + responseCode);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long run(final String baseUrl, final byte[] body, final boolean bundle,
+            final int threadCount, final long duration) throws InterruptedException {
+        final LongAdder submitted = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final long deadline = System.currentTimeMillis() + duration;
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    try {
+                        submit(baseUrl, body, bundle);
+                        submitted.increment();
+                    } catch (final IOException e) {
+                        failed.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failed.sum() > 0) {
+            throw new IllegalStateException(failed.sum() + " submissions failed");
+        }
+        return submitted.sum();
+    }
+
+    // Microseconds taken to encode a sample.
+    private static double measureEncoding(final Sample sample, final boolean bundle)
+            throws IOException {
+        final int iterations = 2000;
+        for (int i = 0; i < iterations; i++) {
+            if (bundle) {
+                writeBundle(sample);
+            } else {
+                writeLegacy(sample);
+            }
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (bundle) {
+                writeBundle(sample);
+            } else {
+                writeLegacy(sample);
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Sample sample = new Sample();
+        final byte[] legacy = writeLegacy(sample);
+        final byte[] bundle = writeBundle(sample);
+        System.out.printf("legacy: %6d bytes, %7.1f us to encode%n", legacy.length,
+                measureEncoding(sample, false));
+        System.out.printf("bundle: %6d bytes, %7.1f us to encode%n", bundle.length,
+                measureEncoding(sample, true));
+
+        final AttestationServer server = new AttestationServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null, 3600,
+                Runtime.getRuntime().availableProcessors(), null, null);
+        server.start();
+        try {
+            final String baseUrl = "http://127.0.0.1:" + server.getPort();
+            run(baseUrl, bundle, true, 4, WARMUP_MS);
+            run(baseUrl, legacy, false, 4, WARMUP_MS);
+
+            for (final boolean isBundle : new boolean[]{false, true}) {
+                for (final int threads : THREADS) {
+                    final long submitted = run(baseUrl, isBundle ? bundle : legacy, isBundle,
+                            threads, DURATION_MS);
+                    System.out.printf("%s %2d threads: %8.1f submissions/s%n",
+                            isBundle ? "bundle" : "legacy", threads,
+                            submitted * 1000.0 / DURATION_MS);
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package co.copperhead.attestation;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static co.copperhead.attestation.AttestationConstants.CLOCK_SKEW_MS;
+import static co.copperhead.attestation.AttestationConstants.EXPIRE_OFFSET_MS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatelessChallengeTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final long START_MS = 1_500_000_000_000L;
+    private static final long REPLAY_WINDOW_MS = EXPIRE_OFFSET_MS + CLOCK_SKEW_MS;
+
+    @Test
+    public void acceptedOnce() throws Exception {
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, () -> START_MS);
+        final byte[] challenge = stateless.generate();
+        assertTrue(stateless.validate(challenge));
+        assertFalse(stateless.validate(challenge));
+    }
+
+    @Test
+    public void acceptedByOtherNodesWithTheKey() throws Exception {
+        final byte[] challenge = new StatelessChallenge(KEY, () -> START_MS).generate();
+        assertTrue(new StatelessChallenge(KEY, () -> START_MS).validate(challenge));
+        final byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        assertFalse(new StatelessChallenge(otherKey, () -> START_MS).validate(challenge));
+    }
+
+    @Test
+    public void tamperedChallengeIsRejected() throws Exception {
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, () -> START_MS);
+        final byte[] challenge = stateless.generate();
+        for (int i = 0; i < challenge.length; i++) {
+            final byte[] tampered = challenge.clone();
+            tampered[i] ^= 1;
+            assertFalse(stateless.validate(tampered));
+        }
+        assertTrue(stateless.validate(challenge));
+    }
+
+    @Test
+    public void challengeIndexIsDerivedFromTheKey() throws Exception {
+        final byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        assertArrayEquals(new StatelessChallenge(KEY).getChallengeIndex(),
+                new StatelessChallenge(KEY).getChallengeIndex());
+        assertFalse(new String(new StatelessChallenge(KEY).getChallengeIndex(),
+                StandardCharsets.ISO_8859_1).equals(new String(
+                new StatelessChallenge(otherKey).getChallengeIndex(),
+                StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void validityWindow() throws Exception {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, clock::get);
+        final byte[] expiring = stateless.generate();
+        final byte[] expired = stateless.generate();
+
+        clock.set(START_MS + EXPIRE_OFFSET_MS);
+        assertTrue(stateless.validate(expiring));
+        clock.set(START_MS + EXPIRE_OFFSET_MS + 1);
+        assertFalse(stateless.validate(expired));
+
+        // issued by nodes with clocks ahead
+        final AtomicLong aheadClock = new AtomicLong(clock.get() + CLOCK_SKEW_MS);
+        final StatelessChallenge ahead = new StatelessChallenge(KEY, aheadClock::get);
+        assertTrue(stateless.validate(ahead.generate()));
+        aheadClock.incrementAndGet();
+        assertFalse(stateless.validate(ahead.generate()));
+    }
+
+    // A challenge accepted shortly before the replay window rotates is still valid afterwards
+    // when it was issued by a node with its clock ahead, so it has to stay remembered.
+    @Test
+    public void reuseIsRejectedAcrossRotation() throws Exception {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, clock::get);
+        final AtomicLong aheadClock = new AtomicLong();
+        final StatelessChallenge ahead = new StatelessChallenge(KEY, aheadClock::get);
+
+        clock.set(START_MS + 1000);
+        aheadClock.set(clock.get() + CLOCK_SKEW_MS);
+        final byte[] challenge = ahead.generate();
+        assertTrue(stateless.validate(challenge));
+
+        // rotated by the next validation
+        clock.set(START_MS + REPLAY_WINDOW_MS + 1);
+        assertTrue(stateless.validate(stateless.generate()));
+        clock.set(START_MS + REPLAY_WINDOW_MS + 500);
+        assertFalse(stateless.validate(challenge));
+    }
+
+    @Test
+    public void rotationAfterIdlePeriod() throws Exception {
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, clock::get);
+        assertTrue(stateless.validate(stateless.generate()));
+        for (final long idle : new long[]{REPLAY_WINDOW_MS, REPLAY_WINDOW_MS * 2, 1000,
+                REPLAY_WINDOW_MS * 10}) {
+            clock.addAndGet(idle);
+            final byte[] challenge = stateless.generate();
+            assertTrue(stateless.validate(challenge));
+            assertFalse(stateless.validate(challenge));
+        }
+    }
+
+    // Threads replaying the same challenges while the clock moves through several replay windows
+    // never get one accepted twice.
+    @Test
+    public void concurrentReplaysAreRejected() throws Exception {
+        final int threads = 8;
+        final int count = 20000;
+        final long step = REPLAY_WINDOW_MS * 3 / count;
+        final AtomicLong clock = new AtomicLong(START_MS);
+        final StatelessChallenge stateless = new StatelessChallenge(KEY, clock::get);
+        final List<byte[]> challenges = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            clock.set(START_MS + i * step);
+            challenges.add(stateless.generate());
+        }
+        clock.set(START_MS);
+
+        final AtomicIntegerArray accepted = new AtomicIntegerArray(count);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    // the clock follows the thread furthest ahead
+                    final long issued = START_MS + i * step;
+                    clock.accumulateAndGet(issued, Math::max);
+                    if (stateless.validate(challenges.get(i))) {
+                        accepted.incrementAndGet(i);
+                    }
+                }
+            }));
+        }
+        for (final Thread worker : workers) {
+            worker.start();
+        }
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            assertTrue(accepted.get(i) <= 1);
+            total += accepted.get(i);
+        }
+        assertTrue(total > 0);
+    }
+}
@@ -0,0 +1,130 @@
+package co.copperhead.attestation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static co.copperhead.attestation.VerificationMetrics.BUCKETS;
+import static co.copperhead.attestation.VerificationMetrics.MAX_EXPONENT;
+import static co.copperhead.attestation.VerificationMetrics.SUB_BUCKETS;
+import static co.copperhead.attestation.VerificationMetrics.getBucket;
+import static co.copperhead.attestation.VerificationMetrics.getBucketLowerBound;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationMetricsTest {
+    private static VerificationMetrics.Snapshot snapshot(final long... values) {
+        final VerificationMetrics.Histogram histogram = new VerificationMetrics.Histogram();
+        for (final long value : values) {
+            histogram.record(value);
+        }
+        return histogram.snapshot();
+    }
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < SUB_BUCKETS; value++) {
+            assertEquals(value, getBucket(value));
+            assertEquals(value, getBucketLowerBound(value));
+        }
+        // the first log-linear bucket follows on from them
+        assertEquals(SUB_BUCKETS, getBucket(SUB_BUCKETS));
+        assertEquals(SUB_BUCKETS, getBucketLowerBound(SUB_BUCKETS));
+        // a clock going backwards can produce negative durations
+        assertEquals(0, getBucket(-1));
+        assertEquals(0, getBucket(Long.MIN_VALUE));
+    }
+
+    // Each bucket covers the values from its lower bound up to the lower bound of the next one.
+    @Test
+    public void bucketsAreContiguous() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            final long lowerBound = getBucketLowerBound(bucket);
+            assertEquals(bucket, getBucket(lowerBound));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, getBucket(lowerBound - 1));
+                assertTrue(lowerBound > getBucketLowerBound(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void largeValuesShareTheLastBucket() {
+        assertEquals(BUCKETS - 1, getBucket(1L << MAX_EXPONENT));
+        assertEquals(BUCKETS - 1, getBucket(Long.MAX_VALUE));
+        assertEquals(1L << MAX_EXPONENT, getBucketLowerBound(BUCKETS - 1));
+        assertEquals(BUCKETS - 2, getBucket((1L << MAX_EXPONENT) - 1));
+    }
+
+    // The reported percentile is the upper bound of the bucket, within 1 / SUB_BUCKETS of the
+    // recorded value.
+    @Test
+    public void percentileErrorIsBounded() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // spread evenly over the powers of 2
+            final long value = random.nextLong() >>> (64 - 1 - random.nextInt(MAX_EXPONENT));
+            // the larger value keeps the maximum from capping the reported upper bound
+            final long reported = snapshot(value, 1L << MAX_EXPONENT).getPercentileNanos(50);
+            assertTrue(value + " " + reported, reported >= value);
+            assertTrue(value + " " + reported, reported - value <= value / SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void percentilesOfExactBuckets() {
+        final VerificationMetrics.Snapshot snapshot = snapshot(0, 1, 2, 3, 4, 5, 6, 7);
+        assertEquals(8, snapshot.count);
+        assertEquals(3, snapshot.getMeanNanos());
+        assertEquals(0, snapshot.getPercentileNanos(0));
+        assertEquals(0, snapshot.getPercentileNanos(12.5));
+        assertEquals(1, snapshot.getPercentileNanos(12.6));
+        assertEquals(3, snapshot.getPercentileNanos(50));
+        assertEquals(7, snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void percentileIsCappedByMaximum() {
+        // 1000 is in the bucket from 960 to 1023
+        final VerificationMetrics.Snapshot snapshot = snapshot(1000, 1000);
+        assertEquals(1000, snapshot.getPercentileNanos(50));
+        assertEquals(1000, snapshot.maxNanos);
+        assertEquals(1023, snapshot(1000, 2000).getPercentileNanos(50));
+    }
+
+    @Test
+    public void maximumValue() {
+        final VerificationMetrics.Snapshot snapshot = snapshot(1, Long.MAX_VALUE);
+        assertEquals(2, snapshot.count);
+        assertEquals(Long.MAX_VALUE, snapshot.maxNanos);
+        assertEquals(1, snapshot.getPercentileNanos(50));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentileNanos(99));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void emptySnapshot() {
+        final VerificationMetrics.Snapshot snapshot = snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.sumNanos);
+        assertEquals(0, snapshot.maxNanos);
+        assertEquals(0, snapshot.getMeanNanos());
+        assertEquals(0, snapshot.getPercentileNanos(50));
+        assertEquals(0, snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void disabledRecordingIsDropped() {
+        final VerificationMetrics.Stage stage = VerificationMetrics.Stage.SERIALIZE;
+        final long count = VerificationMetrics.getSnapshot(stage).count;
+        VerificationMetrics.setEnabled(false);
+        try {
+            VerificationMetrics.record(stage, System.nanoTime());
+        } finally {
+            VerificationMetrics.setEnabled(true);
+        }
+        assertEquals(count, VerificationMetrics.getSnapshot(stage).count);
+        VerificationMetrics.record(stage, System.nanoTime());
+        assertEquals(count + 1, VerificationMetrics.getSnapshot(stage).count);
+    }
+}
@@ -0,0 +1,128 @@
+package co.copperhead.attestation;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Throughput of VerificationPipeline compared with calling AttestationVerifier directly from a
+// pool of threads, with pinning data updates taking STORE_LATENCY_MS like a durable store would.
+//
+// The direct threads each wait on their own store updates, while the pipeline only ties up its
+// store threads and keeps the crypto pool busy in the meantime. Attestations are prepared the
+// same way as VerifierBenchmark.
+public class VerificationPipelineBenchmark {
+    private static final long STORE_LATENCY_MS = 2;
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int CAPACITY = 256;
+    private static final int STORE_THREADS = 32;
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private VerificationPipelineBenchmark() {}
+
+    private static class SlowPinStore extends InMemoryPinStore {
+        @Override
+        public void update(final String fingerprint, final PinnedDevice previous,
+                final String verifiedBootKey, final int osVersion, final int osPatchLevel,
+                final int appVersion, final long verifiedTime) {
+            try {
+                Thread.sleep(STORE_LATENCY_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.update(fingerprint, previous, verifiedBootKey, osVersion, osPatchLevel,
+                    appVersion, verifiedTime);
+        }
+    }
+
+    private static long runDirect(final AttestationVerifier verifier,
+            final List<byte[]> attestations, final int threadCount, final long duration)
+            throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final LongAdder verified = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final long deadline = System.currentTimeMillis() + duration;
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    final byte[] serialized = attestations.get(
+                            Math.floorMod(next.getAndIncrement(), attestations.size()));
+                    try {
+                        verifier.verifySerialized(serialized, challenge -> true);
+                        verified.increment();
+                    } catch (final Exception e) {
+                        failed.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failed.sum() > 0) {
+            throw new IllegalStateException(failed.sum() + " verifications failed");
+        }
+        return verified.sum() * 1000 / duration;
+    }
+
+    // A single producer submits as fast as the pipeline accepts.
+    private static long runPipeline(final AttestationVerifier verifier,
+            final List<byte[]> attestations, final int cryptoThreads, final long duration)
+            throws InterruptedException {
+        final LongAdder verified = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        try (final VerificationPipeline pipeline = new VerificationPipeline(verifier, CAPACITY,
+                1, cryptoThreads, STORE_THREADS)) {
+            final long deadline = System.currentTimeMillis() + duration;
+            for (int i = 0; System.currentTimeMillis() < deadline; i++) {
+                final CompletableFuture<AttestationVerifier.Result> future = pipeline.submit(
+                        attestations.get(i % attestations.size()), challenge -> true);
+                future.whenComplete((result, e) -> {
+                    if (e == null) {
+                        verified.increment();
+                    } else {
+                        failed.increment();
+                    }
+                });
+            }
+        }
+        if (failed.sum() > 0) {
+            throw new IllegalStateException(failed.sum() + " verifications failed");
+        }
+        return verified.sum() * 1000 / duration;
+    }
+
+    // usage: VerificationPipelineBenchmark <deflate_dictionary.bin>
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: VerificationPipelineBenchmark <deflate dictionary>");
+            System.exit(1);
+        }
+        final byte[] dictionary = VerifierBenchmark.readDictionary(args[0]);
+
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, dictionary,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new SlowPinStore(), false);
+        final List<byte[]> attestations =
+                VerifierBenchmark.createPairedAttestations(authority, verifier, dictionary);
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors() +
+                ", store latency: " + STORE_LATENCY_MS + " ms");
+        runDirect(verifier, attestations, THREADS[THREADS.length - 1], WARMUP_MS);
+        runPipeline(verifier, attestations, THREADS[THREADS.length - 1], WARMUP_MS);
+        for (final int threads : THREADS) {
+            System.out.println(threads + " threads: direct " +
+                    runDirect(verifier, attestations, threads, DURATION_MS) +
+                    " verifications/s, pipeline " +
+                    runPipeline(verifier, attestations, threads, DURATION_MS) +
+                    " verifications/s");
+        }
+    }
+}
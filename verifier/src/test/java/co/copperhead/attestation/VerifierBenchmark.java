@@ -0,0 +1,178 @@
+package co.copperhead.attestation;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+import co.copperhead.attestation.AttestationVerifier.DeviceInfo;
+
+import static co.copperhead.attestation.AttestationConstants.CHALLENGE_LENGTH;
+import static co.copperhead.attestation.AttestationConstants.OS_ENFORCED_FLAGS_USER_PROFILE_SECURE;
+import static co.copperhead.attestation.AttestationConstants.PROTOCOL_VERSION;
+
+// Throughput of paired verifications by AttestationVerifier at 1, 4 and 16 threads.
+//
+// Attestations are generated up front for a set of synthetic devices which are paired before
+// the measurement, so only verification is measured. The challenge check accepts anything so
+// the same attestations can be verified repeatedly.
+//
+// Each thread count is measured with VerificationMetrics recording and with it turned off, to
+// report the overhead of the metrics. The two are alternated for ROUNDS rounds and the best
+// result of each is reported, since the difference is smaller than the noise of a single run.
+// The cost of recording a stage is also measured on its own, to estimate the overhead as a share
+// of the time taken by a single threaded verification.
+public class VerifierBenchmark {
+    private static final int DEVICES = 256;
+    private static final int ATTESTATIONS_PER_DEVICE = 4;
+    private static final int[] THREADS = {1, 4, 16};
+    private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int ROUNDS = 3;
+    private static final int RECORDS = 10_000_000;
+
+    private VerifierBenchmark() {}
+
+    private static long run(final AttestationVerifier verifier, final List<byte[]> attestations,
+            final int threadCount, final long duration) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final LongAdder verified = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final long deadline = System.currentTimeMillis() + duration;
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    final byte[] serialized = attestations.get(
+                            Math.floorMod(next.getAndIncrement(), attestations.size()));
+                    try {
+                        verifier.verifySerialized(serialized, challenge -> true);
+                        verified.increment();
+                    } catch (final Exception e) {
+                        failed.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failed.sum() > 0) {
+            throw new IllegalStateException(failed.sum() + " verifications failed");
+        }
+        return verified.sum() * 1000 / duration;
+    }
+
+    // Returns the time taken to record a stage and its start time in nanoseconds.
+    private static double measureRecord() {
+        final VerificationMetrics.Stage stage = VerificationMetrics.Stage.SERIALIZE;
+        final long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            VerificationMetrics.record(stage, System.nanoTime());
+        }
+        return (double) (System.nanoTime() - start) / RECORDS;
+    }
+
+    static byte[] readDictionary(final String path) throws IOException {
+        try (final InputStream input = new FileInputStream(path)) {
+            return ByteStreams.toByteArray(input);
+        }
+    }
+
+    // Pairs synthetic devices with the verifier and returns further attestations for each of
+    // them, accepted by a challenge validator accepting anything.
+    static List<byte[]> createPairedAttestations(final SyntheticAuditee.Authority authority,
+            final AttestationVerifier verifier, final byte[] dictionary)
+            throws DataFormatException, GeneralSecurityException, IOException {
+        final List<Map.Entry<String, DeviceInfo>> stock =
+                new ArrayList<>(DeviceDatabase.fingerprintsStock.entrySet());
+        final SecureRandom random = new SecureRandom();
+        final byte[] challengeIndex = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challengeIndex);
+
+        final List<byte[]> attestations = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            final Map.Entry<String, DeviceInfo> entry = stock.get(i % stock.size());
+            final SyntheticAuditee device = new SyntheticAuditee(authority, entry.getKey(), true,
+                    entry.getValue(), 80100, 201805, 22);
+            for (int j = 0; j <= ATTESTATIONS_PER_DEVICE; j++) {
+                final byte[] challenge = new byte[CHALLENGE_LENGTH];
+                random.nextBytes(challenge);
+                final byte[] serialized = device.generateSerialized(
+                        Bytes.concat(new byte[]{PROTOCOL_VERSION}, challengeIndex, challenge),
+                        dictionary, OS_ENFORCED_FLAGS_USER_PROFILE_SECURE);
+                if (j == 0) {
+                    verifier.verifySerialized(serialized, c -> true);
+                } else {
+                    attestations.add(serialized);
+                }
+            }
+        }
+        return attestations;
+    }
+
+    // usage: VerifierBenchmark <deflate_dictionary.bin>
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: VerifierBenchmark <deflate dictionary>");
+            System.exit(1);
+        }
+        final byte[] dictionary = readDictionary(args[0]);
+
+        final SyntheticAuditee.Authority authority = SyntheticAuditee.Authority.generate();
+        final AttestationVerifier verifier = new AttestationVerifier(authority.root, dictionary,
+                DeviceDatabase.fingerprintsStock, DeviceDatabase.fingerprintsCopperheadOS,
+                new InMemoryPinStore(), false);
+        final List<byte[]> attestations =
+                createPairedAttestations(authority, verifier, dictionary);
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors() +
+                ", devices: " + DEVICES + ", attestations: " + attestations.size());
+        run(verifier, attestations, THREADS[THREADS.length - 1], WARMUP_MS);
+        long singleThreaded = 0;
+        for (final int threads : THREADS) {
+            long enabled = 0;
+            long disabled = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                VerificationMetrics.setEnabled(true);
+                enabled = Math.max(enabled, run(verifier, attestations, threads, DURATION_MS));
+                VerificationMetrics.setEnabled(false);
+                disabled = Math.max(disabled, run(verifier, attestations, threads, DURATION_MS));
+            }
+            VerificationMetrics.setEnabled(true);
+            if (threads == 1) {
+                singleThreaded = enabled;
+            }
+            System.out.printf(
+                    "%d threads: %d verifications/s, %d without metrics (overhead %+.2f%%)%n",
+                    threads, enabled, disabled, (disabled - enabled) * 100.0 / disabled);
+        }
+
+        long stages = 0;
+        for (final VerificationMetrics.Snapshot snapshot :
+                VerificationMetrics.getSnapshots().values()) {
+            stages += snapshot.count;
+        }
+        final double stagesPerVerification = (double) stages /
+                VerificationMetrics.getSnapshot(VerificationMetrics.Stage.VERIFY).count;
+        measureRecord();
+        final double recordNanos = measureRecord();
+        System.out.printf("recording: %.1f ns per stage, %.1f stages per verification, " +
+                "%.3f%% of a single threaded verification%n", recordNanos, stagesPerVerification,
+                recordNanos * stagesPerVerification * singleThreaded / 1e7);
+        System.out.println("pinned key cache: " + verifier.getPinnedKeyCacheStats());
+    }
+}
@@ -0,0 +1,153 @@
+package co.copperhead.attestation.attestation;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DLSet;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateParsingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// The ids are compared as sets of package infos and signature digests, whatever order they're
+// encoded in.
+public class AttestationApplicationIdTest {
+    private static final String APP = "co.copperhead.attestation";
+    private static final String SHARED = "com.example.shared";
+    private static final byte[] DIGEST_A = digest(1);
+    private static final byte[] DIGEST_B = digest(2);
+
+    private static byte[] digest(final int value) {
+        final byte[] digest = new byte[32];
+        digest[digest.length - 1] = (byte) value;
+        return digest;
+    }
+
+    private static DERSequence packageInfo(final String name, final int version) {
+        final ASN1EncodableVector info = new ASN1EncodableVector();
+        info.add(new DEROctetString(name.getBytes(StandardCharsets.UTF_8)));
+        info.add(new ASN1Integer(version));
+        return new DERSequence(info);
+    }
+
+    // DLSet keeps the elements in the given order, unlike DERSet which sorts them.
+    private static AttestationApplicationId id(final List<DERSequence> packageInfos,
+            final byte[]... digests) throws CertificateParsingException {
+        final ASN1EncodableVector infos = new ASN1EncodableVector();
+        for (final DERSequence info : packageInfos) {
+            infos.add(info);
+        }
+        final ASN1EncodableVector signatures = new ASN1EncodableVector();
+        for (final byte[] digest : digests) {
+            signatures.add(new DEROctetString(digest));
+        }
+        final ASN1EncodableVector id = new ASN1EncodableVector();
+        id.add(new DLSet(infos));
+        id.add(new DLSet(signatures));
+        return new AttestationApplicationId(new DERSequence(id));
+    }
+
+    private static void assertIdsEqual(final AttestationApplicationId a,
+            final AttestationApplicationId b) {
+        assertEquals(a, b);
+        assertEquals(b, a);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+        assertEquals(0, b.compareTo(a));
+    }
+
+    @Test
+    public void orderIsIgnored() throws Exception {
+        final AttestationApplicationId forward = id(
+                Arrays.asList(packageInfo(APP, 22), packageInfo(SHARED, 1)), DIGEST_A, DIGEST_B);
+        final AttestationApplicationId reversed = id(
+                Arrays.asList(packageInfo(SHARED, 1), packageInfo(APP, 22)), DIGEST_B, DIGEST_A);
+        assertIdsEqual(forward, reversed);
+        assertEquals(forward.getAttestationPackageInfos(),
+                reversed.getAttestationPackageInfos());
+    }
+
+    @Test
+    public void differentContentsAreNotEqual() throws Exception {
+        final AttestationApplicationId base =
+                id(Arrays.asList(packageInfo(APP, 22), packageInfo(SHARED, 1)), DIGEST_A);
+        final List<AttestationApplicationId> others = Arrays.asList(
+                id(Arrays.asList(packageInfo(APP, 23), packageInfo(SHARED, 1)), DIGEST_A),
+                id(Arrays.asList(packageInfo(APP, 22), packageInfo(SHARED, 1)), DIGEST_B),
+                id(Arrays.asList(packageInfo(APP, 22), packageInfo(SHARED, 1)), DIGEST_A,
+                        DIGEST_B),
+                id(Arrays.asList(packageInfo(APP, 22)), DIGEST_A),
+                id(Arrays.asList(packageInfo(APP + ".debug", 22), packageInfo(SHARED, 1)),
+                        DIGEST_A));
+        for (final AttestationApplicationId other : others) {
+            assertNotEquals(base, other);
+            assertNotEquals(other, base);
+            assertNotEquals(0, base.compareTo(other));
+            assertEquals(-Integer.signum(base.compareTo(other)),
+                    Integer.signum(other.compareTo(base)));
+        }
+    }
+
+    // compareTo is zero exactly when equals is true and orders the ids consistently, so sorted
+    // and hashed collections agree.
+    @Test
+    public void compareToIsConsistentWithEquals() throws Exception {
+        final List<AttestationApplicationId> ids = new ArrayList<>();
+        for (int version = 1; version <= 3; version++) {
+            for (final byte[] digest : new byte[][]{DIGEST_A, DIGEST_B}) {
+                ids.add(id(Arrays.asList(packageInfo(APP, version)), digest));
+                ids.add(id(Arrays.asList(packageInfo(SHARED, version), packageInfo(APP, 1)),
+                        digest));
+                ids.add(id(Arrays.asList(packageInfo(APP, 1), packageInfo(SHARED, version)),
+                        digest));
+            }
+        }
+
+        for (final AttestationApplicationId a : ids) {
+            for (final AttestationApplicationId b : ids) {
+                assertEquals(a.equals(b), a.compareTo(b) == 0);
+                assertEquals(Integer.signum(a.compareTo(b)), -Integer.signum(b.compareTo(a)));
+                for (final AttestationApplicationId c : ids) {
+                    if (a.compareTo(b) < 0 && b.compareTo(c) < 0) {
+                        assertTrue(a.compareTo(c) < 0);
+                    }
+                }
+            }
+        }
+        assertEquals(new HashSet<>(ids).size(), new TreeSet<>(ids).size());
+        // the last two orders of package infos are the same id
+        assertEquals(ids.size() * 2 / 3, new HashSet<>(ids).size());
+    }
+
+    @Test
+    public void packageNamesAreInterned() throws Exception {
+        final AttestationApplicationId first = id(Arrays.asList(packageInfo(APP, 22)), DIGEST_A);
+        final AttestationApplicationId second = id(Arrays.asList(packageInfo(APP, 23)), DIGEST_B);
+        final String name = first.getAttestationPackageInfos().get(0).getPackageName();
+        assertEquals(APP, name);
+        assertSame(name, second.getAttestationPackageInfos().get(0).getPackageName());
+        assertFalse(first.equals(second));
+    }
+
+    @Test
+    public void packageInfoEquality() {
+        final AttestationPackageInfo info = new AttestationPackageInfo(APP, 22);
+        assertEquals(info, new AttestationPackageInfo(APP, 22));
+        assertEquals(info.hashCode(), new AttestationPackageInfo(APP, 22).hashCode());
+        assertNotEquals(info, new AttestationPackageInfo(APP, 23));
+        assertNotEquals(info, new AttestationPackageInfo(SHARED, 22));
+        assertTrue(info.compareTo(new AttestationPackageInfo(APP, 23)) < 0);
+    }
+}